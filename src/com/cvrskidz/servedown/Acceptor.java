@@ -0,0 +1,122 @@
+package com.cvrskidz.servedown;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The com.cvrskidz.servedown.Acceptor class accepts connections from a listening channel and starts a
+ * com.cvrskidz.servedown.RequestHandler for each. A server runs several acceptors so connections are accepted on
+ * more than one core.
+ * <p>
+ * Where the platform supports SO_REUSEPORT each acceptor binds it's own channel to the same address, and the kernel
+ * balances new connections between them. Otherwise the acceptors share a single channel.
+ */
+public class Acceptor implements Runnable {
+    private static final AtomicLong accepted = new AtomicLong(); //connections accepted by all acceptors
+
+    private final ServerSocketChannel channel;
+
+    /**
+     * Returns a new acceptor for an open channel.
+     *
+     * @param channel A bound channel, possibly shared with other acceptors.
+     */
+    public Acceptor(ServerSocketChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Opens and binds a listening channel, using the socket options set by the program arguments.
+     *
+     * @param address The address and port to bind to.
+     * @param reusePort True to set SO_REUSEPORT, so other channels can bind the same address.
+     * @return The bound channel.
+     * @throws IOException If the address cannot be bound.
+     */
+    public static ServerSocketChannel open(InetSocketAddress address, boolean reusePort) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        if(reusePort) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        if(Server.receiveBuffer > 0) { //set before binding, so larger windows can be negotiated
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, Server.receiveBuffer);
+        }
+        channel.bind(address, Server.backlog);
+        return channel;
+    }
+
+    /**
+     * Checks whether each acceptor can bind it's own channel to the same address.
+     *
+     * @return True if SO_REUSEPORT is supported on this platform.
+     */
+    public static boolean supportsReusePort() {
+        try(ServerSocketChannel channel = ServerSocketChannel.open()) {
+            return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Accepts connections until the server stops listening or the channel is closed.
+     */
+    @Override
+    public void run() {
+        while(Server.listening) {
+            try {
+                SocketChannel connection = channel.accept();
+                configure(connection.socket());
+                accepted.incrementAndGet();
+                new RequestHandler(connection.socket()).start();
+            }
+            catch (ClosedChannelException e) {
+                break;
+            }
+            catch (IOException e) {
+                System.err.println("--LOG--\nError accepting connection\n" + e + "\n--END LOG--");
+            }
+        }
+    }
+
+    /**
+     * Applies the socket options set by the program arguments to an accepted connection. If an option cannot be
+     * set the connection is closed, as no handler will be started for it.
+     *
+     * @param socket The accepted connection.
+     * @throws IOException If an option cannot be set.
+     */
+    public static void configure(Socket socket) throws IOException {
+        try {
+            socket.setTcpNoDelay(Server.tcpNoDelay);
+            if(Server.sendBuffer > 0) {
+                socket.setSendBufferSize(Server.sendBuffer);
+            }
+        }
+        catch (IOException e) {
+            try {
+                socket.close();
+            }
+            catch (IOException closing) {
+                e.addSuppressed(closing);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * A getter method to access the number of connections accepted since the server started.
+     *
+     * @return The total accepted by every acceptor.
+     */
+    public static long getAccepted() {
+        return accepted.get();
+    }
+}
@@ -0,0 +1,166 @@
+package com.cvrskidz.servedown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * The com.cvrskidz.servedown.AdversarialMarkdown class generates markdown built to make
+ * com.cvrskidz.servedown.MarkdownConverter backtrack or recurse, such as wide tables, deep lists and long runs of
+ * emphasis markers, and checks that the time to convert it grows linearly with it's size.
+ * <p>
+ * Each case is generated at a base size and at SCALE times that size, and converted on a thread with a small stack
+ * so recursion once per line, column or list level overflows. A case fails if it's conversion throws, or if the
+ * time to convert the larger input grows more than SLACK times faster than it's length (a quadratic path grows
+ * SCALE times faster). Markdown that once threw whilst being converted is converted too. The program exits with
+ * status 1 if any case fails.
+ * <p>
+ * Run with: java -cp build com.cvrskidz.servedown.AdversarialMarkdown [--write {directory}]
+ * <br>--write saves each case, at it's base size, as a markdown file in the directory.
+ */
+public class AdversarialMarkdown {
+    private static final int SCALE = 8; //times larger the second input of each case is
+    private static final double SLACK = 3; //allowance for timing noise, well below the SCALE of a quadratic path
+    private static final int DEPTH = 1000; //levels of the deepest list, times the scale
+    private static final double FLOOR = 50; //milliseconds, larger inputs converted faster than this always pass
+    private static final int RUNS = 3; //timed conversions of each input, the fastest is used
+    private static final long STACK_SIZE = 512 << 10; //bytes of stack to convert on
+
+    private static final String[] NONE = {};
+
+    //each case, generating markdown n times the base size (or with n times the list depth)
+    private static final Map<String, IntFunction<String>> CASES = new LinkedHashMap<>();
+
+    //markdown that once threw, converted once each
+    private static final Map<String, String> EDGES = new LinkedHashMap<>();
+
+    static {
+        CASES.put("table_spaces", n -> "| " + " ".repeat(3000 * n) + "x\n");
+        CASES.put("table_bars", n -> "|".repeat(3000 * n) + "x\n");
+        CASES.put("table_wide", n -> "|" + "a|".repeat(500 * n) + "\n|" + "-|".repeat(500 * n) + "\n"
+                + ("|" + "b|".repeat(500 * n) + "\n").repeat(50));
+        CASES.put("stars", n -> "*".repeat(20000 * n) + "\n");
+        CASES.put("stars_text", n -> "a*".repeat(8000 * n) + "\n");
+        CASES.put("bold_unterminated", n -> "**a ".repeat(5000 * n) + "\n");
+        CASES.put("highlight", n -> "==".repeat(10000 * n) + "\n");
+        CASES.put("code_span", n -> "`".repeat(20000 * n) + "\n");
+        CASES.put("link_unterminated", n -> "[a](".repeat(5000 * n) + "\n");
+        CASES.put("links", n -> "[a](b) ![c](d) ".repeat(2000 * n) + "\n");
+        CASES.put("lists_deep", n -> { //each level is indented once more, so the length grows with depth squared
+            StringBuilder lists = new StringBuilder();
+            for(int i = 0; i < DEPTH * n; ++i) {
+                lists.append(" ".repeat(i)).append("- item\n");
+            }
+            return lists.append('\n').toString();
+        });
+        CASES.put("fence_open", n -> "```\n" + "line <x>\n".repeat(50000 * n));
+        CASES.put("fence_huge", n -> "```java\n" + "int x = \"a;\n/* c\n".repeat(20000 * n) + "```\n");
+
+        EDGES.put("bullet_alone", "text\n-\n* \n  *\n");
+        EDGES.put("list_outdent", "  - a\n- b\n\ntext\n");
+        EDGES.put("table_last_line", "| a | b |\n|---|---|\n| c | d |");
+    }
+
+    /**
+     * Runs every case, printing the time to convert each input.
+     *
+     * @param args Optionally --write {directory}, to save the generated markdown.
+     * @throws Exception If the content root of the site the cases are converted for cannot be created.
+     */
+    public static void main(String[] args) throws Exception {
+        Path write = null;
+        for(int i = 0; i < args.length; ++i) {
+            if(args[i].equals("--write")) {
+                write = Path.of(args[++i]);
+                Files.createDirectories(write);
+            }
+        }
+
+        //images in the cases are resolved against the content root of a site
+        Server.defaultSite = new Site("", Files.createTempDirectory("servedown-adversarial"), Server.defaultFile,
+                false, 0, 1 << 20, 1 << 20);
+
+        Path saved = write;
+        int[] failures = {0};
+        Thread converting = new Thread(null, () -> failures[0] = run(saved), "adversarial", STACK_SIZE);
+        converting.start();
+        converting.join();
+
+        System.out.println(failures[0] == 0 ? "All cases scale linearly" : failures[0] + " case(s) failed");
+        System.exit(failures[0] == 0 ? 0 : 1);
+    }
+
+    /**
+     * Converts every case, on a thread with a small stack.
+     *
+     * @return The number of cases that failed.
+     */
+    private static int run(Path write) {
+        int failures = 0;
+        System.out.printf("%-20s %10s %10s %10s %10s %7s %7s%n", "case", "bytes", "ms", "scaled", "ms", "length",
+                "time");
+
+        for(Map.Entry<String, IntFunction<String>> test : CASES.entrySet()) {
+            String base = test.getValue().apply(1), scaled = test.getValue().apply(SCALE);
+            String result;
+            try {
+                save(write, test.getKey(), base);
+                convert(base); //warms up the converter
+                double baseTime = time(base), scaledTime = time(scaled);
+                double growth = (double)scaled.length() / base.length();
+                double ratio = scaledTime / Math.max(baseTime, 0.001);
+                boolean linear = scaledTime < FLOOR || ratio <= growth * SLACK;
+                result = String.format("%10d %10.1f %10d %10.1f %6.1fx %6.1fx %s", base.length(), baseTime,
+                        scaled.length(), scaledTime, growth, ratio, linear ? "" : "FAIL, grows faster than linear");
+                failures += linear ? 0 : 1;
+            }
+            catch (RuntimeException | StackOverflowError | IOException e) {
+                result = "FAIL " + e;
+                ++failures;
+            }
+            System.out.printf("%-20s %s%n", test.getKey(), result);
+        }
+
+        for(Map.Entry<String, String> edge : EDGES.entrySet()) {
+            String result = "converted";
+            try {
+                save(write, edge.getKey(), edge.getValue());
+                convert(edge.getValue());
+            }
+            catch (RuntimeException | StackOverflowError | IOException e) {
+                result = "FAIL " + e;
+                ++failures;
+            }
+            System.out.printf("%-20s %s%n", edge.getKey(), result);
+        }
+        return failures;
+    }
+
+    /**
+     * Returns the fastest of RUNS conversions of some markdown.
+     *
+     * @return The time in milliseconds.
+     */
+    private static double time(String markdown) {
+        long fastest = Long.MAX_VALUE;
+        for(int i = 0; i < RUNS; ++i) {
+            long start = System.nanoTime();
+            convert(markdown);
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+        return fastest / 1e6;
+    }
+
+    private static void convert(String markdown) {
+        MarkdownConverter.forThread().convert(markdown, "adversarial", NONE, NONE, NONE).getBytes();
+    }
+
+    private static void save(Path directory, String name, String markdown) throws IOException {
+        if(directory != null) {
+            Files.writeString(directory.resolve(name + ".md"), markdown);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.cvrskidz.servedown;
+
+/**
+ * The com.cvrskidz.servedown.AssetHandler class responds to requests for assets served from memory, such as the
+ * bundles built by com.cvrskidz.servedown.AssetPipeline and the files held by com.cvrskidz.servedown.AssetStore.
+ */
+public class AssetHandler extends FileHandler {
+    private HTTPResponse response; //the pre-built response serving the asset
+
+    /**
+     * Responds with a pre-built response.
+     *
+     * @param response The response serving the requested asset, or null if there is no asset at the requested path.
+     */
+    public AssetHandler(HTTPResponse response) {
+        this.response = response;
+        error = response == null;
+    }
+
+    /**
+     * Returns the response serving the requested asset.
+     *
+     * @return The assets response, or a 404 response if there is no asset at the requested path.
+     */
+    @Override
+    public HTTPResponse getResponse() {
+        return hadError() ? super.getResponse() : response;
+    }
+}
@@ -0,0 +1,393 @@
+package com.cvrskidz.servedown;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The com.cvrskidz.servedown.AssetPipeline class combines the stylesheets and scripts included in converted pages
+ * into bundles held in memory, one file per type, so a page needs a single request for it's styles and another for
+ * it's scripts.
+ * <p>
+ * Each bundle is minified and named after a hash of it's contents, e.g. /.assets/page.3f2a9c1e0b7d4a66.css, and is
+ * served with a Cache-Control field allowing browsers to cache it indefinitely. A changed asset produces a new name,
+ * so pages converted after the change reference the new bundle, while browsers keep using their cached copy of the
+ * bundle referenced by older pages. Bundles are rebuilt when one of their sources changes.
+ * <p>
+ * A bundle that cannot be built, such as when the content root has no .client directory, is remembered as failed
+ * and pages include the references it would have replaced. It is only built again once one of it's sources is
+ * created or changed.
+ */
+public class AssetPipeline implements ContentWatcher.Listener {
+    public static final String PREFIX = "/.assets/"; //the path bundles are served under
+    private static final String CACHE_CONTROL = "public, max-age=31536000, immutable";
+    private static final int HASH_LENGTH = 16; //hex digits of the content hash in a bundles name
+
+    /**
+     * A bundle of assets of one type, and the response serving it.
+     */
+    private static class Bundle {
+        final String name, extension; //e.g. page and .css
+        final String[] refs; //the references the bundle replaced, in order
+        final List<Path> sources = new ArrayList<>(); //local files included in, or missing from, the bundle
+        final String[] bundledRefs; //the references to include in pages, the bundle and any remote references
+        final String file; //the fingerprinted file name e.g. page.3f2a9c1e0b7d4a66.css, null if the build failed
+        final HTTPResponse response, outdated; //responses for the fingerprinted name, and outdated names
+
+        /**
+         * Returns a bundle that failed to build, including the references it replaces unchanged.
+         */
+        Bundle(String name, String extension, String[] refs, List<Path> sources) {
+            this.name = name;
+            this.extension = extension;
+            this.refs = refs;
+            this.sources.addAll(sources);
+            file = null;
+            bundledRefs = refs;
+            response = outdated = null;
+        }
+
+        Bundle(String name, String extension, String[] refs, List<Path> sources, byte[] contents) {
+            this.name = name;
+            this.extension = extension;
+            this.refs = refs;
+            this.sources.addAll(sources);
+            this.file = name + "." + hash(contents) + extension;
+
+            List<String> bundled = new ArrayList<>();
+            for(String ref : refs) {
+                if(isRemote(ref)) {
+                    bundled.add(ref);
+                }
+                else if(!bundled.contains(PREFIX + file)) { //the bundle replaces the first local reference
+                    bundled.add(PREFIX + file);
+                }
+            }
+            bundledRefs = bundled.toArray(new String[0]);
+
+            response = HTTPResponse.newResponse(extension, contents, HTTPResponse.PROTOCOL.HTTP)
+                    .header("Cache-Control", CACHE_CONTROL);
+            outdated = HTTPResponse.newResponse(extension, contents, HTTPResponse.PROTOCOL.HTTP)
+                    .header("Cache-Control", "no-cache");
+        }
+    }
+
+    private final Path root; //the content root, local references are relative to it
+    private final Map<String, Bundle> bundles = new ConcurrentHashMap<>(); //the current bundle of each name
+    private final Map<String, Bundle> files = new ConcurrentHashMap<>(); //the current bundles, by fingerprinted name
+    private final AtomicLong generation = new AtomicLong(); //counts the bundles built, and failed to build
+
+    /**
+     * Returns a new pipeline without any bundles.
+     *
+     * @param root The servers content root.
+     */
+    public AssetPipeline(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Returns the references to include in a page in place of the supplied references, building the bundle the
+     * first time it is requested. Local references are replaced by the root relative URL of a single bundle, and
+     * remote references (such as CDN scripts) are kept as they are.
+     *
+     * @param name The name of the bundle, identifying it between builds e.g. page
+     * @param extension The type of the assets, .css or .js
+     * @param refs The references to bundle, relative to the content root e.g. ..\.client\style.css
+     * @return The references to include in the page, or the supplied references if the bundle cannot be built.
+     */
+    public String[] bundle(String name, String extension, String[] refs) {
+        Bundle bundle = bundles.get(name + extension);
+        if(bundle == null || bundle.refs != refs) {
+            bundle = build(name, extension, refs);
+        }
+        return bundle.bundledRefs;
+    }
+
+    /**
+     * Reads, minifies and concatenates the local references into a new bundle, replacing the current bundle of
+     * the same name. If a reference cannot be read the current bundle is kept, or if it bundles other references
+     * the failure is remembered, so the files are not read again until one of them changes.
+     */
+    private Bundle build(String name, String extension, String[] refs) {
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        List<Path> sources = new ArrayList<>();
+        for(String ref : refs) {
+            if(!isRemote(ref)) {
+                sources.add(root.resolve(ref.replace('\\', '/').replaceFirst("^(\\.\\./)+", "")).normalize());
+            }
+        }
+
+        try {
+            for(Path source : sources) {
+                String text = Files.readString(source, StandardCharsets.UTF_8);
+                String fileName = source.getFileName().toString();
+                if(!fileName.contains(".min.") && !fileName.contains(".pack.")) { //already minified
+                    text = extension.equals(".css") ? minifyCSS(text) : minifyJS(text);
+                }
+
+                contents.write(text.getBytes(StandardCharsets.UTF_8));
+                contents.write((extension.equals(".js") ? "\n;\n" : "\n").getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+        catch (IOException e) {
+            System.err.println("--LOG--\nError bundling " + name + extension + ", assets are not bundled\n" + e
+                    + "\n--END LOG--");
+            Bundle current = bundles.get(name + extension);
+            if(current != null && current.refs == refs && current.file != null) { //served until the next change
+                return current;
+            }
+            Bundle failed = new Bundle(name, extension, refs, sources);
+            Bundle previous = bundles.put(name + extension, failed);
+            generation.incrementAndGet();
+            if(previous != null && previous.file != null) {
+                files.remove(previous.file);
+            }
+            return failed;
+        }
+
+        Bundle bundle = new Bundle(name, extension, refs, sources, contents.toByteArray());
+        files.put(bundle.file, bundle);
+        Bundle previous = bundles.put(name + extension, bundle);
+        generation.incrementAndGet();
+        if(previous != null && previous.file != null && !previous.file.equals(bundle.file)) {
+            files.remove(previous.file);
+        }
+        System.out.println("Bundled " + sources.size() + " assets as " + PREFIX + bundle.file + " ("
+                + contents.size() + " bytes)");
+        return bundle;
+    }
+
+    /**
+     * Returns a count of the bundles built, which changes whenever the references returned by bundle() may have
+     * changed.
+     *
+     * @return The number of bundles built, or failed to build, since the pipeline was created.
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Returns the response serving a bundle. Bundles are looked up by their fingerprinted name, names with an
+     * outdated hash (referenced by a page converted before a change) are served the current bundle without the
+     * long lived Cache-Control field.
+     *
+     * @param path The requested path, beginning with PREFIX.
+     * @return The response serving the bundle, or null if there is no bundle at the path.
+     */
+    public HTTPResponse lookup(String path) {
+        String file = path.substring(PREFIX.length());
+        Bundle bundle = files.get(file);
+        if(bundle != null) {
+            return bundle.response;
+        }
+
+        int dot = file.indexOf('.');
+        int extension = file.lastIndexOf('.');
+        if(dot < 0) {
+            return null;
+        }
+        Bundle current = bundles.get(file.substring(0, dot) + file.substring(extension));
+        return current == null ? null : current.outdated;
+    }
+
+    /**
+     * Rebuilds any bundle including a changed file, or that failed to read it.
+     */
+    @Override
+    public void changed(WatchEvent.Kind<?> kind, Path file) {
+        for(Bundle bundle : bundles.values()) {
+            if(file == null || bundle.sources.contains(file)) {
+                build(bundle.name, bundle.extension, bundle.refs);
+            }
+        }
+    }
+
+    /**
+     * Removes comments and unnecessary whitespace from a stylesheet, leaving strings unchanged.
+     *
+     * @param css The stylesheet to minify.
+     * @return The minified stylesheet.
+     */
+    public static String minifyCSS(String css) {
+        StringBuilder out = new StringBuilder(css.length());
+        int n = css.length();
+
+        for(int i = 0; i < n; ++i) {
+            char c = css.charAt(i);
+            if(c == '"' || c == '\'') {
+                i = copyString(css, i, out);
+            }
+            else if(c == '/' && i + 1 < n && css.charAt(i + 1) == '*') { //comment
+                int end = css.indexOf("*/", i + 2);
+                i = end < 0 ? n : end + 1;
+            }
+            else if(Character.isWhitespace(c)) {
+                while(i + 1 < n && Character.isWhitespace(css.charAt(i + 1))) {
+                    ++i;
+                }
+                char next = i + 1 < n ? css.charAt(i + 1) : '}';
+                char previous = out.length() > 0 ? out.charAt(out.length() - 1) : '{';
+                if("{};,>".indexOf(previous) < 0 && "{};,>)".indexOf(next) < 0 && next != '/') {
+                    out.append(' ');
+                }
+            }
+            else if(c == '}' && out.length() > 0 && out.charAt(out.length() - 1) == ';') { //last ; of a rule
+                out.setCharAt(out.length() - 1, '}');
+            }
+            else {
+                out.append(c);
+            }
+        }
+
+        return out.toString();
+    }
+
+    /**
+     * Removes comments, indentation and blank lines from a script. Line breaks are kept, so statements relying on
+     * automatic semicolon insertion are unchanged, as are strings, template literals, regular expressions and
+     * comments beginning with /*! (licenses).
+     *
+     * @param js The script to minify.
+     * @return The minified script.
+     */
+    public static String minifyJS(String js) {
+        StringBuilder out = new StringBuilder(js.length());
+        int n = js.length();
+        char previous = '\n'; //the last character written that is not whitespace
+
+        for(int i = 0; i < n; ++i) {
+            char c = js.charAt(i);
+            char next = i + 1 < n ? js.charAt(i + 1) : '\n';
+
+            if(c == '"' || c == '\'' || c == '`') {
+                i = copyString(js, i, out);
+                previous = c;
+            }
+            else if(c == '/' && next == '/') { //line comment, the line break is kept
+                int end = js.indexOf('\n', i);
+                i = (end < 0 ? n : end) - 1;
+            }
+            else if(c == '/' && next == '*') {
+                int end = js.indexOf("*/", i + 2);
+                end = end < 0 ? n : end + 2;
+                if(i + 2 < n && js.charAt(i + 2) == '!') { //license
+                    out.append(js, i, end);
+                }
+                i = end - 1;
+            }
+            else if(c == '/' && "(,=:[!&|?{};+-*%<>~^\n".indexOf(previous) >= 0) { //regular expression
+                i = copyRegex(js, i, out);
+                previous = '/';
+            }
+            else if(Character.isWhitespace(c)) {
+                boolean newLine = c == '\n';
+                while(i + 1 < n && Character.isWhitespace(js.charAt(i + 1))) {
+                    newLine |= js.charAt(++i) == '\n';
+                }
+                next = i + 1 < n ? js.charAt(i + 1) : '\n';
+                if(out.length() == 0 || out.charAt(out.length() - 1) == '\n') {
+                    continue;
+                }
+                if(newLine) {
+                    out.append('\n');
+                }
+                else if((isWordPart(previous) && isWordPart(next)) || (previous == next && "+-".indexOf(next) >= 0)) {
+                    out.append(' ');
+                }
+            }
+            else {
+                out.append(c);
+                previous = c;
+            }
+        }
+
+        return out.toString().strip();
+    }
+
+    private static boolean isWordPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c > 127;
+    }
+
+    /**
+     * Copies a string literal starting at i, returning the index of it's closing quote.
+     */
+    private static int copyString(String s, int i, StringBuilder out) {
+        char quote = s.charAt(i);
+        int end = i + 1;
+        while(end < s.length() && s.charAt(end) != quote) {
+            end += s.charAt(end) == '\\' ? 2 : 1;
+        }
+        end = Math.min(end, s.length() - 1);
+        out.append(s, i, end + 1);
+        return end;
+    }
+
+    /**
+     * Copies a regular expression literal starting at i, including it's flags, returning the index of it's last
+     * character.
+     */
+    private static int copyRegex(String s, int i, StringBuilder out) {
+        int end = i + 1;
+        boolean inClass = false; //a / inside [...] does not end the expression
+        while(end < s.length()) {
+            char c = s.charAt(end);
+            if(c == '\\') {
+                end += 2;
+                continue;
+            }
+            if(c == '\n') { //not a regular expression, just a division at the start of a line
+                break;
+            }
+            if(c == '[') {
+                inClass = true;
+            }
+            else if(c == ']') {
+                inClass = false;
+            }
+            else if(c == '/' && !inClass) {
+                ++end;
+                while(end < s.length() && Character.isLetter(s.charAt(end))) {
+                    ++end;
+                }
+                break;
+            }
+            ++end;
+        }
+        end = Math.min(end, s.length());
+        out.append(s, i, end);
+        return end - 1;
+    }
+
+    private static boolean isRemote(String ref) {
+        return ref.startsWith("http://") || ref.startsWith("https://") || ref.startsWith("//");
+    }
+
+    /**
+     * Returns the first HASH_LENGTH hex digits of the SHA-256 hash of a bundle.
+     */
+    private static String hash(byte[] contents) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(contents);
+            StringBuilder hex = new StringBuilder(HASH_LENGTH);
+            for(int i = 0; hex.length() < HASH_LENGTH; ++i) {
+                hex.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e) { //every JVM supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.cvrskidz.servedown;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The com.cvrskidz.servedown.AssetStore class holds every file below a directory (the .client directory by default)
+ * in memory, so the styles, scripts and fonts requested alongside each page are served without reading the disk.
+ * <p>
+ * Files are loaded when the server starts into read-only direct buffers, and each is given an ETag and pre-built
+ * responses: the file as stored, a gzip compressed copy for text files that compress, and a 304 for clients that
+ * already hold the file. Serving a file only duplicates one of these buffers. Once the size budget is spent the
+ * remaining files are memory mapped instead, leaving the operating system to page them in.
+ * <p>
+ * Files changed whilst the server is running are reloaded, replacing the store so requests never see a partially
+ * updated file.
+ */
+public class AssetStore implements ContentWatcher.Listener {
+    private static final List<String> COMPRESSIBLE = Arrays.asList(new String[]{
+            ".css", ".js", ".json", ".svg", ".txt", ".xml", ".ttf", ".otf", ".eot"});
+    private static final String CACHE_CONTROL = "no-cache"; //files are not fingerprinted, so revalidate with the ETag
+    private static final int ETAG_LENGTH = 16; //hex digits of the content hash
+
+    /**
+     * A file held by the store.
+     */
+    private static class Asset {
+        private final String etag;
+        private final HTTPResponse identity, compressed, notModified; //compressed is null if not worth sending
+        private final long size; //bytes held in memory, 0 if the file is mapped
+        private final boolean mapped;
+
+        Asset(String etag, HTTPResponse identity, HTTPResponse compressed, HTTPResponse notModified, long size,
+              boolean mapped) {
+            this.etag = etag;
+            this.identity = identity;
+            this.compressed = compressed;
+            this.notModified = notModified;
+            this.size = size;
+            this.mapped = mapped;
+        }
+    }
+
+    private final Path root; //the directory held by the store
+    private final long budget; //bytes of direct buffers to hold before mapping files
+    private volatile Map<Path, Asset> assets = new HashMap<>(); //replaced, not modified, once loaded
+    private long resident; //bytes held in direct buffers, guarded by this
+
+    /**
+     * Returns a new store holding every file below a directory.
+     *
+     * @param root The directory to load.
+     * @param budget The number of bytes to hold in memory, further files are mapped.
+     * @throws IOException If the directory cannot be read.
+     */
+    public AssetStore(Path root, long budget) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.budget = budget;
+
+        Map<Path, Long> sizes = new HashMap<>();
+        if(Files.isDirectory(this.root)) {
+            Files.walkFileTree(this.root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    sizes.put(file, attrs.size());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        //smallest files first, so the budget holds as many files as possible and only the largest are mapped
+        List<Path> files = new ArrayList<>(sizes.keySet());
+        files.sort(Comparator.comparing(sizes::get));
+        Map<Path, Asset> loaded = new HashMap<>();
+        for(Path file : files) {
+            Asset asset = load(file);
+            if(asset != null) {
+                loaded.put(file, asset);
+            }
+        }
+        assets = loaded;
+        System.out.println("Loaded " + loaded.size() + " asset(s) from " + this.root);
+    }
+
+    /**
+     * Returns the response serving a file in the store, chosen by the ETag and encodings the current request
+     * accepts.
+     *
+     * @param file The absolute path of the requested file, as returned by PathCache.resolve().
+     * @return The response serving the file, or null if the file is not held by the store.
+     */
+    public HTTPResponse lookup(Path file) {
+        if(file == null || !file.startsWith(root)) {
+            return null;
+        }
+        Asset asset = assets.get(file);
+        if(asset == null) {
+            return null;
+        }
+
+        RequestContext request = RequestContext.current();
+        if(matches(request.header("If-None-Match"), asset.etag)) {
+            return asset.notModified;
+        }
+        if(asset.compressed != null && acceptsGzip(request.header("Accept-Encoding"))) {
+            return asset.compressed;
+        }
+        return asset.identity;
+    }
+
+    /**
+     * Reads a file into a direct buffer, or maps it if the budget is spent, and builds it's responses.
+     *
+     * @return The loaded file, or null if the file cannot be read or is not served from the store.
+     */
+    private Asset load(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String extension = dot >= 0 ? name.substring(dot) : "";
+        if(extension.isEmpty() || extension.equals(".md") || extension.equals(".html")) {
+            return null; //converted and served as pages
+        }
+
+        try(FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = in.size();
+            ByteBuffer content;
+            long size = 0;
+
+            synchronized (this) {
+                if(resident + length <= budget) {
+                    resident += length;
+                    size = length;
+                }
+            }
+            if(size > 0 || length == 0) {
+                content = ByteBuffer.allocateDirect((int)length);
+                while(content.hasRemaining() && in.read(content) >= 0);
+                content.flip();
+            }
+            else {
+                content = in.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            }
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(content.duplicate());
+            byte[] hash = digest.digest();
+            StringBuilder etag = new StringBuilder(ETAG_LENGTH);
+            for(int i = 0; etag.length() < ETAG_LENGTH; ++i) {
+                etag.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+            }
+
+            HTTPResponse identity = HTTPResponse.newResponse(extension, content, HTTPResponse.PROTOCOL.HTTP)
+                    .header("ETag", "\"" + etag + "\"")
+                    .header("Cache-Control", CACHE_CONTROL);
+
+            HTTPResponse compressed = null;
+            if(size > 0 && COMPRESSIBLE.contains(extension)) {
+                ByteBuffer gzip = compress(content);
+                if(gzip.remaining() < length) {
+                    synchronized (this) {
+                        resident += gzip.remaining();
+                        size += gzip.remaining();
+                    }
+                    compressed = HTTPResponse.newResponse(extension, gzip, HTTPResponse.PROTOCOL.HTTP)
+                            .header("ETag", "\"" + etag + "-gzip\"")
+                            .header("Cache-Control", CACHE_CONTROL)
+                            .header("Content-Encoding", "gzip")
+                            .header("Vary", "Accept-Encoding");
+                    identity.header("Vary", "Accept-Encoding");
+                }
+            }
+
+            HTTPResponse notModified = new HTTPResponse(HTTPResponse.contentType(extension), "Not Modified", 304,
+                    HTTPResponse.PROTOCOL.HTTP)
+                    .header("ETag", "\"" + etag + "\"")
+                    .header("Cache-Control", CACHE_CONTROL);
+            return new Asset(etag.toString(), identity, compressed, notModified, size, size == 0 && length > 0);
+        }
+        catch (IOException | NoSuchAlgorithmException e) {
+            System.err.println("--LOG--\nError loading asset " + file + "\n" + e + "\n--END LOG--");
+            return null;
+        }
+    }
+
+    /**
+     * Compresses the contents of a buffer with gzip, into a new direct buffer.
+     */
+    private static ByteBuffer compress(ByteBuffer content) throws IOException {
+        byte[] bytes = new byte[content.remaining()];
+        content.duplicate().get(bytes);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 2);
+        try(GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(bytes);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(compressed.size());
+        buffer.put(compressed.toByteArray()).flip();
+        return buffer;
+    }
+
+    /**
+     * Checks whether an If-None-Match field lists an ETag of a file, in either encoding.
+     */
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if(ifNoneMatch == null) {
+            return false;
+        }
+
+        for(String tag : ifNoneMatch.split(",")) {
+            tag = tag.strip();
+            if(tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if(tag.equals("*") || tag.equals("\"" + etag + "\"") || tag.equals("\"" + etag + "-gzip\"")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether an Accept-Encoding field allows gzip, i.e. lists it without a quality of 0.
+     */
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if(acceptEncoding == null) {
+            return false;
+        }
+
+        for(String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            if(parts[0].strip().equalsIgnoreCase("gzip")) {
+                return parts.length < 2 || !parts[1].strip().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void changed(WatchEvent.Kind<?> kind, Path file) {
+        if(file != null && !file.startsWith(root)) {
+            return;
+        }
+
+        Map<Path, Asset> updated = new HashMap<>(assets);
+        if(file == null) { //changes were lost, reload every file that is still held
+            for(Path held : assets.keySet()) {
+                reload(updated, held);
+            }
+        }
+        else if(kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            updated.keySet().removeIf(held -> held.startsWith(file)); //the file, or every file in a directory
+        }
+        else if(Files.isRegularFile(file)) {
+            reload(updated, file);
+        }
+        else {
+            return; //a new directory, it's files are reported as they are found
+        }
+
+        synchronized (this) {
+            for(Map.Entry<Path, Asset> replaced : assets.entrySet()) {
+                if(updated.get(replaced.getKey()) != replaced.getValue()) {
+                    resident -= replaced.getValue().size;
+                }
+            }
+        }
+        assets = updated;
+    }
+
+    /**
+     * Loads a file again, replacing or removing it in a copy of the store.
+     */
+    private void reload(Map<Path, Asset> updated, Path file) {
+        Asset asset = Files.isRegularFile(file) ? load(file) : null;
+        if(asset != null) {
+            updated.put(file, asset);
+        }
+        else {
+            updated.remove(file);
+        }
+    }
+
+    /**
+     * Summarises the files held by the store.
+     *
+     * @return The number of files held, and the bytes held in memory.
+     */
+    public String statistics() {
+        long mapped = 0;
+        Map<Path, Asset> held = assets;
+        for(Asset asset : held.values()) {
+            if(asset.mapped) {
+                ++mapped;
+            }
+        }
+        synchronized (this) {
+            return "Assets: " + held.size() + " file(s) from " + root + ", " + resident + " of " + budget
+                    + " bytes in memory, " + mapped + " mapped";
+        }
+    }
+}
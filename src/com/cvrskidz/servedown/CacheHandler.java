@@ -1,8 +1,7 @@
 package com.cvrskidz.servedown;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
@@ -11,7 +10,8 @@ import java.util.List;
 
 /**
  * The com.cvrskidz.servedown.CacheHandler class controls reading files on disk. Creating an instance of a com.cvrskidz.servedown.CacheHandler will
- * read a file from disk. This operation could fail, causing the contents of the com.cvrskidz.servedown.CacheHandler to be empty.
+ * locate a file on disk, which is transferred directly from disk to the client as the response is written.
+ * This operation could fail, causing the contents of the com.cvrskidz.servedown.CacheHandler to be empty.
  *<p><br>
  * The com.cvrskidz.servedown.CacheHandler also contains methods to read a file as bytes, rather than text. Which has less overhead.
  * This is encoded as base64.
@@ -23,17 +23,25 @@ public class CacheHandler extends FileHandler{
     public CacheHandler(String path){
         super(path);
 
-        if(!hadError() && checkCache()) {
-            try{
-                    contents = readFile(extension);
-            }
-            catch (IOException e) {
-                System.err.println("--LOG--\nError reading file\n" + e.toString() + "\n--END LOG--");
-                error = true;
-            }
+        if(hadError() || !checkCache()) {
+            error = true;
         }
     }
 
+    /**
+     * Returns a response sending the assigned file, without reading it into memory.
+     *
+     * @return A com.cvrskidz.servedown.HTTPResponse to be sent to a client
+     */
+    @Override
+    public HTTPResponse getResponse() {
+        if(hadError()) {
+            return super.getResponse();
+        }
+
+        return HTTPResponse.newResponse(extension, file.getFile(), file.getSize(), HTTPResponse.PROTOCOL.HTTP);
+    }
+
     /**
      * Checks whether the given extension is listed as a supported image file type.
      *
@@ -52,15 +60,14 @@ public class CacheHandler extends FileHandler{
      * @throws IOException If there is an error reading the file.
      */
     public static String readFileBytes(String path) throws IOException {
-        String root = Server.path.isEmpty() ? Path.of(".").toAbsolutePath().toString() : Server.path; //path to servers content root
-        path = root + path; //full path to image
-        System.out.println("Reading " + path);
-        FileInputStream file = new FileInputStream(new File(path)); //open file stream
-
-        byte bytes[] = Base64.getEncoder().encode(file.readAllBytes()); //encodes bytes as base64
+        Path file = Site.current().pathCache.resolve(path); //full path to image
+        if(file == null) {
+            throw new IOException("Path is outside of the content root: " + path);
+        }
+        System.out.println("Reading " + file);
 
-        file.close();
-        return new String(bytes); //convert array of bytes to a string.
+        byte bytes[] = Base64.getEncoder().encode(Files.readAllBytes(file)); //encodes bytes as base64
+        return new String(bytes, StandardCharsets.US_ASCII); //convert array of bytes to a string.
     }
 
     /**
@@ -69,11 +76,6 @@ public class CacheHandler extends FileHandler{
      * @return True if the file s on disk, false otherwise.
      */
     protected boolean checkCache() {
-        if(Files.exists(Path.of(cwd + directoryname + filename + extension))) {
-            return true;
-        }
-        else {
-            return false;
-        }
+        return file != null && file.isFile();
     }
 }
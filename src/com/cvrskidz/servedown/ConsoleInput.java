@@ -8,11 +8,38 @@ import java.util.Scanner;
  * <p>
  * Provided commands:
  * <ul>
- * <li> "stop" - Stops all com.cvrskidz.servedown.Server instances listening on the open port by setting com.cvrskidz.servedown.Server.listening to false.
+ * <li> "stop" - Stops accepting connections, and stops the server once the requests in flight have been answered (see com.cvrskidz.servedown.Server.stop()).
+ * <li> "tls" - Prints the number of full and resumed TLS handshakes, and their mean duration.
+ * <li> "timeouts" - Prints the number of pending connection deadlines, and the number of connections closed for missing each.
+ * <li> "assets" - Prints the number of files held by the asset store, and the memory they use.
+ * <li> "shared" - Prints the number of pages read from the shared cache, and converted by this server.
+ * <li> "images" - Prints the number of resized images held in memory, and the number read from disk and generated.
+ * <li> "pages" - Prints the number of converted pages cached, the space they use, and the memory used on and off the heap.
+ * <li> "trace" - Prints the number of slow requests, and the number written to the trace log.
+ * <li> "caches" - Prints the size and hit rate of every cache of every site, the busy HTTP/2 workers and the requests in flight.
+ * <li> "flush {path}" - Removes the cached metadata and pages of every file below a request path.
+ * <li> "warm {path}" - Converts the stale pages below a request path, and loads every page below it into memory.
+ * <li> "workers {n}" - Sets the most HTTP/2 streams answered at once.
+ * <li> "compile on|off" - Converts markdown on every request, or only when it's page is stale.
+ * <li> "timing on|off" - Sends a Server-Timing field with each response, and records the time taken to serve each page.
+ * <li> "slow {n}" - Prints the n pages with the longest mean time to serve, 10 by default.
  * <p>
- * The com.cvrskidz.servedown.ConsoleInput class does not react to unspecified input.
+ * Commands other than "stop" are also available over JMX, through com.cvrskidz.servedown.ServerControl. Commands on
+ * a single cache or path apply to the default site. The com.cvrskidz.servedown.ConsoleInput class does not react
+ * to unspecified input.
  */
 public class ConsoleInput implements Runnable {
+    private final ServerControl control;
+
+    /**
+     * Returns a new console reader.
+     *
+     * @param control The controller of the server, which runs each command.
+     */
+    public ConsoleInput(ServerControl control) {
+        this.control = control;
+    }
+
     @Override
     public void run(){
         Scanner in = new Scanner(System.in);
@@ -25,10 +52,79 @@ public class ConsoleInput implements Runnable {
                 System.err.println(e); //print an error if no input can be detected on enter
             }
 
+            if (command.equals("tls")) {
+                System.out.println(TLSListener.statistics());
+            }
+
+            if (command.equals("timeouts")) {
+                System.out.println(Server.timeouts.statistics());
+            }
+
+            if (command.equals("assets")) {
+                System.out.println(Site.current().assetStore.statistics());
+            }
+
+            if (command.equals("shared") && Server.sharedCache != null) {
+                System.out.println(Server.sharedCache.statistics());
+            }
+
+            if (command.equals("images")) {
+                System.out.println(Site.current().images.statistics());
+            }
+
+            if (command.equals("pages") && Site.current().pageCache != null) {
+                System.out.println(Site.current().pageCache.statistics());
+            }
+
+            if (command.equals("trace") && Server.trace != null) {
+                System.out.println(Server.trace.statistics());
+            }
+
+            String argument = command.indexOf(' ') < 0 ? "" : command.substring(command.indexOf(' ') + 1).trim();
+
+            if (command.equals("caches")) {
+                System.out.println(control.getCaches());
+            }
+
+            if (command.startsWith("flush ")) {
+                System.out.println(control.flush(argument));
+            }
+
+            if (command.startsWith("warm ")) {
+                System.out.println(control.warm(argument));
+            }
+
+            if (command.startsWith("workers ")) {
+                try {
+                    control.setStreamWorkers(Integer.parseInt(argument));
+                }
+                catch (NumberFormatException e) {
+                    System.out.println("Expected a number of workers: " + argument);
+                }
+            }
+
+            if (command.equals("compile on") || command.equals("compile off")) {
+                control.setCompileOnRequest(argument.equals("on"));
+            }
+
+            if (command.equals("timing on") || command.equals("timing off")) {
+                control.setServerTiming(argument.equals("on"));
+            }
+
+            if (command.equals("slow") || command.startsWith("slow ")) {
+                try {
+                    for(String page : control.slowPages(argument.isEmpty() ? 10 : Integer.parseInt(argument))) {
+                        System.out.println(page);
+                    }
+                }
+                catch (NumberFormatException e) {
+                    System.out.println("Expected a number of pages: " + argument);
+                }
+            }
+
             if (command.toString().equals("stop")) {
                 in.close();
-                Server.listening = false; //stop Servers
-                System.exit(0); //exi program with no errors
+                control.stop(); //stop Servers once requests in flight are answered
                 break;
             }
         }
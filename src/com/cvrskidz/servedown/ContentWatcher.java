@@ -0,0 +1,157 @@
+package com.cvrskidz.servedown;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * The com.cvrskidz.servedown.ContentWatcher class watches the servers content root, and every directory below it,
+ * for files that are created, modified or deleted. Each change is passed to the registered listeners on the
+ * watchers own thread, allowing caches and indexes to be updated one file at a time rather than rescanning
+ * the content root.
+ * <p>
+ * Listeners are passed a null file if changes were lost (the watch service overflowed), and should treat this
+ * as a change to every file.
+ */
+public class ContentWatcher implements Runnable {
+    /**
+     * A callback for changes below the content root.
+     */
+    public interface Listener {
+        /**
+         * Called once for each change to a file or directory below the content root.
+         *
+         * @param kind ENTRY_CREATE, ENTRY_MODIFY or ENTRY_DELETE
+         * @param file The absolute path of the changed file, or null if changes were lost.
+         */
+        void changed(WatchEvent.Kind<?> kind, Path file);
+    }
+
+    private final Path root; //the directory being watched
+    private final WatchService service;
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>(); //the directory of each registered key
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private Thread thread;
+
+    /**
+     * Returns a new watcher registered to every directory below the supplied root. Changes are not
+     * reported until the watcher is started.
+     *
+     * @param root The directory to watch.
+     * @throws IOException If the directories cannot be registered with the file system.
+     */
+    public ContentWatcher(Path root) throws IOException {
+        this.root = root;
+        service = root.getFileSystem().newWatchService();
+        register(root);
+    }
+
+    /**
+     * Adds a listener to be notified of changes.
+     *
+     * @param listener The listener to add.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Starts watching for changes on a new daemon thread, working for the site whose content root is watched.
+     *
+     * @param site The site notified of changes.
+     */
+    public void start(Site site) {
+        thread = new Thread(() -> {
+            Site.enter(site); //listeners update the caches of the site
+            run();
+        }, "content-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            }
+            catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Path directory = directories.get(key);
+            for(WatchEvent<?> event : key.pollEvents()) {
+                if(event.kind() == OVERFLOW || directory == null) {
+                    notifyListeners(OVERFLOW, null);
+                    continue;
+                }
+
+                Path file = directory.resolve((Path)event.context());
+                if(event.kind() == ENTRY_CREATE && Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+                    try {
+                        register(file);
+                    }
+                    catch (IOException e) {
+                        System.err.println("--LOG--\nError watching directory " + file + "\n" + e + "\n--END LOG--");
+                    }
+                }
+                notifyListeners(event.kind(), file);
+            }
+
+            if(!key.reset()) {
+                directories.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Registers a directory and all directories below it. Files found in a directory registered after the
+     * watcher started are reported as created, as they may have been written before the directory was watched.
+     */
+    private void register(Path start) throws IOException {
+        boolean running = thread != null;
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                directories.put(dir.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if(running) {
+                    notifyListeners(ENTRY_CREATE, file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void notifyListeners(WatchEvent.Kind<?> kind, Path file) {
+        for(Listener listener : listeners) {
+            try {
+                listener.changed(kind, file);
+            }
+            catch (RuntimeException e) {
+                System.err.println("--LOG--\nError handling change to " + file);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A getter method to access the directory being watched.
+     *
+     * @return The value of this.root
+     */
+    public Path getRoot() {
+        return root;
+    }
+}
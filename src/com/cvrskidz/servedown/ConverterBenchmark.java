@@ -0,0 +1,108 @@
+package com.cvrskidz.servedown;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The com.cvrskidz.servedown.ConverterBenchmark class measures the memory allocated and the time taken to convert
+ * a large page of markdown, both with a new com.cvrskidz.servedown.MarkdownConverter for each conversion and with
+ * the reused converter of the thread.
+ * <p>
+ * Memory is measured as the bytes allocated by the converting thread per KB of markdown, after WARM_UP conversions
+ * and averaged over RUNS conversions. Each conversion encodes the page to UTF-8, as it is before it is sent.
+ * <p>
+ * Run with: java -cp build com.cvrskidz.servedown.ConverterBenchmark [--page {markdown file}] [--size {kilobytes}]
+ * <br>Without --page a page of mixed markdown, --size KB large (871 by default), is generated.
+ */
+public class ConverterBenchmark {
+    private static final int WARM_UP = 5; //untimed conversions before measuring
+    private static final int RUNS = 10; //measured conversions, averaged
+    private static final int SIZE = 871; //kilobytes of markdown to generate by default
+
+    private static final String[] STYLES = {"/.assets/page.css"};
+    private static final String[] SCRIPTS = {"/.assets/page.js"};
+    private static final String[] PROCS = {"hljs.initHighlightingOnLoad();"};
+
+    //a section of every element the converter supports, repeated to build the page
+    private static final String SECTION = "# Section %d with **bold** and `code`\n"
+            + "Some paragraph text with *italic*, **bold**, ==highlighted== and `x < y * 2` inline code.\n"
+            + "Another line of the same paragraph with a [link](http://example.com) and [two](/two) links.\n\n"
+            + "## Lists\n- item one\n- item **two**\n  - nested *a*\n  - nested b\n    - deeper\n- back to top\n"
+            + "* star item\n\n> a quote line\n> another quote\n\n---\n\n"
+            + "| Col A | Col B | Math |\n|---|---|---|\n| a1 | **b1** | $x|y$ |\n| a2 | `b2` | $$z$$ |\n"
+            + "| a3 | [l](/x) | plain |\n\n"
+            + "```python\ndef f(x):\n    return x < 3 and x > 1\n```\n\n```\nplain <block>\n```\n\n"
+            + "Escaped \\*star\\* text and math $a^2 + b^2$.\n![alt](/missing.png) an image.\n"
+            + "### Heading three\n#### Four ####\n\n"
+            + "Paragraph with **bold** and `code` text, long enough to wrap in a browser window.\n\n".repeat(10);
+
+    /**
+     * Converts the page with each converter, printing the memory allocated and the time taken.
+     *
+     * @param args Optionally --page {markdown file} or --size {kilobytes}.
+     * @throws Exception If the page cannot be read, or the content root of the site the page is converted for
+     * cannot be created.
+     */
+    public static void main(String[] args) throws Exception {
+        String markdown = null;
+        int size = SIZE;
+        for(int i = 0; i < args.length; ++i) {
+            if(args[i].equals("--page")) {
+                markdown = Files.readString(Path.of(args[++i]));
+            }
+            else if(args[i].equals("--size")) {
+                size = Integer.parseInt(args[++i]);
+            }
+        }
+        if(markdown == null) {
+            markdown = generate(size << 10);
+        }
+
+        //images in the page are resolved against the content root of a site
+        Server.defaultSite = new Site("", Files.createTempDirectory("servedown-benchmark"), Server.defaultFile,
+                false, 0, 1 << 20, 1 << 20);
+
+        String page = markdown;
+        System.out.printf("Converting %d KB of markdown, %d times%n", page.length() >> 10, RUNS);
+        measure("new converter", page, () -> new MarkdownConverter(page, "benchmark", STYLES, SCRIPTS, PROCS)
+                .toString().getBytes(StandardCharsets.UTF_8));
+        measure("reused converter", page, () -> MarkdownConverter.forThread()
+                .convert(page, "benchmark", STYLES, SCRIPTS, PROCS).getBytes());
+    }
+
+    /**
+     * Builds a page of markdown from numbered copies of SECTION.
+     *
+     * @param length The number of characters to generate, at least.
+     */
+    private static String generate(int length) {
+        StringBuilder page = new StringBuilder(length + SECTION.length() * 2);
+        for(int i = 0; page.length() < length; ++i) {
+            page.append(String.format(SECTION, i));
+        }
+        return page.toString();
+    }
+
+    private static void measure(String name, String markdown, Runnable conversion) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        for(int i = 0; i < WARM_UP; ++i) {
+            conversion.run();
+        }
+
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for(int i = 0; i < RUNS; ++i) {
+            conversion.run();
+        }
+        long time = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+        System.out.printf("%-18s %8.1f KB allocated per KB of markdown %8.1f ms per conversion%n", name,
+                allocated / (double) RUNS / markdown.length(), time / 1e6 / RUNS);
+    }
+}
@@ -0,0 +1,99 @@
+package com.cvrskidz.servedown;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * The com.cvrskidz.servedown.EarlyHints class builds the Link fields preloading the dependencies of a converted
+ * page: it's stylesheets and scripts, and the first images it shows. Browsers otherwise only find these once they
+ * have parsed the page.
+ * <p>
+ * The links are sent with every response serving a page, and in a 103 Early Hints response sent before a page is
+ * converted (see RequestContext.earlyHints()), so the browser loads them whilst the conversion runs. The images of a
+ * page are read from the dependencies recorded by com.cvrskidz.servedown.OutputStore when it was last converted, so
+ * a page converted for the first time only preloads it's stylesheets and scripts.
+ */
+public class EarlyHints {
+    private static final int IMAGES = 2; //images preloaded for each page, the first are the likeliest to be seen
+
+    /**
+     * Returns the links preloading the dependencies of a page.
+     *
+     * @param source The absolute path of the markdown file the page is converted from.
+     * @return The value of a Link field, or an empty string if the page has nothing to preload.
+     */
+    public static String links(Path source) {
+        StringBuilder links = new StringBuilder();
+        for(String ref : HTMLHandler.styles()) {
+            append(links, ref, "style");
+        }
+        for(String ref : HTMLHandler.scripts()) {
+            append(links, ref, "script");
+        }
+
+        String images = Server.inlineImages ? "" : Site.current().outputStore.preloads(source);
+        if(!images.isEmpty()) {
+            links.append(links.length() == 0 ? "" : ", ").append(images);
+        }
+        return links.toString();
+    }
+
+    /**
+     * Returns the links preloading the first images of a page, matching the src and srcset of each image in the
+     * page so the preloaded image is the one the browser chooses.
+     *
+     * @param dependencies The files the page was converted from, relative to the content root, in the order they
+     *                     appear in the page.
+     * @return The value of a Link field, or an empty string if the page shows no local images.
+     */
+    static String images(List<String> dependencies) {
+        StringBuilder links = new StringBuilder();
+        int preloaded = 0;
+        for(String dependency : dependencies) {
+            String path = "/" + dependency;
+            String extension = path.substring(Math.max(0, path.lastIndexOf('.')));
+            if(preloaded >= IMAGES || !ImageResizer.isResizable(extension) || !isLinkable(path)) {
+                continue;
+            }
+
+            Path file = Site.current().pathCache.resolve(path);
+            int[] size = file == null ? null : ImageResizer.dimensions(file);
+            if(size == null) {
+                continue;
+            }
+            links.append(links.length() == 0 ? "" : ", ").append('<').append(ImageResizer.src(path, size[0]))
+                    .append(">; rel=preload; as=image");
+            String srcset = ImageResizer.srcset(path, size[0]);
+            if(srcset != null) {
+                links.append("; imagesrcset=\"").append(srcset).append("\"; imagesizes=\"")
+                        .append(ImageResizer.SIZES).append('"');
+            }
+            ++preloaded;
+        }
+        return links.toString();
+    }
+
+    /**
+     * Appends a link to a stylesheet or script, if it is served by this server.
+     */
+    private static void append(StringBuilder links, String ref, String type) {
+        if(ref.startsWith("/") && !ref.startsWith("//") && isLinkable(ref)) { //bundled by the sites asset pipeline
+            links.append(links.length() == 0 ? "" : ", ").append('<').append(ref).append(">; rel=preload; as=")
+                    .append(type);
+        }
+    }
+
+    /**
+     * Checks whether a path can be written in a Link field as it is, without spaces, quotes or other characters
+     * that would need escaping.
+     */
+    private static boolean isLinkable(String path) {
+        for(int i = 0; i < path.length(); ++i) {
+            char c = path.charAt(i);
+            if(c <= ' ' || c >= 0x7F || c == '<' || c == '>' || c == '"' || c == ',' || c == ';') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,6 +1,6 @@
 package com.cvrskidz.servedown;
 
-import java.io.*;
+import java.io.IOException;
 import java.nio.file.*;
 import java.util.Arrays;
 import java.util.List;
@@ -11,11 +11,18 @@ import java.util.List;
  */
 public class FileHandler {
     private static final List<String> HTML_EXTENSIONS = Arrays.asList(new String[]{".html", ".md"}); //valid file extensions to return html
+    private static final FileHandler MISSING = new FileHandler(); //shared handler for paths known not to exist
+
+    static {
+        MISSING.error = true;
+    }
 
     //response members
-    protected String contents;
+    protected byte[] contents;
     protected boolean error;
-    protected String filename, directoryname, cwd, extension; //file properties
+    protected RateLimiter.Budget limited; //set to the budget the client exceeded, if the request was rate limited
+    protected String filename, directoryname, extension; //file properties
+    protected PathCache.Entry file; //metadata of the requested file
 
     /**
      * Creates an instance of a com.cvrskidz.servedown.FileHandler, processing the supplied path. If their is an error
@@ -26,47 +33,105 @@ public class FileHandler {
      * @return A com.cvrskidz.servedown.FileHandler containing the contents of the requested.
      */
     public static FileHandler newHandler(String path) {
+        String query = "";
+        int queryStart = path.indexOf('?');
+        if(queryStart >= 0) { //separate the query string from the requested file
+            query = path.substring(queryStart + 1);
+            path = path.substring(0, queryStart);
+        }
+
+        if(path.equals(SearchHandler.ENDPOINT)) {
+            return new SearchHandler(query);
+        }
+        if(path.startsWith(AssetPipeline.PREFIX)) {
+            return new AssetHandler(Site.current().assets.lookup(path));
+        }
+        if(path.startsWith(ImageResizer.PREFIX)) {
+            return new AssetHandler(Site.current().images.lookup(path));
+        }
+        if(path.equals(SiteIndex.NAVIGATION)) {
+            return new AssetHandler(Site.current().siteIndex.navigation());
+        }
+        HTTPResponse sitemap; //the generated sitemap, unless the site has it's own
+        if(path.equals(SiteIndex.SITEMAP) && (sitemap = Site.current().siteIndex.sitemap()) != null) {
+            return new AssetHandler(sitemap);
+        }
+
+        Site site = Site.current();
+        if(site.missingPaths.contains(path)) { //answer known 404s without accessing the file system
+            return MISSING;
+        }
+
+        long generation = site.missingPaths.generation();
+        String requested = path;
         path = sanitize(path);
         String extension = path.substring(path.lastIndexOf("."), path.length());
+        FileHandler handler;
+        HTTPResponse stored; //the response held by the sites asset store, if any
+        Path file = site.pathCache.resolve(path);
 
+        if(file != null && site.isServerFile(file)) { //the output store and search index are not served
+            site.missingPaths.add(requested, generation);
+            return MISSING;
+        }
         if (HTML_EXTENSIONS.contains(extension)) {
-            return new HTMLHandler(path, Server.compileFlag);
+            handler = new HTMLHandler(path, Server.compileFlag || site.compile);
+        }
+        else if((stored = site.assetStore.lookup(file)) != null) {
+            return new AssetHandler(stored);
         }
         else {
-            return new CacheHandler(path);
+            handler = new CacheHandler(path);
+        }
+
+        if(handler.hadError() && (handler.file == null || !handler.file.isFile())) {
+            site.missingPaths.add(requested, generation);
         }
+        return handler;
     }
 
     /**
      * Default constructor for all FileHandlers, without specific functionality for reading
      * HTML or cached files.
      *
-     * @param path The path of the file to read.
+     * @param path The path of the file to read, as returned by sanitize().
      */
     public FileHandler(String path) {
-        path = sanitize(path);
+        long resolving = RequestContext.clock();
         extractLocations(path);
 
         if(!checkPath(path)) {
             error = true;
         }
+        RequestContext.span(RequestContext.Stage.RESOLVE, resolving);
+    }
+
+    /**
+     * Constructor for FileHandlers that generate their response, rather than reading a file.
+     */
+    protected FileHandler() {
     }
 
     /**
      * Prepares a path to be used by all com.cvrskidz.servedown.FileHandler instances.
      * <p>
      * All / are replaced with \ and the default file is appended to paths not specifying a file.
-     * All files without file extensions are treated as markdown files.
+     * All files without file extensions are treated as markdown files. The returned path always begins
+     * with \ and contains a '.' after the last \.
      *
      * @param path The path to sanitize.
      * @return A properly formatted path.
      */
     private static String sanitize(String path) {
         path = path.replace('/', '\\');
+        if(!path.startsWith("\\")) {
+            path = "\\" + path;
+        }
+
         if(path.lastIndexOf("\\") == path.length()-1) { // e.g. example.com\Images\Nature\
-            path += Server.defaultFile;
+            path += Site.current().defaultFile;
         }
-        else if(!path.contains(".")) { //if the type of file is not specified
+        else if(path.indexOf('.', path.lastIndexOf("\\")) < 0) { //if the type of file is not specified
             path = path + ".md";
         }
 
@@ -79,7 +144,6 @@ public class FileHandler {
      * <li>The directoryname member is assigned the name of the directory containing the requested file.
      * <li>The filename member is assigned the name of the requested file.
      * <li>The extension member is assigned the file type.
-     * <li>The cwd member is assigned the path to the servers content root.
      *
      * @param path The path to the file in the required format
      */
@@ -88,39 +152,46 @@ public class FileHandler {
         directoryname = path.substring(0, delimiterLocation);
         filename = path.substring(delimiterLocation, path.lastIndexOf("."));
         extension = path.substring(path.lastIndexOf("."), path.length());
-        cwd = Server.path.isEmpty() ? Path.of(".").toAbsolutePath().toString() : Server.path;
     }
 
     /**
-     * Confirms the supplied file path can be read.
+     * Confirms the supplied file path can be read, using the metadata cached by the sites path cache.
      *
      * @param path The path to the requested file.
      * @return True if the file is able to be read, else False
      */
     private boolean checkPath(String path) {
-        if(Files.isRegularFile(Path.of(cwd + path))) {
-            return true;
+        PathCache paths = Site.current().pathCache;
+        Path resolved = paths.resolve(path);
+        if(resolved == null) { //outside of the content root
+            return false;
         }
-        return false;
+
+        file = paths.stat(resolved);
+        return file.isFile();
+    }
+
+    /**
+     * Returns the cached metadata of a file in the same directory and with the same name as the assigned file.
+     *
+     * @param extension The extension of the file.
+     * @return The metadata of the file, which may not exist.
+     */
+    protected PathCache.Entry sibling(String extension) {
+        PathCache paths = Site.current().pathCache;
+        return paths.stat(paths.resolve(directoryname + filename + extension));
     }
 
     /**
-     * Returns the contents of the file the com.cvrskidz.servedown.FileHandler is assigned.
+     * Returns the contents of the file the com.cvrskidz.servedown.FileHandler is assigned, as they are stored on disk.
      *
      * @param extension The extension of the file.
      * @return The contents of the assigned file.
      * @throws IOException If there is an error reading the assigned file.
      */
-    protected String readFile(String extension) throws IOException {
+    protected byte[] readFile(String extension) throws IOException {
         System.out.println("Reading: " + filename);
-        FileReader file = new FileReader(cwd + directoryname + filename + extension);
-        StringBuilder contents = new StringBuilder();
-
-        int cBuffer = 0;
-        while((cBuffer = file.read()) != -1) {
-            contents.append((char)cBuffer);
-        }
-        return contents.toString();
+        return Files.readAllBytes(sibling(extension).getFile());
     }
 
     /**
@@ -138,7 +209,7 @@ public class FileHandler {
      *
      * @return The value of this.contents
      */
-    public String getContents() {
+    public byte[] getContents() {
         return contents;
     }
 
@@ -151,11 +222,14 @@ public class FileHandler {
      * @return A com.cvrskidz.servedown.HTTPResponse to be sent to a client
      * @see HTTPResponse
      */
-    public String getResponse() {
+    public HTTPResponse getResponse() {
+        if(limited != null) {
+            return HTTPResponse.tooManyRequests(Server.rateLimiter.retryAfter(limited), HTTPResponse.PROTOCOL.HTTP);
+        }
         if(hadError()) {
-            return new HTTPResponse("text/html", "NOT FOUND", 404, HTTPResponse.PROTOCOL.HTTP).toString();
+            return HTTPResponse.NOT_FOUND;
         }
 
-        return HTTPResponse.newResponse(extension, contents, HTTPResponse.PROTOCOL.HTTP).toString();
+        return HTTPResponse.newResponse(extension, contents, HTTPResponse.PROTOCOL.HTTP);
     }
 }
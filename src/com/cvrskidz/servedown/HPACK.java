@@ -0,0 +1,396 @@
+package com.cvrskidz.servedown;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The com.cvrskidz.servedown.HPACK class implements the header compression used by HTTP/2 (RFC 7541). Each HTTP/2
+ * connection has a Decoder for the header blocks it receives and an Encoder for the header blocks it sends, each
+ * holding the dynamic table for their direction of the connection.
+ * <p>
+ * The Encoder does not use Huffman coding, instead it compresses headers repeated between responses (such as the
+ * server name and content types) by adding them to the dynamic table, so they are sent as a single byte after their
+ * first use on a connection.
+ */
+public class HPACK {
+    /**
+     * Thrown when a header block cannot be decoded, which is a connection error in HTTP/2.
+     */
+    public static class CompressionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public CompressionException(String message) {
+            super(message);
+        }
+    }
+
+    //the static table, index 0 is unused as indexes begin at 1
+    private static final String[][] STATIC_TABLE = {
+            {"", ""}, {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+            {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+            {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"}, {":status", "404"},
+            {":status", "500"}, {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+            {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+            {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""},
+            {"content-length", ""}, {"content-location", ""}, {"content-range", ""}, {"content-type", ""},
+            {"cookie", ""}, {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""},
+            {"host", ""}, {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+            {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""},
+            {"max-forwards", ""}, {"proxy-authenticate", ""}, {"proxy-authorization", ""}, {"range", ""},
+            {"referer", ""}, {"refresh", ""}, {"retry-after", ""}, {"server", ""}, {"set-cookie", ""},
+            {"strict-transport-security", ""}, {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""},
+            {"via", ""}, {"www-authenticate", ""}
+    };
+    private static final int ENTRY_OVERHEAD = 32; //bytes added to the size of each dynamic table entry
+
+    //Huffman code of each byte value, and the length of each code in bits (RFC 7541 Appendix B)
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+
+    //decoding tree, TREE[node * 2 + bit] is the next node, or -(symbol + 1) for a leaf, or 0 for an invalid code
+    private static final int[] TREE = new int[1024];
+
+    static {
+        int next = 1;
+        for(int symbol = 0; symbol < HUFFMAN_CODES.length; ++symbol) {
+            int node = 0;
+            for(int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; --bit) {
+                int i = node * 2 + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+                if(bit == 0) {
+                    TREE[i] = -(symbol + 1);
+                }
+                else {
+                    if(TREE[i] == 0) {
+                        TREE[i] = next++;
+                    }
+                    node = TREE[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * The entries added to the compression context of one direction of a connection, newest entry last.
+     */
+    private static class DynamicTable {
+        final List<String[]> entries = new ArrayList<>();
+        int size, maxSize;
+
+        DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        String[] get(int index) { //index relative to the end of the static table, 0 being the newest entry
+            return entries.get(entries.size() - 1 - index);
+        }
+
+        void add(String name, String value) {
+            int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+            if(entrySize > maxSize) { //an entry larger than the table empties it
+                entries.clear();
+                size = 0;
+                return;
+            }
+            size += entrySize;
+            entries.add(new String[] {name, value});
+            evict();
+        }
+
+        void resize(int maxSize) {
+            this.maxSize = maxSize;
+            evict();
+        }
+
+        void evict() {
+            while(size > maxSize) {
+                String[] oldest = entries.remove(0);
+                size -= oldest[0].length() + oldest[1].length() + ENTRY_OVERHEAD;
+            }
+        }
+    }
+
+    /**
+     * Decodes the header blocks received on a connection.
+     */
+    public static class Decoder {
+        private final DynamicTable table;
+        private final int maxTableSize; //the largest table the peer may ask for, as sent in our settings
+
+        /**
+         * @param maxTableSize The header table size sent to the peer in the SETTINGS_HEADER_TABLE_SIZE setting.
+         */
+        public Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            this.table = new DynamicTable(maxTableSize);
+        }
+
+        /**
+         * Decodes a complete header block, updating the dynamic table.
+         *
+         * @param block The header block, from a HEADERS frame and any CONTINUATION frames following it.
+         * @return The name and value of each header, in order.
+         * @throws CompressionException If the block is malformed.
+         */
+        public List<String[]> decode(ByteBuffer block) throws CompressionException {
+            List<String[]> headers = new ArrayList<>();
+
+            try {
+                while(block.hasRemaining()) {
+                    int first = block.get() & 0xFF;
+
+                    if((first & 0x80) != 0) { //indexed header field
+                        headers.add(lookup(readInteger(block, first, 7)));
+                    }
+                    else if((first & 0x40) != 0) { //literal with incremental indexing
+                        String[] header = readLiteral(block, first, 6);
+                        table.add(header[0], header[1]);
+                        headers.add(header);
+                    }
+                    else if((first & 0x20) != 0) { //dynamic table size update
+                        int size = readInteger(block, first, 5);
+                        if(size > maxTableSize) {
+                            throw new CompressionException("Table size " + size + " exceeds " + maxTableSize);
+                        }
+                        table.resize(size);
+                    }
+                    else { //literal without indexing, or never indexed
+                        headers.add(readLiteral(block, first, 4));
+                    }
+                }
+            }
+            catch (RuntimeException e) { //buffer underflow or an index out of range
+                throw new CompressionException("Malformed header block: " + e);
+            }
+
+            return headers;
+        }
+
+        private String[] lookup(int index) throws CompressionException {
+            if(index <= 0) {
+                throw new CompressionException("Invalid index " + index);
+            }
+            if(index < STATIC_TABLE.length) {
+                return STATIC_TABLE[index];
+            }
+            return table.get(index - STATIC_TABLE.length);
+        }
+
+        private String[] readLiteral(ByteBuffer block, int first, int prefix) throws CompressionException {
+            int index = readInteger(block, first, prefix);
+            String name = index == 0 ? readString(block) : lookup(index)[0];
+            return new String[] {name, readString(block)};
+        }
+    }
+
+    /**
+     * Encodes the header blocks sent on a connection.
+     */
+    public static class Encoder {
+        private static final int DEFAULT_TABLE_SIZE = 4096;
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+        private int pendingSize = -1; //a table size to signal at the start of the next block, if not -1
+
+        /**
+         * Limits the size of the dynamic table to the SETTINGS_HEADER_TABLE_SIZE setting sent by the peer.
+         *
+         * @param size The maximum size of the peers decoding table.
+         */
+        public void setMaxTableSize(int size) {
+            size = Math.min(size, DEFAULT_TABLE_SIZE);
+            if(size != table.maxSize) {
+                table.resize(size);
+                pendingSize = size;
+            }
+        }
+
+        /**
+         * Encodes a single header field. Fields must be encoded in the order their blocks are sent.
+         *
+         * @param out The header block being written.
+         * @param name The name of the field, in lower case.
+         * @param value The value of the field.
+         * @param index True to add the field to the dynamic table, for values likely to be repeated.
+         */
+        public void encode(ByteArrayOutputStream out, String name, String value, boolean index) {
+            if(pendingSize >= 0) {
+                writeInteger(out, 0x20, 5, pendingSize);
+                pendingSize = -1;
+            }
+
+            int nameIndex = 0;
+            for(int i = 1; i < STATIC_TABLE.length; ++i) {
+                if(STATIC_TABLE[i][0].equals(name)) {
+                    if(STATIC_TABLE[i][1].equals(value)) {
+                        writeInteger(out, 0x80, 7, i);
+                        return;
+                    }
+                    if(nameIndex == 0) {
+                        nameIndex = i;
+                    }
+                }
+            }
+            for(int i = 0; i < table.entries.size(); ++i) {
+                String[] entry = table.get(i);
+                if(entry[0].equals(name)) {
+                    if(entry[1].equals(value)) {
+                        writeInteger(out, 0x80, 7, STATIC_TABLE.length + i);
+                        return;
+                    }
+                    if(nameIndex == 0) {
+                        nameIndex = STATIC_TABLE.length + i;
+                    }
+                }
+            }
+
+            if(index) {
+                writeInteger(out, 0x40, 6, nameIndex);
+                table.add(name, value);
+            }
+            else {
+                writeInteger(out, 0x00, 4, nameIndex);
+            }
+            if(nameIndex == 0) {
+                writeString(out, name);
+            }
+            writeString(out, value);
+        }
+    }
+
+    private static int readInteger(ByteBuffer block, int first, int prefix) throws CompressionException {
+        int max = (1 << prefix) - 1;
+        int value = first & max;
+        if(value < max) {
+            return value;
+        }
+
+        for(int shift = 0; ; shift += 7) {
+            if(shift > 28) {
+                throw new CompressionException("Integer overflow");
+            }
+            int b = block.get() & 0xFF;
+            value += (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer block) throws CompressionException {
+        int first = block.get() & 0xFF;
+        int length = readInteger(block, first, 7);
+        if(length > block.remaining()) {
+            throw new CompressionException("String length " + length + " exceeds header block");
+        }
+
+        byte[] bytes = new byte[length];
+        block.get(bytes);
+        if((first & 0x80) == 0) {
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+
+        StringBuilder decoded = new StringBuilder(length * 2);
+        int node = 0, pending = 0; //bits read since the last symbol
+        boolean ones = true; //whether the pending bits are all 1, as required of padding
+        for(byte b : bytes) {
+            for(int bit = 7; bit >= 0; --bit) {
+                int value = (b >>> bit) & 1;
+                int next = TREE[node * 2 + value];
+                if(next < 0) {
+                    decoded.append((char)(-next - 1));
+                    node = 0;
+                    pending = 0;
+                    ones = true;
+                }
+                else if(next == 0) {
+                    throw new CompressionException("Invalid Huffman code");
+                }
+                else {
+                    node = next;
+                    pending++;
+                    ones &= value == 1;
+                }
+            }
+        }
+        if(pending > 7 || !ones) {
+            throw new CompressionException("Invalid Huffman padding");
+        }
+        return decoded.toString();
+    }
+
+    private static void writeInteger(ByteArrayOutputStream out, int mask, int prefix, int value) {
+        int max = (1 << prefix) - 1;
+        if(value < max) {
+            out.write(mask | value);
+            return;
+        }
+
+        out.write(mask | max);
+        value -= max;
+        while(value >= 0x80) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.ISO_8859_1);
+        writeInteger(out, 0x00, 7, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+}
@@ -1,9 +1,14 @@
 package com.cvrskidz.servedown;
 
-import java.io.FileWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * The com.cvrskidz.servedown.HTMLHandler class is responsible for processing all file requests that should
@@ -20,8 +25,18 @@ public class HTMLHandler extends FileHandler {
             "https://polyfill.io/v3/polyfill.min.js?features=es6"
     };
 
+    //references used when code is highlighted by the server, without HighlightJS
+    private static final String[] HIGHLIGHTED_SCRIPT_REF = Arrays.copyOfRange(SCRIPT_REF, 1, SCRIPT_REF.length);
+    private static final String[] NO_PROCS = {};
+
     //flag to control the conversion of the target file
     private boolean doNotConvert;
+    private PathCache.Entry output; //the converted page, in the sites output store for markdown files
+    private String markdown; //markdown to convert as the response is sent, if the response is streamed
+    private byte[] source; //the markdown file as it was read, and it's modification time beforehand
+    private long sourceModified;
+    private HTTPResponse cached; //the response sending the page from the sites page cache, if it was cached
+    private String links = ""; //the Link field preloading the dependencies of a converted page
 
     /**
      * Returns a new instance of a com.cvrskidz.servedown.HTMLHandler object, storing the HTML
@@ -30,16 +45,36 @@ public class HTMLHandler extends FileHandler {
      * @param path The path to the file containing HTML to read, or markdown to convert.
      * @param compileFlag A manual flag to force the compilation of a markdown file.
      *                    Setting this to false does not prevent markdown files from being compiled
-     *                    if no corresponding HTML output can be found.
+     *                    if no corresponding HTML output can be found, or the output is stale.
+     *                    Clients over their conversion rate limit are served the HTML output if it exists,
+     *                    regardless of this flag. Converted markdown that is stale is served whilst it is
+     *                    converted again in the background, for up to Server.maxStale seconds (see revalidate()).
      */
     public HTMLHandler(String path, boolean compileFlag) {
         super(path);
 
         if(!hadError()) {
+            long resolving = RequestContext.clock();
+            output = outputFile();
             doNotConvert = checkCache();
+            if(extension.equals(".md")) {
+                links = EarlyHints.links(file.getFile());
+            }
+            RequestContext.span(RequestContext.Stage.RESOLVE, resolving);
 
-            if(compileFlag || !doNotConvert) {
-                serve(true);
+            if(!doNotConvert && extension.equals(".md") && output.isFile() && Server.maxStale > 0) {
+                revalidate();
+            }
+            else if(compileFlag || !doNotConvert) {
+                if(Server.rateLimiter.tryAcquire(RequestContext.current().getClient(), RateLimiter.Budget.EXPENSIVE)) {
+                    serve(true);
+                }
+                else if(output.isFile()) { //the last converted page, even if stale
+                    serve(false);
+                }
+                else {
+                    limited = RateLimiter.Budget.EXPENSIVE;
+                }
             }
             else {
                 serve(false);
@@ -48,18 +83,53 @@ public class HTMLHandler extends FileHandler {
     }
 
     /**
-     * Confirms whether a HTML file of the same name as the assigned file is present on disk.
+     * Serves the last conversion of a page that must be converted again, and converts it on a background thread
+     * so the request is not delayed. Only one conversion of a page runs at a time, however many requests find it
+     * stale. Once the page has been stale for Server.maxStale seconds, measured from when it's markdown (or an image
+     * it shows) was modified, requests wait for the conversion to finish instead.
+     */
+    private void revalidate() {
+        OutputStore store = Site.current().outputStore;
+        OutputStore.Revalidation running = store.revalidation(file.getFile());
+        if(running == null
+                && Server.rateLimiter.tryAcquire(RequestContext.current().getClient(), RateLimiter.Budget.EXPENSIVE)) {
+            running = store.revalidate(file.getFile());
+        }
+
+        if(running != null && running.isOverdue()) {
+            long waiting = RequestContext.clock();
+            running.await();
+            output = outputFile(); //replaced by the conversion
+            RequestContext.span(RequestContext.Stage.CONVERT, waiting);
+        }
+        serve(false);
+    }
+
+    /**
+     * Returns the file holding the converted page. Markdown files are converted into the sites output store, other
+     * files are served from the content root.
      *
-     * @return True if an output from compiling the assigned file is stored on disk. False otherwise.
+     * @return The metadata of the converted page, which may not exist.
      */
-    protected boolean checkCache() {
-        if(Files.exists(Path.of(cwd + directoryname + filename + ".html"))) {
-            extension = ".html";
-            return true;
+    private PathCache.Entry outputFile() {
+        if(extension.equals(".md")) {
+            Site site = Site.current();
+            return site.pathCache.stat(site.outputStore.output(file.getFile()));
         }
-        else {
+        return sibling(".html");
+    }
+
+    /**
+     * Confirms whether the converted page is present on disk, and is up to date with it's markdown file.
+     *
+     * @return True if an output from compiling the assigned file is stored on disk, and can be served.
+     *         False otherwise.
+     */
+    protected boolean checkCache() {
+        if(!output.isFile()) {
             return false;
         }
+        return !extension.equals(".md") || Site.current().outputStore.isFresh(file.getFile());
     }
 
     /**
@@ -70,7 +140,18 @@ public class HTMLHandler extends FileHandler {
     private void serve(boolean compile) {
         if(compile) {
             try {
-                contents = compile();
+                if(RequestContext.current().acceptsChunked() && Server.sharedCache == null) { //convert whilst the response is sent
+                    Path md = sibling(".md").getFile();
+                    long reading = RequestContext.clock();
+                    sourceModified = Files.getLastModifiedTime(md).toMillis();
+                    source = Files.readAllBytes(md);
+                    markdown = new String(source, StandardCharsets.UTF_8);
+                    RequestContext.span(RequestContext.Stage.READ, reading);
+                }
+                else { //the client loads the pages dependencies whilst it is converted
+                    RequestContext.current().earlyHints(links);
+                    contents = convert(sibling(".md").getFile(), output.getFile(), filename.substring(1));
+                }
                 extension = ".html";
             }
             catch (Exception e) {
@@ -81,7 +162,19 @@ public class HTMLHandler extends FileHandler {
         }
         else {
             try {
-                contents = readFile(".html");
+                extension = ".html";
+                long reading = RequestContext.clock();
+                PageCache pages = Site.current().pageCache;
+                if(pages != null && (cached = pages.get(output)) != null) {
+                    RequestContext.span(RequestContext.Stage.READ, reading);
+                    return;
+                }
+                System.out.println("Reading: " + filename);
+                contents = Files.readAllBytes(output.getFile());
+                if(pages != null) {
+                    pages.put(output, contents);
+                }
+                RequestContext.span(RequestContext.Stage.READ, reading);
             }
             catch (Exception e) {
                 System.err.println("--LOG--\nError reading file\n" + e.toString() + "\n--END LOG--");
@@ -91,22 +184,178 @@ public class HTMLHandler extends FileHandler {
     }
 
     /**
-     * Reads the contents of the assigned file into a new com.cvrskidz.servedown.MarkdownConverter, returning the
-     * contents of the markdown file as HTML.
+     * Converts a markdown file into the sites output store, used by the store to convert stale pages again.
      *
-     * @return The contents of a markdown file as HTML.
+     * @param source The absolute path of the markdown file.
+     * @return The converted page, encoded as UTF-8.
+     * @throws IOException If there is an error reading the markdown file, or writing the page.
+     */
+    static byte[] convert(Path source) throws IOException {
+        String name = source.getFileName().toString();
+        return convert(source, Site.current().outputStore.output(source), name.substring(0, name.lastIndexOf('.')));
+    }
+
+    /**
+     * Reads a markdown file into this threads com.cvrskidz.servedown.MarkdownConverter, returning the contents of the
+     * markdown file as HTML. The HTML is encoded as UTF-8 once, and the same bytes are written to disk and sent to
+     * the client. Pages already converted by another server are read from Server.sharedCache, if it exists.
+     *
+     * @param md The markdown file to convert.
+     * @param out The file to write the converted page to.
+     * @param title The title of the page.
+     * @return The contents of a markdown file as HTML, encoded as UTF-8.
      * @throws IOException If there is an error reading the target file.
      */
-    private String compile() throws IOException{
-        System.out.println("Compiling: " + filename);
-        String contents = readFile(".md");
-        String result = new MarkdownConverter(contents, filename.substring(1), STYLE_REF, SCRIPT_REF,
-                new String[] {LOAD_SYNTAX}).toString();
-
-        FileWriter out = new FileWriter(cwd + directoryname + filename + ".html");
-        out.write(result);
-        out.flush();
-        out.close();
+    private static byte[] convert(Path md, Path out, String title) throws IOException {
+        Site site = Site.current();
+        String version = site.outputStore.version();
+        long reading = RequestContext.clock();
+        long modified = Files.getLastModifiedTime(md).toMillis();
+        byte[] source = Files.readAllBytes(md);
+        RequestContext.span(RequestContext.Stage.READ, reading);
+
+        long converting = RequestContext.clock(); //includes writing the page to disk
+        SharedCache.Conversion conversion = () -> {
+            System.out.println("Compiling: " + title);
+            MarkdownConverter converter = MarkdownConverter.forThread().convert(
+                    new String(source, StandardCharsets.UTF_8), title, styles(), scripts(), procs());
+            return new SharedCache.Page(converter.getBytes(), converter.getDependencies());
+        };
+        SharedCache.Page page = Server.sharedCache == null
+                ? conversion.convert() : Server.sharedCache.get(source, title, version, conversion);
+        byte[] result = page.getHTML();
+
+        Path temp = createTemp(out);
+        try {
+            Files.write(temp, result);
+            publish(md, out, temp, modified, source, page.getDependencies(), version);
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+
+        if(site.pageCache != null) {
+            site.pageCache.put(site.pathCache.stat(out), result);
+        }
+        RequestContext.span(RequestContext.Stage.CONVERT, converting);
         return result;
     }
+
+    /**
+     * Converts the markdown read by serve() as it is sent to the client. Each block of the page is written to the
+     * client as it is converted, and to a temporary file which replaces the HTML output once the conversion is
+     * complete, so an incomplete conversion is never served from disk. The completed page is added to the sites
+     * page cache, as pages converted by convert() are.
+     *
+     * @param client The body of the response.
+     * @throws IOException If the client disconnects, or the output cannot be written.
+     */
+    private void stream(OutputStream client) throws IOException {
+        System.out.println("Compiling: " + filename.substring(1));
+        Site site = Site.current();
+        String version = site.outputStore.version();
+        Path out = output.getFile();
+        Path temp = createTemp(out);
+        ByteArrayOutputStream page = site.pageCache == null ? null : new ByteArrayOutputStream(markdown.length() * 2);
+        long converting = RequestContext.clock(); //overlaps the write stage, as each block is sent once converted
+
+        try {
+            List<String> dependencies;
+            try(OutputStream disk = Files.newOutputStream(temp)) {
+                dependencies = MarkdownConverter.convert(markdown, filename.substring(1), styles(), scripts(),
+                        procs(), html -> {
+                            byte[] bytes = html.getBytes(StandardCharsets.UTF_8);
+                            client.write(bytes);
+                            disk.write(bytes);
+                            if(page != null) {
+                                page.write(bytes);
+                            }
+                        });
+            }
+            catch (RuntimeException e) { //the header has been sent, so the connection can only be closed
+                throw new IOException("Error converting " + filename, e);
+            }
+
+            publish(sibling(".md").getFile(), out, temp, sourceModified, source, dependencies, version);
+            if(page != null) {
+                site.pageCache.put(site.pathCache.stat(out), page.toByteArray());
+            }
+            RequestContext.span(RequestContext.Stage.CONVERT, converting);
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Creates a temporary file beside a converted page, creating the directory of the page if needed.
+     */
+    private static Path createTemp(Path out) throws IOException {
+        Files.createDirectories(out.getParent());
+        return Files.createTempFile(out.getParent(), "." + out.getFileName(), ".tmp");
+    }
+
+    /**
+     * Replaces a converted page with a completed conversion, and records the conversion in the sites output store if
+     * the page is held by the store.
+     */
+    private static void publish(Path md, Path out, Path temp, long modified, byte[] source,
+                                List<String> dependencies, String version) throws IOException {
+        Files.move(temp, out, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Site site = Site.current();
+        site.pathCache.invalidate(out);
+        if(out.equals(site.outputStore.output(md))) {
+            site.outputStore.record(md, modified, source, dependencies, version);
+        }
+    }
+
+    /**
+     * Returns the stylesheets to include in converted pages, bundled by the sites asset pipeline.
+     *
+     * @return The references to include in a page.
+     */
+    public static String[] styles() {
+        return Site.current().assets.bundle("page", ".css", STYLE_REF);
+    }
+
+    /**
+     * Returns the scripts to include in converted pages, without HighlightJS if code is highlighted by the server,
+     * bundled by the sites asset pipeline.
+     *
+     * @return The references to include in a page.
+     */
+    public static String[] scripts() {
+        String[] refs = Server.highlight ? HIGHLIGHTED_SCRIPT_REF : SCRIPT_REF;
+        return Site.current().assets.bundle("page", ".js", refs);
+    }
+
+    /**
+     * Returns the inline scripts to include in converted pages.
+     */
+    private static String[] procs() {
+        return Server.highlight ? NO_PROCS : new String[] {LOAD_SYNTAX};
+    }
+
+    /**
+     * Returns the response for the requested page. Pages converted for this request are streamed with chunked
+     * transfer encoding, so the client receives the pages header before the conversion has finished. Converted
+     * pages are sent with a Link field preloading their dependencies.
+     *
+     * @return A com.cvrskidz.servedown.HTTPResponse to be sent to a client
+     */
+    @Override
+    public HTTPResponse getResponse() {
+        HTTPResponse response;
+        if(cached != null) {
+            response = cached;
+        }
+        else if(markdown == null || limited != null || hadError()) {
+            response = super.getResponse();
+        }
+        else {
+            response = HTTPResponse.newResponse(extension, this::stream, HTTPResponse.PROTOCOL.HTTP);
+        }
+
+        return links.isEmpty() || response.getStatus() != 200 ? response : response.header("Link", links);
+    }
 }
@@ -0,0 +1,258 @@
+package com.cvrskidz.servedown;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The com.cvrskidz.servedown.HTTPRequest class reads the request line and header fields of a HTTP/1.x request from
+ * a clients input stream. The stream is read one byte at a time, up to the end of the header, so anything sent after
+ * the header (such as HTTP/2 frames following an upgrade) remains unread in the stream.
+ */
+public class HTTPRequest {
+    private static final int MAX_LINE_LENGTH = 8192; //longer lines are rejected
+    private static final int MAX_HEADERS = 100; //requests with more header fields are rejected
+    public static final String HTTP2_PREFACE = "PRI * HTTP/2.0"; //first line of a HTTP/2 connection with prior knowledge
+
+    private final String line; //the request line e.g. GET /index HTTP/1.1
+    private final Map<String, String> headers = new HashMap<>(); //field names in lower case
+
+    /**
+     * Thrown when the request line or header is too large to read, answered with a 431 response.
+     */
+    public static class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public TooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    private HTTPRequest(String line) {
+        this.line = line;
+    }
+
+    /**
+     * Reads a request header from a stream. The stream should be buffered, as it is read one byte at a time.
+     *
+     * @param in The stream of the client connection.
+     * @return The request, or null if the client closed the connection before sending a request.
+     * @throws IOException If the stream cannot be read.
+     * @throws TooLargeException If the request line or header is too large.
+     */
+    public static HTTPRequest read(InputStream in) throws IOException {
+        String line = readLine(in);
+        if(line == null) {
+            return null;
+        }
+
+        HTTPRequest request = new HTTPRequest(line);
+        String field;
+        while((field = readLine(in)) != null && !field.isEmpty()) {
+            int split = field.indexOf(':');
+            if(request.headers.size() > MAX_HEADERS) {
+                throw new TooLargeException("Too many header fields");
+            }
+            if(split > 0) {
+                request.headers.merge(field.substring(0, split).trim().toLowerCase(Locale.ROOT),
+                        field.substring(split + 1).trim(), (a, b) -> a + ", " + b);
+            }
+        }
+
+        return request;
+    }
+
+    /**
+     * Reads a single line terminated by CRLF (or LF), without the terminator.
+     */
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while((b = in.read()) != -1 && b != '\n') {
+            if(line.length() >= MAX_LINE_LENGTH) {
+                throw new TooLargeException("Request line too long");
+            }
+            line.append((char)b);
+        }
+
+        if(b == -1 && line.length() == 0) {
+            return null;
+        }
+        if(line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+            line.setLength(line.length() - 1);
+        }
+        return line.toString();
+    }
+
+    /**
+     * A getter method to access the request line.
+     *
+     * @return The first line of the request e.g. GET /index HTTP/1.1
+     */
+    public String getLine() {
+        return line;
+    }
+
+    /**
+     * Returns the value of a header field.
+     *
+     * @param name The name of the field, in any case.
+     * @return The value of the field, or null if it was not sent.
+     */
+    public String header(String name) {
+        return headers.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * A getter method to access the header fields of the request.
+     *
+     * @return The value of each field, keyed by the field name in lower case.
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Checks whether the request line has a method, a request target and a HTTP version, separated by single
+     * spaces.
+     *
+     * @return True if the request line is well formed, whether or not the method is served.
+     */
+    public boolean isWellFormed() {
+        String[] parts = line.split(" ", -1);
+        return parts.length == 3 && !parts[0].isEmpty() && !parts[1].isEmpty() && parts[2].startsWith("HTTP/");
+    }
+
+    /**
+     * Returns the length of the request body, as sent in the Content-Length field.
+     *
+     * @return The number of bytes following the header, 0 if the field was not sent.
+     * @throws IOException If the field is not a valid length.
+     */
+    public long getContentLength() throws IOException {
+        String length = header("Content-Length");
+        try {
+            long parsed = length == null ? 0 : Long.parseLong(length.strip());
+            if(parsed < 0) {
+                throw new NumberFormatException();
+            }
+            return parsed;
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("Invalid Content-Length: " + length);
+        }
+    }
+
+    /**
+     * Checks whether the request has a body, sent with a Content-Length or Transfer-Encoding field.
+     *
+     * @return True if a body follows the header.
+     * @throws IOException If the Content-Length field is not a valid length.
+     */
+    public boolean hasBody() throws IOException {
+        return header("Transfer-Encoding") != null || getContentLength() > 0;
+    }
+
+    /**
+     * Reads and discards the body of the request, so the next request on the connection can be read. Bodies sent
+     * with chunked transfer coding are decoded, and their trailer fields discarded.
+     *
+     * @param in The stream of the client connection, positioned after the header.
+     * @param max The largest body to read.
+     * @return True if the body was read, False if it is larger than max (and is left partly unread), or if it's
+     *         length is ambiguous, as it was sent with both Content-Length and Transfer-Encoding fields. Either way
+     *         the connection should be closed after the response.
+     * @throws IOException If the body is malformed, or the stream cannot be read.
+     */
+    public boolean skipBody(InputStream in, long max) throws IOException {
+        String coding = header("Transfer-Encoding");
+        if(coding == null) {
+            long length = getContentLength();
+            if(length > max) {
+                return false;
+            }
+            in.skipNBytes(length);
+            return true;
+        }
+        if(!coding.strip().toLowerCase(Locale.ROOT).endsWith("chunked")) { //the length cannot be determined
+            throw new IOException("Unsupported Transfer-Encoding: " + coding);
+        }
+
+        long read = 0;
+        while(true) {
+            String size = readLine(in);
+            if(size == null) {
+                throw new EOFException("Chunked body ended early");
+            }
+            int extension = size.indexOf(';'); //chunk extensions are ignored
+            long chunk;
+            try {
+                chunk = Long.parseLong((extension < 0 ? size : size.substring(0, extension)).strip(), 16);
+            }
+            catch (NumberFormatException e) {
+                chunk = -1;
+            }
+            if(chunk < 0) {
+                throw new IOException("Invalid chunk size: " + size);
+            }
+            if(chunk == 0) {
+                break;
+            }
+
+            read += chunk;
+            if(read > max) {
+                return false;
+            }
+            in.skipNBytes(chunk);
+            if(!"".equals(readLine(in))) {
+                throw new IOException("Chunk not followed by CRLF");
+            }
+        }
+
+        String trailer;
+        for(int fields = 0; (trailer = readLine(in)) != null && !trailer.isEmpty(); ++fields) {
+            if(fields > MAX_HEADERS) {
+                throw new TooLargeException("Too many trailer fields");
+            }
+        }
+        return header("Content-Length") == null;
+    }
+
+    /**
+     * Checks whether the client will send further requests on the same connection. HTTP/1.1 connections are
+     * persistent unless the client sends Connection: close, HTTP/1.0 connections only if it sends keep-alive.
+     *
+     * @return True if the connection should be kept open after the response.
+     */
+    public boolean isKeepAlive() {
+        String connection = header("Connection");
+        connection = connection == null ? "" : connection.toLowerCase(Locale.ROOT);
+        if(line.endsWith("HTTP/1.1")) {
+            return !connection.contains("close");
+        }
+        return connection.contains("keep-alive");
+    }
+
+    /**
+     * Checks whether this is the start of a HTTP/2 connection made with prior knowledge.
+     *
+     * @return True if the request line is the HTTP/2 connection preface.
+     */
+    public boolean isHTTP2Preface() {
+        return line.equals(HTTP2_PREFACE);
+    }
+
+    /**
+     * Checks whether the client asked to upgrade the connection to cleartext HTTP/2.
+     *
+     * @return True if the request contains an Upgrade: h2c field.
+     */
+    public boolean isUpgradeH2C() {
+        String upgrade = header("Upgrade");
+        String settings = header("HTTP2-Settings");
+        return upgrade != null && settings != null && upgrade.toLowerCase(Locale.ROOT).contains("h2c");
+    }
+}
@@ -1,15 +1,108 @@
 package com.cvrskidz.servedown;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * The state of an com.cvrskidz.servedown.HTTPResponse can be sent as a valid response to an HTTP request.
- * Instances store the protocol (HTTP or HTTPS), header, content, and content type of the response.
+ * Instances store the protocol (HTTP or HTTPS), status line, header, content, and content type of the response.
+ * <p>
+ * Responses are held as bytes rather than text. Status lines and common header fields are encoded once and
+ * shared between all responses, the content is encoded (UTF-8) once when the response is created, is read
+ * directly from a file region as it is written, or is generated as it is written and sent in chunks. A response
+ * is sent using gathering writes, so a response read from disk or memory is never re-encoded.
  */
 public class HTTPResponse {
-    private String header, content, protocol, contentType;
-    private boolean hasContent; //error responses such as 404 will not contain content and se this to false
+    private static final String HTTP_VERSION = "HTTP/1.1"; //version written in the status line of every response
+    private static final String CRLF = "\r\n";
+    private static final int HEADER_BUFFER_SIZE = 512; //initial size of the per thread header buffer
+
+    //pre-encoded header lines shared between all responses
+    private static final Map<Integer, ByteBuffer> STATUS_LINES = new ConcurrentHashMap<>();
+    private static final Map<String, ByteBuffer> CONTENT_TYPE_LINES = new ConcurrentHashMap<>();
+    private static final ByteBuffer COMMON_HEADERS = encode("Server: Serve-Down" + CRLF + "Connection: close" + CRLF);
+    private static final ByteBuffer KEEP_ALIVE_HEADERS = encode("Server: Serve-Down" + CRLF + "Connection: keep-alive" + CRLF);
+    private static final ByteBuffer CONTENT_LENGTH = encode("Content-Length: ");
+    private static final ByteBuffer CHUNKED = encode("Transfer-Encoding: chunked" + CRLF + CRLF);
+    private static final ByteBuffer LAST_CHUNK = encode("0" + CRLF + CRLF);
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    //a reusable buffer for the parts of the header that differ between responses
+    private static final ThreadLocal<ByteBuffer> headerBuffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(HEADER_BUFFER_SIZE));
+
+    //content types of known file extensions, other types are determined by newResponse
+    private static final Map<String, String> CONTENT_TYPES = Map.ofEntries(
+            Map.entry(".html", "text/html; charset=utf-8"),
+            Map.entry(".md", "text/markdown; charset=utf-8"),
+            Map.entry(".css", "text/css; charset=utf-8"),
+            Map.entry(".js", "text/javascript; charset=utf-8"),
+            Map.entry(".json", "application/json"),
+            Map.entry(".txt", "text/plain; charset=utf-8"),
+            Map.entry(".xml", "application/xml"),
+            Map.entry(".svg", "image/svg+xml"),
+            Map.entry(".ico", "image/x-icon"),
+            Map.entry(".jpg", "image/jpeg"),
+            Map.entry(".jpeg", "image/jpeg"),
+            Map.entry(".png", "image/png"),
+            Map.entry(".gif", "image/gif"),
+            Map.entry(".woff", "font/woff"),
+            Map.entry(".woff2", "font/woff2"),
+            Map.entry(".otf", "font/otf")
+    );
+
+    /**
+     * A 404 response without contents, shared by all requests for missing files.
+     */
+    public static final HTTPResponse NOT_FOUND = new HTTPResponse("text/html", "NOT FOUND", 404, PROTOCOL.HTTP);
+
+    /**
+     * A 400 response without contents, shared by all requests that are malformed.
+     */
+    public static final HTTPResponse BAD_REQUEST = new HTTPResponse("text/html", "Bad Request", 400, PROTOCOL.HTTP);
 
-    //the status of a 'normal' response
-    private final String STATUS_200 = "200 OK";
+    /**
+     * A 431 response without contents, shared by all requests with a request line or header too large to read.
+     */
+    public static final HTTPResponse HEADER_TOO_LARGE =
+            new HTTPResponse("text/html", "Request Header Fields Too Large", 431, PROTOCOL.HTTP);
+
+    private final ByteBuffer status, contentType; //pre-encoded lines of the header
+    private final String protocol;
+    private final int statusCode;
+    private final String contentTypeValue;
+    private final List<String[]> fields = new ArrayList<>(); //name and value of each additional header field
+    private ByteBuffer headers = EMPTY; //additional header lines, such as Retry-After
+    private ByteBuffer content = EMPTY; //the encoded contents of the response
+    private Path file; //a file to send as the contents of the response, instead of content
+    private long fileLength;
+    private StreamedContent stream; //generates the contents as they are sent, instead of content
+    private Runnable release; //releases the buffer holding content, once the response has been sent
+
+    /**
+     * Contents generated as they are written, such as a page converted whilst it is sent.
+     */
+    public interface StreamedContent {
+        /**
+         * Writes the contents of the response. Each write is sent to the client as a chunk.
+         *
+         * @param out The body of the response.
+         * @throws IOException If the contents cannot be generated or sent.
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
 
     /**
      * Enumerations representing a secure HTTP connection or not.
@@ -22,41 +115,153 @@ public class HTTPResponse {
      * Returns a new instance, automatically determining the content type of the response from the file extension.
      *
      * @param extension The extension of the requested file.
-     * @param content The contents of the response
+     * @param content The contents of the response, encoded as it should be sent
+     * @param p The response protocol (this.PROTOCOL.HTTP or this.PROTOCOL.HTTPS)
+     * @return A 200 response containing the supplied content.
+     */
+    public static HTTPResponse newResponse(String extension, byte[] content, PROTOCOL p) {
+        return new HTTPResponse(contentType(extension), content, p);
+    }
+
+    /**
+     * Returns a new instance with contents held in a buffer, such as a direct or mapped buffer, which is sent
+     * without being copied.
+     *
+     * @param extension The extension of the requested file.
+     * @param content The contents of the response, from it's position to it's limit.
+     * @param p The response protocol (this.PROTOCOL.HTTP or this.PROTOCOL.HTTPS)
+     * @return A 200 response containing the supplied content.
+     */
+    public static HTTPResponse newResponse(String extension, ByteBuffer content, PROTOCOL p) {
+        HTTPResponse response = new HTTPResponse(contentType(extension), 200, "OK", p);
+        response.content = content.asReadOnlyBuffer();
+        return response;
+    }
+
+    /**
+     * Returns a new instance with contents held in a buffer that must be released once the response is sent,
+     * such as a page stored in a com.cvrskidz.servedown.PageArena. The response is sent to a single client.
+     *
+     * @param extension The extension of the requested file.
+     * @param content The contents of the response, from it's position to it's limit.
+     * @param release Releases the contents, called by release().
+     * @param p The response protocol (this.PROTOCOL.HTTP or this.PROTOCOL.HTTPS)
+     * @return A 200 response containing the supplied content.
+     */
+    public static HTTPResponse newResponse(String extension, ByteBuffer content, Runnable release, PROTOCOL p) {
+        HTTPResponse response = newResponse(extension, content, p);
+        response.release = release;
+        return response;
+    }
+
+    /**
+     * Returns a new instance with the contents of a file, which is only read as the response is written.
+     *
+     * @param extension The extension of the requested file.
+     * @param file The file to send.
+     * @param length The size of the file in bytes.
+     * @param p The response protocol (this.PROTOCOL.HTTP or this.PROTOCOL.HTTPS)
+     * @return A 200 response containing the supplied file.
+     */
+    public static HTTPResponse newResponse(String extension, Path file, long length, PROTOCOL p) {
+        HTTPResponse response = new HTTPResponse(contentType(extension), 200, "OK", p);
+        response.file = file;
+        response.fileLength = length;
+        return response;
+    }
+
+    /**
+     * Returns a new instance with contents that are generated as the response is written, and sent with chunked
+     * transfer encoding. Only HTTP/1.1 clients can be sent streamed responses.
+     *
+     * @param extension The extension of the requested file.
+     * @param content Writes the contents of the response.
+     * @param p The response protocol (this.PROTOCOL.HTTP or this.PROTOCOL.HTTPS)
+     * @return A 200 response with the streamed content.
+     */
+    public static HTTPResponse newResponse(String extension, StreamedContent content, PROTOCOL p) {
+        HTTPResponse response = new HTTPResponse(contentType(extension), 200, "OK", p);
+        response.stream = content;
+        return response;
+    }
+
+    /**
+     * Returns a new 429 response, for clients that have made too many requests.
+     *
+     * @param retryAfter The number of seconds the client should wait before retrying.
      * @param p The response protocol (this.PROTOCOL.HTTP or this.PROTOCOL.HTTPS)
-     * @return
+     * @return A 429 response without contents.
+     */
+    public static HTTPResponse tooManyRequests(long retryAfter, PROTOCOL p) {
+        return new HTTPResponse("text/html", "Too Many Requests", 429, p).header("Retry-After", Long.toString(retryAfter));
+    }
+
+    /**
+     * Writes a 103 Early Hints response to a channel, ahead of the final response to the same request.
+     *
+     * @param out The channel connected to the client.
+     * @param links The value of the Link field.
+     * @throws IOException If an error occurs writing to the channel.
+     */
+    public static void writeEarlyHints(WritableByteChannel out, String links) throws IOException {
+        ByteBuffer hints = encode(HTTP_VERSION + " 103 Early Hints" + CRLF + "Link: " + links + CRLF + CRLF);
+        while(hints.hasRemaining()) {
+            out.write(hints);
+        }
+    }
+
+    /**
+     * Determines the content type of a file from it's extension.
+     *
+     * @param extension The extension of the file, including the leading '.'
+     * @return The content type specifier to include in a response header.
      */
-    public static HTTPResponse newResponse(String extension, String content, PROTOCOL p) {
+    public static String contentType(String extension) {
+        String known = CONTENT_TYPES.get(extension);
+        if(known != null) {
+            return known;
+        }
+
         String contentType = CacheHandler.IMAGE_EXTENSIONS.contains(extension) ? "image/" : "text/";
-        contentType += extension.substring(extension.indexOf('.') + 1);
-        return new HTTPResponse(contentType, content, p);
+        return contentType + extension.substring(extension.indexOf('.') + 1);
+    }
+
+    /**
+     * Shared constructor, looking up the pre-encoded lines of the header.
+     */
+    private HTTPResponse(String contentType, int status, String name, PROTOCOL p) {
+        this.protocol = p.toString();
+        this.statusCode = status;
+        this.contentTypeValue = contentType;
+        this.status = STATUS_LINES.computeIfAbsent(status,
+                s -> encode(HTTP_VERSION + " " + s + " " + name + CRLF));
+        this.contentType = CONTENT_TYPE_LINES.computeIfAbsent(contentType,
+                type -> encode("Content-Type: " + type + CRLF));
     }
 
     /**
-     * Returns a new instance of a com.cvrskidz.servedown.HTTPResponse object. This is the default constructor,
-     * requiring the content of the response to be set after.
+     * Returns a new instance of a com.cvrskidz.servedown.HTTPResponse object containing the specified contents.
      *
      * @param contentType The content type specifier to include in the response header.
+     * @param content The contents of the response, encoded as it should be sent
      * @param p The protocol of the response (this.PROTOCOL.HTTP or this.PROTOCOL.HTTPS)
      */
-    public HTTPResponse(String contentType, PROTOCOL p) {
-        this.protocol = p.toString();
-        this.contentType = contentType;
+    public HTTPResponse(String contentType, byte[] content, PROTOCOL p) {
+        this(contentType, 200, "OK", p);
+        this.content = ByteBuffer.wrap(content).asReadOnlyBuffer();
     }
 
     /**
-     * Returns a new instance of a com.cvrskidz.servedown.HTTPResponse object containing the specified contents.
+     * Returns a new instance of a com.cvrskidz.servedown.HTTPResponse object containing the specified contents,
+     * encoded as UTF-8.
      *
      * @param contentType The content type specifier to include in the response header.
      * @param content The contents of the response
      * @param p The protocol of the response (this.PROTOCOL.HTTP or this.PROTOCOL.HTTPS)
      */
     public HTTPResponse(String contentType, String content, PROTOCOL p) {
-        this(contentType, p);
-        this.content = content;
-        this.hasContent = true;
-        writeHeader(STATUS_200);
-    };
+        this(contentType, content.getBytes(StandardCharsets.UTF_8), p);
+    }
 
     /**
      * Returns a new instance of an com.cvrskidz.servedown.HTTPResponse object without contents, and specifying the response status.
@@ -67,34 +272,280 @@ public class HTTPResponse {
      * @param p The protocol of the response (this.PROTOCOL.HTTP or this.PROTOCOL.HTTPS)
      */
     public HTTPResponse(String contentType, String name, int status, PROTOCOL p) {
-        this(contentType, p);
-        writeHeader(Integer.toString(status) + " " + name);
+        this(contentType, status, name, p);
+    }
+
+    /**
+     * Adds a field to the header of the response. Fields must be added before a response is shared between
+     * requests, as responses are otherwise immutable.
+     *
+     * @param name The name of the field.
+     * @param value The value of the field.
+     * @return This response.
+     */
+    public HTTPResponse header(String name, String value) {
+        fields.add(new String[] {name, value});
+        byte[] line = (name + ": " + value + CRLF).getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer combined = ByteBuffer.allocate(headers.remaining() + line.length);
+        combined.put(headers.duplicate()).put(line).flip();
+        headers = combined.asReadOnlyBuffer();
+        return this;
+    }
+
+    /**
+     * A getter method to access the status code of the response.
+     *
+     * @return The status code e.g. 200
+     */
+    public int getStatus() {
+        return statusCode;
+    }
+
+    /**
+     * A getter method to access the content type of the response.
+     *
+     * @return The value of the Content-Type field.
+     */
+    public String getContentType() {
+        return contentTypeValue;
+    }
+
+    /**
+     * A getter method to access the header fields added with header().
+     *
+     * @return The name and value of each additional field.
+     */
+    public List<String[]> getHeaderFields() {
+        return fields;
+    }
+
+    /**
+     * A getter method to access the contents of the response, for responses not sending a file.
+     *
+     * @return A new read only view of the contents, or null if the response sends a file or streamed contents.
+     */
+    public ByteBuffer getContent() {
+        return file == null && stream == null ? content.duplicate() : null;
+    }
+
+    /**
+     * A getter method to access the file sent by the response.
+     *
+     * @return The file sent as the contents of the response, or null if the contents are held in memory.
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the length of the response contents in bytes, as sent in the Content-Length field.
+     *
+     * @return The number of bytes in the response body, or -1 if the contents are streamed.
+     */
+    public long getContentLength() {
+        if(stream != null) {
+            return -1;
+        }
+        return file != null ? fileLength : content.remaining();
+    }
+
+    /**
+     * Writes the complete response to a channel, closing the connection afterwards.
+     *
+     * @param out The channel connected to the client.
+     * @throws IOException If an error occurs writing to the channel or reading the file to send.
+     */
+    public void write(WritableByteChannel out) throws IOException {
+        write(out, false);
+    }
+
+    /**
+     * Writes the complete response to a channel. The header and contents are sent with a single gathering
+     * write where the channel supports it, files are transferred directly from their file channel.
+     * <p>
+     * Channels wrapping a stream (such as a TLS socket, which encrypts each write separately) are sent the
+     * header as a single write, copied into this threads header buffer.
+     * <p>
+     * A file is sent with the length it has when it is opened. If it is truncated whilst it is sent an exception is
+     * thrown, as the Content-Length can no longer be met and the connection must be closed.
+     *
+     * @param out The channel connected to the client.
+     * @param keepAlive True if the connection is kept open for further requests after the response.
+     * @throws IOException If an error occurs writing to the channel or reading the file to send.
+     */
+    public void write(WritableByteChannel out, boolean keepAlive) throws IOException {
+        try(FileChannel in = file == null ? null : FileChannel.open(file, StandardOpenOption.READ)) {
+            if(in != null) {
+                fileLength = in.size(); //the size of the file opened, the size it was stat with may be out of date
+            }
+            write(out, keepAlive, in);
+        }
+    }
+
+    private void write(WritableByteChannel out, boolean keepAlive, FileChannel in) throws IOException {
+        ByteBuffer body = file == null ? content.duplicate() : EMPTY;
+        ByteBuffer common = keepAlive ? KEEP_ALIVE_HEADERS : COMMON_HEADERS;
+
+        if(out instanceof GatheringByteChannel) {
+            ByteBuffer[] buffers = new ByteBuffer[] {
+                    status.duplicate(), common.duplicate(), contentType.duplicate(), headers.duplicate(),
+                    writeHeader(false, common), body
+            };
+            GatheringByteChannel gathering = (GatheringByteChannel)out;
+            long remaining = 0;
+            for(ByteBuffer buffer : buffers) {
+                remaining += buffer.remaining();
+            }
+            while(remaining > 0) {
+                remaining -= gathering.write(buffers);
+            }
+        }
+        else {
+            for(ByteBuffer buffer : new ByteBuffer[] {writeHeader(true, common), body}) {
+                while(buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+        }
+
+        if(stream != null) {
+            ChunkedOutput chunks = new ChunkedOutput(out);
+            stream.writeTo(chunks);
+            chunks.close();
+        }
+
+        if(in != null) {
+            long position = 0;
+            while(position < fileLength) {
+                long sent = in.transferTo(position, fileLength - position, out);
+                if(sent <= 0) { //the file was truncated whilst being sent, the connection must be closed
+                    throw new EOFException("File shorter than it's Content-Length");
+                }
+                position += sent;
+            }
+        }
     }
 
     /**
-     * Fills the fields of a http header with the corresponding instance values.
+     * Releases the buffer holding the contents of the response, if it was created with a release action. Called
+     * once the response has been sent, or could not be sent.
+     */
+    public void release() {
+        Runnable action = release;
+        release = null;
+        if(action != null) {
+            action.run();
+        }
+    }
+
+    /**
+     * Fills the fields of a http header that differ between responses into this threads header buffer.
      *
-     * @param response The status of the response in the following format "${name} ${status code}"
+     * @param complete True to copy the pre-encoded lines of the header into the buffer before the fields.
+     * @param common The pre-encoded fields common to every response.
+     * @return The header buffer, ready to be written.
+     */
+    private ByteBuffer writeHeader(boolean complete, ByteBuffer common) {
+        ByteBuffer header = headerBuffer.get();
+        String timing = Server.serverTiming ? RequestContext.current().serverTiming() : null;
+        int size = HEADER_BUFFER_SIZE + (timing == null ? 0 : timing.length()) + (complete ? status.remaining() + common.remaining()
+                + contentType.remaining() + headers.remaining() : 0);
+        if(header.capacity() < size) {
+            header = ByteBuffer.allocate(size);
+            headerBuffer.set(header);
+        }
+
+        header.clear();
+        if(complete) {
+            header.put(status.duplicate()).put(common.duplicate());
+            header.put(contentType.duplicate()).put(headers.duplicate());
+        }
+        if(timing != null) {
+            putASCII(header, "Server-Timing: " + timing + CRLF);
+        }
+        if(stream != null) {
+            header.put(CHUNKED.duplicate());
+        }
+        else {
+            header.put(CONTENT_LENGTH.duplicate());
+            putASCII(header, Long.toString(getContentLength()));
+            putASCII(header, CRLF + CRLF);
+        }
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Sends each write to a channel as a single chunk, with the chunk size before it and CRLF after it.
      */
-    private void writeHeader(String response) {
-        StringBuilder out = new StringBuilder(protocol + " " + response); //first line of a HTTP response e.g. HTTP 200 OK
+    private static class ChunkedOutput extends OutputStream {
+        private final WritableByteChannel out;
+        private boolean closed;
+
+        ChunkedOutput(WritableByteChannel out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return; //an empty chunk would end the response
+            }
 
-        //fill the required fields if the response contains contents
-        if(hasContent) {
-            out.append("\nContent-Type: " + contentType +"\n");
-            out.append("Content-Length: " + content.length() + "\n\n");
+            String size = Integer.toHexString(len) + CRLF;
+            ByteBuffer chunk = ByteBuffer.allocate(size.length() + len + CRLF.length());
+            putASCII(chunk, size);
+            chunk.put(b, off, len);
+            putASCII(chunk, CRLF);
+            chunk.flip();
+            while(chunk.hasRemaining()) {
+                out.write(chunk);
+            }
         }
 
-        header = out.toString();
+        /**
+         * Ends the response with the last chunk, without closing the channel.
+         */
+        @Override
+        public void close() throws IOException {
+            if(!closed) {
+                closed = true;
+                ByteBuffer last = LAST_CHUNK.duplicate();
+                while(last.hasRemaining()) {
+                    out.write(last);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies an ASCII string into a buffer without creating an intermediate byte array.
+     */
+    private static void putASCII(ByteBuffer buffer, String s) {
+        for(int i = 0; i < s.length(); ++i) {
+            buffer.put((byte)s.charAt(i));
+        }
+    }
+
+    /**
+     * Encodes a header line once, so it may be shared between responses.
+     */
+    private static ByteBuffer encode(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
     }
 
     /**
-     * Returns the complete, usable, http response.
+     * Returns the status line of the response, for logging.
      *
-     * @return
+     * @return The first line of the response e.g. HTTP/1.1 200 OK
      */
     @Override
     public String toString() {
-        return header + content;
+        return StandardCharsets.US_ASCII.decode(status.duplicate()).toString().strip() + " (" + protocol + ")";
     }
 }
@@ -0,0 +1,779 @@
+package com.cvrskidz.servedown;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The com.cvrskidz.servedown.Http2Connection class serves a cleartext HTTP/2 (h2c) connection, started either with
+ * prior knowledge (the client sends the HTTP/2 preface instead of a HTTP/1.1 request) or by upgrading a HTTP/1.1
+ * request containing an Upgrade: h2c field.
+ * <p>
+ * The thread running the connection reads frames, and each request received is processed on it's own stream worker
+ * thread, so many requests are served concurrently over one connection. Frames from different streams are
+ * interleaved as they are written, and each stream respects the flow control window of the stream and the connection,
+ * so a slow conversion does not delay responses for cached files sent on the same connection.
+ * <p>
+ * The connection has the same deadlines as a HTTP/1.1 connection, tracked by com.cvrskidz.servedown.Server.timeouts:
+ * the keep-alive deadline whilst no streams are open, the header deadline once a frame begins to arrive, and the write
+ * deadline for each response. A connection missing a deadline is closed.
+ */
+public class Http2Connection implements Runnable {
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int PREFACE_REMAINDER = 6; //bytes of the preface after the request line and blank line
+
+    //frame types
+    private static final int DATA = 0x0, HEADERS = 0x1, PRIORITY = 0x2, RST_STREAM = 0x3, SETTINGS = 0x4,
+            PUSH_PROMISE = 0x5, PING = 0x6, GOAWAY = 0x7, WINDOW_UPDATE = 0x8, CONTINUATION = 0x9;
+
+    //frame flags
+    private static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4, PADDED = 0x8, PRIORITY_FLAG = 0x20;
+
+    //error codes
+    private static final int NO_ERROR = 0x0, PROTOCOL_ERROR = 0x1, INTERNAL_ERROR = 0x2, FLOW_CONTROL_ERROR = 0x3,
+            FRAME_SIZE_ERROR = 0x6, REFUSED_STREAM = 0x7, COMPRESSION_ERROR = 0x9, ENHANCE_YOUR_CALM = 0xb;
+
+    //settings
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1, SETTINGS_MAX_CONCURRENT_STREAMS = 0x3,
+            SETTINGS_INITIAL_WINDOW_SIZE = 0x4, SETTINGS_MAX_FRAME_SIZE = 0x5, SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int DEFAULT_WINDOW = 65535, DEFAULT_FRAME_SIZE = 16384, HEADER_TABLE_SIZE = 4096;
+    private static final int MAX_CONCURRENT_STREAMS = 100;
+    private static final int MAX_HEADER_LIST = 65536; //larger header blocks, compressed or decoded, close the connection
+
+    //threads answering streams, sized by Server.streamWorkers and resized by setWorkers()
+    private static final ThreadPoolExecutor streamWorkers = new ThreadPoolExecutor(Server.streamWorkers,
+            Server.streamWorkers, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread t = new Thread(r, "h2c-stream");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        streamWorkers.allowCoreThreadTimeOut(true); //idle workers exit, so an idle server holds no threads
+    }
+
+    private final Socket client;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final HTTPRequest upgraded; //the request upgraded to HTTP/2, if any
+    private final HPACK.Decoder decoder = new HPACK.Decoder(HEADER_TABLE_SIZE);
+    private final HPACK.Encoder encoder = new HPACK.Encoder();
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object(); //held whilst writing a frame, and encoding headers
+    private final Object windowLock = new Object(); //held whilst reading or changing flow control windows
+
+    //state of the connection, as set by the peers settings
+    private int connectionWindow = DEFAULT_WINDOW, initialWindow = DEFAULT_WINDOW, maxFrameSize = DEFAULT_FRAME_SIZE;
+    private int lastStreamId;
+    private volatile boolean closed;
+    private volatile boolean goingAway; //set once either side sends GOAWAY, no further streams are expected
+    private volatile TimerWheel.Deadline expired; //the deadline the connection missed, if any
+    private boolean reading; //true whilst a frame is being read, guarded by this
+    private TimerWheel.Timeout idle; //the keep-alive deadline, whilst no streams are open, guarded by this
+
+    /**
+     * A request stream, with the flow control window for the response.
+     */
+    private static class Stream {
+        final int id;
+        int window;
+        volatile boolean reset; //set if the client cancels the stream
+
+        Stream(int id, int window) {
+            this.id = id;
+            this.window = window;
+        }
+    }
+
+    /**
+     * Thrown to close the connection with an error code.
+     */
+    private static class ConnectionError extends IOException {
+        private static final long serialVersionUID = 1L;
+        final int code;
+
+        ConnectionError(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    /**
+     * Returns a new HTTP/2 connection for a client.
+     *
+     * @param client The socket of the connection.
+     * @param in The buffered stream the clients HTTP/1.1 request line (and headers) were read from.
+     * @param upgraded The request upgraded to HTTP/2, or null if the connection was made with prior knowledge.
+     * @throws IOException If the output stream of the socket cannot be opened.
+     */
+    public Http2Connection(Socket client, InputStream in, HTTPRequest upgraded) throws IOException {
+        this.client = client;
+        this.in = new DataInputStream(in);
+        this.out = new BufferedOutputStream(client.getOutputStream(), DEFAULT_FRAME_SIZE + 9);
+        this.upgraded = upgraded;
+    }
+
+    /**
+     * Serves the connection until the client closes it, sends GOAWAY, or a connection error occurs.
+     */
+    @Override
+    public void run() {
+        int code = NO_ERROR;
+        boolean drain = true; //false once responses can no longer be sent
+        try {
+            if(upgraded != null) {
+                String upgradeSettings = upgraded.header("HTTP2-Settings");
+                applySettings(ByteBuffer.wrap(Base64.getUrlDecoder().decode(upgradeSettings.trim())));
+            }
+
+            ByteBuffer settings = ByteBuffer.allocate(18);
+            settings.putShort((short)SETTINGS_MAX_CONCURRENT_STREAMS).putInt(MAX_CONCURRENT_STREAMS);
+            settings.putShort((short)SETTINGS_HEADER_TABLE_SIZE).putInt(HEADER_TABLE_SIZE);
+            settings.putShort((short)SETTINGS_MAX_HEADER_LIST_SIZE).putInt(MAX_HEADER_LIST).flip();
+            writeFrame(SETTINGS, 0, 0, settings);
+
+            TimerWheel.Timeout header = schedule(TimerWheel.Deadline.READ_HEADER, Server.headerTimeout);
+            try {
+                readPreface();
+            }
+            finally {
+                header.cancel();
+            }
+
+            if(upgraded != null) { //the upgraded request is stream 1, half closed by the client
+                lastStreamId = 1;
+                long received = RequestContext.clock();
+                dispatch(1, "GET", Server.extractPath(upgraded.getLine()), upgraded.getHeaders(), received, received);
+            }
+
+            while(!goingAway || !streams.isEmpty()) { //after GOAWAY, frames are read until the streams finish
+                readFrame();
+            }
+        }
+        catch (ConnectionError e) {
+            System.out.println("HTTP/2 connection error: " + e.getMessage());
+            code = e.code;
+        }
+        catch (EOFException e) {
+            drain = false; //the client closed the connection, or every stream finished after GOAWAY
+        }
+        catch (IOException | IllegalArgumentException e) {
+            if(expired == null) {
+                System.out.println("An error occurred on a HTTP/2 connection: " + e);
+            }
+            drain = false;
+        }
+        finally {
+            close(code, drain);
+        }
+
+        if(expired != null) {
+            System.out.println("Closed " + client.getRemoteSocketAddress() + ", "
+                    + expired.toString().toLowerCase().replace('_', ' ') + " deadline expired");
+        }
+    }
+
+    private void readPreface() throws IOException {
+        byte[] preface = new byte[upgraded == null ? PREFACE_REMAINDER : PREFACE.length];
+        in.readFully(preface);
+
+        byte[] expected = upgraded == null
+                ? Arrays.copyOfRange(PREFACE, PREFACE.length - PREFACE_REMAINDER, PREFACE.length) : PREFACE;
+        if(!Arrays.equals(preface, expected)) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Invalid connection preface");
+        }
+    }
+
+    /**
+     * Reads and processes a single frame. Waiting for the frame is limited by the keep-alive deadline if no streams
+     * are open, and once it begins to arrive the frame (and any CONTINUATION frames) must be read before the header
+     * deadline.
+     */
+    private void readFrame() throws IOException {
+        idle();
+        int first = in.readUnsignedByte();
+        TimerWheel.Timeout header;
+        synchronized (this) {
+            reading = true;
+            if(idle != null) {
+                idle.cancel();
+                idle = null;
+            }
+            header = schedule(TimerWheel.Deadline.READ_HEADER, Server.headerTimeout);
+        }
+
+        try {
+            readFrame(first);
+        }
+        finally {
+            header.cancel();
+            synchronized (this) {
+                reading = false;
+            }
+        }
+    }
+
+    /**
+     * Starts the keep-alive deadline if the connection is idle, with no streams open and no frame being read.
+     * Called before waiting for a frame, and as each stream finishes.
+     */
+    private synchronized void idle() {
+        if(idle != null) {
+            idle.cancel();
+        }
+        idle = reading || goingAway || !streams.isEmpty() ? null
+                : Server.timeouts.schedule(TimerWheel.Deadline.KEEP_ALIVE, Server.keepAliveTimeout, () -> {
+                    synchronized (this) {
+                        if(reading || !streams.isEmpty()) { //a stream opened as the deadline expired
+                            return;
+                        }
+                    }
+                    expire(TimerWheel.Deadline.KEEP_ALIVE);
+                });
+    }
+
+    /**
+     * Schedules a deadline for this connection, closing it if the deadline expires.
+     */
+    private TimerWheel.Timeout schedule(TimerWheel.Deadline deadline, long delay) {
+        return Server.timeouts.schedule(deadline, delay, () -> expire(deadline));
+    }
+
+    /**
+     * Closes the socket of a connection that missed a deadline, which unblocks the threads reading and writing it.
+     */
+    private void expire(TimerWheel.Deadline deadline) {
+        expired = deadline;
+        closed = true;
+        synchronized (windowLock) {
+            windowLock.notifyAll();
+        }
+        try {
+            client.close();
+        }
+        catch (IOException e) {
+            System.out.println("An error occurred closing a HTTP/2 connection: " + e);
+        }
+    }
+
+    /**
+     * Reads the remainder of a frame, after it's first byte, and processes it.
+     */
+    private void readFrame(int first) throws IOException {
+        int length = (first << 16) | in.readUnsignedShort();
+        int type = in.readUnsignedByte();
+        int flags = in.readUnsignedByte();
+        int streamId = in.readInt() & 0x7FFFFFFF;
+
+        if(length > DEFAULT_FRAME_SIZE) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        ByteBuffer frame = ByteBuffer.wrap(payload);
+
+        switch(type) {
+            case HEADERS:
+                readHeaders(streamId, flags, frame);
+                break;
+            case DATA:
+                if(length > 0) { //request bodies are ignored, but the window they used is returned
+                    windowUpdate(0, length);
+                    if(streams.containsKey(streamId) && (flags & END_STREAM) == 0) {
+                        windowUpdate(streamId, length);
+                    }
+                }
+                break;
+            case SETTINGS:
+                if(streamId != 0 || length % 6 != 0) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "Invalid SETTINGS frame");
+                }
+                if((flags & ACK) == 0) {
+                    applySettings(frame);
+                    writeFrame(SETTINGS, ACK, 0, ByteBuffer.allocate(0));
+                }
+                break;
+            case WINDOW_UPDATE:
+                int increment = frame.getInt() & 0x7FFFFFFF;
+                synchronized (windowLock) {
+                    if(streamId == 0) {
+                        if((long)connectionWindow + increment > Integer.MAX_VALUE) {
+                            throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window overflow");
+                        }
+                        connectionWindow += increment;
+                    }
+                    else {
+                        Stream stream = streams.get(streamId);
+                        if(stream != null) {
+                            stream.window = (int)Math.min(Integer.MAX_VALUE, (long)stream.window + increment);
+                        }
+                    }
+                    windowLock.notifyAll();
+                }
+                break;
+            case PING:
+                if((flags & ACK) == 0) {
+                    writeFrame(PING, ACK, 0, frame);
+                }
+                break;
+            case RST_STREAM:
+                Stream stream = streams.remove(streamId);
+                if(stream != null) {
+                    stream.reset = true;
+                    synchronized (windowLock) {
+                        windowLock.notifyAll();
+                    }
+                }
+                break;
+            case GOAWAY: //streams already open are answered before the connection closes
+                goingAway = true;
+                break;
+            case PUSH_PROMISE:
+                throw new ConnectionError(PROTOCOL_ERROR, "PUSH_PROMISE sent by client");
+            case CONTINUATION:
+                throw new ConnectionError(PROTOCOL_ERROR, "Unexpected CONTINUATION frame");
+            default: //PRIORITY and unknown frames are ignored
+                break;
+        }
+    }
+
+    /**
+     * Reads a HEADERS frame, and any CONTINUATION frames completing the header block, and dispatches the request.
+     */
+    private void readHeaders(int streamId, int flags, ByteBuffer frame) throws IOException {
+        long received = RequestContext.clock();
+        int padding = (flags & PADDED) != 0 ? frame.get() & 0xFF : 0;
+        if((flags & PRIORITY_FLAG) != 0) {
+            frame.position(frame.position() + 5);
+        }
+        if(padding > frame.remaining()) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Invalid padding");
+        }
+
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        block.write(frame.array(), frame.position(), frame.remaining() - padding);
+        int blockSize = frame.remaining() - padding;
+
+        while((flags & END_HEADERS) == 0) {
+            int length = (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+            int type = in.readUnsignedByte();
+            flags = in.readUnsignedByte();
+            int continued = in.readInt() & 0x7FFFFFFF;
+            if(type != CONTINUATION || continued != streamId || length > DEFAULT_FRAME_SIZE) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Expected CONTINUATION frame");
+            }
+            blockSize += length;
+            if(blockSize > MAX_HEADER_LIST) {
+                throw new ConnectionError(ENHANCE_YOUR_CALM, "Header block larger than " + MAX_HEADER_LIST + " bytes");
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            block.write(payload);
+        }
+
+        List<String[]> headers;
+        try {
+            headers = decoder.decode(ByteBuffer.wrap(block.toByteArray()));
+        }
+        catch (HPACK.CompressionException e) {
+            throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+        }
+
+        long listSize = 0; //as defined for SETTINGS_MAX_HEADER_LIST_SIZE, indexed fields can expand a small block
+        for(String[] header : headers) {
+            listSize += header[0].length() + header[1].length() + 32;
+        }
+        if(listSize > MAX_HEADER_LIST) {
+            throw new ConnectionError(ENHANCE_YOUR_CALM, "Header list larger than " + MAX_HEADER_LIST + " bytes");
+        }
+
+        if(streamId % 2 == 0 || streamId <= lastStreamId) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Invalid stream id " + streamId);
+        }
+        lastStreamId = streamId;
+
+        if(streams.size() >= MAX_CONCURRENT_STREAMS) {
+            ByteBuffer error = ByteBuffer.allocate(4).putInt(REFUSED_STREAM).flip();
+            writeFrame(RST_STREAM, 0, streamId, error);
+            return;
+        }
+
+        String method = "", path = "";
+        Map<String, String> fields = new HashMap<>();
+        for(String[] header : headers) {
+            if(header[0].equals(":method")) {
+                method = header[1];
+            }
+            else if(header[0].equals(":path")) {
+                path = header[1];
+            }
+            else if(header[0].equals(":authority")) {
+                fields.putIfAbsent("host", header[1]);
+            }
+            else if(!header[0].startsWith(":")) { //names are sent in lower case
+                fields.merge(header[0], header[1], (a, b) -> a + (header[0].equals("cookie") ? "; " : ", ") + b);
+            }
+        }
+        dispatch(streamId, method, path, fields, received, RequestContext.clock());
+    }
+
+    /**
+     * Processes a request on a stream worker thread.
+     *
+     * @param received The value of RequestContext.clock() when the header block was received.
+     * @param parsed The value of RequestContext.clock() once the header block was decoded.
+     */
+    private void dispatch(int streamId, String method, String path, Map<String, String> headers,
+                          long received, long parsed) {
+        Stream stream;
+        synchronized (windowLock) {
+            stream = new Stream(streamId, initialWindow);
+        }
+        streams.put(streamId, stream);
+
+        RequestHandler.started();
+        streamWorkers.execute(() -> {
+            try {
+                RequestContext.start(received);
+                RequestContext.span(RequestContext.Stage.PARSE, received, parsed);
+                System.out.println("\nREQUEST: " + method + " " + path + " HTTP/2.0");
+                System.out.println("Client: " + client.getRemoteSocketAddress());
+                HTTPResponse response = method.equals(Server.REQUEST_METHOD)
+                        ? RequestHandler.respond(path, client.getInetAddress(), false, headers,
+                                links -> writeEarlyHints(stream, links)) : HTTPResponse.NOT_FOUND;
+                TimerWheel.Timeout write = schedule(TimerWheel.Deadline.WRITE, Server.writeTimeout);
+                try {
+                    long writing = RequestContext.clock();
+                    writeResponse(stream, response);
+                    RequestContext.span(RequestContext.Stage.WRITE, writing);
+                }
+                finally {
+                    write.cancel();
+                    response.release();
+                }
+                RequestContext.finish(method + " " + path + " HTTP/2.0", response.getStatus());
+            }
+            catch (IOException e) {
+                if(!stream.reset && !closed) {
+                    System.out.println("An error occurred sending a HTTP/2 response: " + e);
+                }
+            }
+            finally {
+                streams.remove(streamId);
+                RequestHandler.finished();
+                synchronized (windowLock) { //wakes close(), if it is waiting for the last stream
+                    windowLock.notifyAll();
+                }
+                if(goingAway && streams.isEmpty()) { //unblocks the connection thread, waiting for a frame
+                    shutdownInput();
+                }
+                else {
+                    idle();
+                }
+            }
+        });
+    }
+
+    /**
+     * Resizes the pool of threads answering streams. Streams received whilst every worker is busy wait for a
+     * worker to finish.
+     *
+     * @param workers The most streams answered at once, by every connection.
+     */
+    public static synchronized void setWorkers(int workers) {
+        workers = Math.max(1, workers);
+        if(workers > streamWorkers.getMaximumPoolSize()) { //the core size cannot exceed the maximum
+            streamWorkers.setMaximumPoolSize(workers);
+            streamWorkers.setCorePoolSize(workers);
+        }
+        else {
+            streamWorkers.setCorePoolSize(workers);
+            streamWorkers.setMaximumPoolSize(workers);
+        }
+    }
+
+    /**
+     * A getter method to access the size of the pool of threads answering streams.
+     *
+     * @return The most streams answered at once.
+     */
+    public static int getWorkers() {
+        return streamWorkers.getMaximumPoolSize();
+    }
+
+    /**
+     * Summarises the pool of threads answering streams.
+     *
+     * @return The pool size, the number of busy workers and the number of streams waiting for a worker.
+     */
+    public static String statistics() {
+        return "HTTP/2 workers: " + streamWorkers.getActiveCount() + " of " + streamWorkers.getMaximumPoolSize()
+                + " busy, " + streamWorkers.getPoolSize() + " started, " + streamWorkers.getQueue().size()
+                + " stream(s) waiting";
+    }
+
+    /**
+     * Writes a response as a HEADERS frame followed by DATA frames, waiting for the flow control window of the
+     * stream and connection before sending each DATA frame.
+     */
+    private void writeResponse(Stream stream, HTTPResponse response) throws IOException {
+        ByteBuffer content = response.getContent();
+        try(FileChannel file = content == null ? FileChannel.open(response.getFile(), StandardOpenOption.READ)
+                : null) {
+            //a file is sent with the size it has once opened, the size it was stat with may be out of date
+            writeResponse(stream, response, content, file, file == null ? content.remaining() : file.size());
+        }
+    }
+
+    private void writeResponse(Stream stream, HTTPResponse response, ByteBuffer content, FileChannel file,
+                               long length) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+
+        synchronized (writeLock) { //headers are encoded in the order they are sent
+            encoder.encode(block, ":status", Integer.toString(response.getStatus()), true);
+            encoder.encode(block, "server", "Serve-Down", true);
+            encoder.encode(block, "content-type", response.getContentType(), true);
+            encoder.encode(block, "content-length", Long.toString(length), false);
+            for(String[] field : response.getHeaderFields()) {
+                encoder.encode(block, field[0].toLowerCase(Locale.ROOT), field[1], false);
+            }
+            String timing = Server.serverTiming ? RequestContext.current().serverTiming() : null;
+            if(timing != null) {
+                encoder.encode(block, "server-timing", timing, false);
+            }
+            writeHeaderBlock(stream.id, block.toByteArray(), length == 0);
+        }
+
+        if(length == 0) {
+            return;
+        }
+
+        if(content != null) {
+            writeData(stream, content, true);
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(DEFAULT_FRAME_SIZE * 4);
+        long sent = 0;
+        while(sent < length) {
+            buffer.clear();
+            buffer.limit((int)Math.min(buffer.capacity(), length - sent)); //never more than the content-length
+            if(file.read(buffer, sent) <= 0) { //truncated whilst being sent, the content-length cannot be met
+                writeFrame(RST_STREAM, 0, stream.id, ByteBuffer.allocate(4).putInt(INTERNAL_ERROR).flip());
+                throw new EOFException("File shorter than it's content-length");
+            }
+            buffer.flip();
+            sent += buffer.remaining();
+            writeData(stream, buffer, sent >= length);
+        }
+    }
+
+    /**
+     * Writes a 103 Early Hints response as a HEADERS frame, which does not end the stream.
+     */
+    private void writeEarlyHints(Stream stream, String links) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        synchronized (writeLock) {
+            encoder.encode(block, ":status", "103", true);
+            encoder.encode(block, "link", links, false);
+            writeHeaderBlock(stream.id, block.toByteArray(), false);
+        }
+    }
+
+    /**
+     * Writes a buffer as DATA frames, each no larger than the available flow control window.
+     */
+    private void writeData(Stream stream, ByteBuffer data, boolean last) throws IOException {
+        while(data.hasRemaining()) {
+            int size = acquireWindow(stream, data.remaining());
+            ByteBuffer frame = data.slice();
+            frame.limit(size);
+            data.position(data.position() + size);
+            writeFrame(DATA, last && !data.hasRemaining() ? END_STREAM : 0, stream.id, frame);
+        }
+    }
+
+    /**
+     * Waits until the stream and connection windows are open, then takes as much of them as can be sent in a
+     * single frame.
+     */
+    private int acquireWindow(Stream stream, int wanted) throws IOException {
+        synchronized (windowLock) {
+            while(!closed && !stream.reset && (connectionWindow <= 0 || stream.window <= 0)) {
+                try {
+                    windowLock.wait();
+                }
+                catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if(closed || stream.reset) {
+                throw new EOFException("Stream " + stream.id + " closed");
+            }
+
+            int size = Math.min(Math.min(wanted, maxFrameSize), Math.min(connectionWindow, stream.window));
+            connectionWindow -= size;
+            stream.window -= size;
+            return size;
+        }
+    }
+
+    /**
+     * Writes a header block as a HEADERS frame, followed by CONTINUATION frames if it is larger than a frame.
+     * The write lock must be held.
+     */
+    private void writeHeaderBlock(int streamId, byte[] block, boolean endStream) throws IOException {
+        int offset = 0;
+        do {
+            int size = Math.min(block.length - offset, maxFrameSize);
+            boolean lastFrame = offset + size == block.length;
+            int flags = (lastFrame ? END_HEADERS : 0) | (offset == 0 && endStream ? END_STREAM : 0);
+            writeFrame(offset == 0 ? HEADERS : CONTINUATION, flags, streamId, ByteBuffer.wrap(block, offset, size));
+            offset += size;
+        } while(offset < block.length);
+    }
+
+    /**
+     * Writes a single frame, flushing it to the client.
+     */
+    private void writeFrame(int type, int flags, int streamId, ByteBuffer payload) throws IOException {
+        int length = payload.remaining();
+        synchronized (writeLock) {
+            out.write(length >>> 16);
+            out.write(length >>> 8);
+            out.write(length);
+            out.write(type);
+            out.write(flags);
+            out.write(streamId >>> 24);
+            out.write(streamId >>> 16);
+            out.write(streamId >>> 8);
+            out.write(streamId);
+            if(payload.hasArray()) {
+                out.write(payload.array(), payload.arrayOffset() + payload.position(), length);
+            }
+            else {
+                byte[] bytes = new byte[length];
+                payload.duplicate().get(bytes);
+                out.write(bytes);
+            }
+            out.flush();
+        }
+    }
+
+    private void windowUpdate(int streamId, int increment) throws IOException {
+        writeFrame(WINDOW_UPDATE, 0, streamId, ByteBuffer.allocate(4).putInt(increment).flip());
+    }
+
+    /**
+     * Applies the settings sent by the client, in a SETTINGS frame or the HTTP2-Settings field of an upgrade.
+     */
+    private void applySettings(ByteBuffer settings) throws IOException {
+        while(settings.remaining() >= 6) {
+            int id = settings.getShort() & 0xFFFF;
+            int value = settings.getInt();
+
+            switch(id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    synchronized (writeLock) {
+                        encoder.setMaxTableSize(value);
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if(value < 0) {
+                        throw new ConnectionError(FLOW_CONTROL_ERROR, "Initial window size too large");
+                    }
+                    synchronized (windowLock) { //the change applies to every open stream
+                        int delta = value - initialWindow;
+                        initialWindow = value;
+                        for(Stream stream : streams.values()) {
+                            stream.window += delta;
+                        }
+                        windowLock.notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if(value < DEFAULT_FRAME_SIZE || value > 0xFFFFFF) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "Invalid max frame size");
+                    }
+                    synchronized (windowLock) {
+                        maxFrameSize = value;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void goAway(int code) {
+        ByteBuffer payload = ByteBuffer.allocate(8).putInt(lastStreamId).putInt(code).flip();
+        try {
+            writeFrame(GOAWAY, 0, 0, payload);
+        }
+        catch (IOException e) {
+            //the connection is being closed regardless
+        }
+    }
+
+    private void shutdownInput() {
+        try {
+            client.shutdownInput();
+        }
+        catch (IOException e) {
+            //the connection is already closed
+        }
+    }
+
+    /**
+     * Sends GOAWAY, then closes the connection once the responses in progress have been sent, or failed. Each
+     * response is limited by the write deadline, so closing cannot wait indefinitely unless it is disabled.
+     *
+     * @param code The error code sent in the GOAWAY frame, NO_ERROR unless a connection error occurred.
+     * @param drain False if responses can no longer be sent, and the connection is closed immediately.
+     */
+    private void close(int code, boolean drain) {
+        synchronized (this) {
+            goingAway = true;
+            if(idle != null) {
+                idle.cancel();
+            }
+        }
+        if(expired == null) {
+            goAway(code);
+        }
+
+        synchronized (windowLock) {
+            while(drain && expired == null && !streams.isEmpty()) {
+                try {
+                    windowLock.wait();
+                }
+                catch (InterruptedException e) {
+                    break;
+                }
+            }
+            closed = true;
+            windowLock.notifyAll();
+        }
+
+        try {
+            client.close();
+        }
+        catch (IOException e) {
+            System.out.println("An error occurred closing a HTTP/2 connection: " + e);
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package com.cvrskidz.servedown;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * The com.cvrskidz.servedown.ImageResizer class serves images scaled down to a fixed set of widths, so converted pages
+ * can offer browsers a smaller image than the original with srcset.
+ * <p>
+ * Images are requested as PREFIX + width + the path of the image, e.g. /.images/640/photos/cat.jpg, and each width is
+ * rounded up to one of WIDTHS. Each variant is generated once with javax.imageio and written to a directory on disk,
+ * and recently requested variants are held in memory. Requests for a variant being generated wait for it rather than
+ * generating it again. Images are never scaled up, a variant at least as wide as it's image is the original image.
+ */
+public class ImageResizer implements ContentWatcher.Listener {
+    public static final String PREFIX = "/.images/"; //the path variants are served under
+    public static final int[] WIDTHS = {320, 640, 960, 1280, 1920}; //widths variants are generated at, ascending
+    public static final int DISPLAY_WIDTH = 960; //the widest an image is expected to be displayed, in css pixels
+    public static final String SIZES = "(max-width: " + DISPLAY_WIDTH + "px) 100vw, " + DISPLAY_WIDTH + "px";
+    private static final List<String> FORMATS = List.of(".png", ".jpg", ".jpeg", ".gif"); //read and written by ImageIO
+    private static final String CACHE_CONTROL = "no-cache"; //variants are named by their image, so revalidate with the ETag
+
+    /**
+     * A generated variant, and the image it was generated from.
+     */
+    private static class Variant {
+        private final Path source;
+        private final long modified; //modification time of the source when the variant was generated
+        private final byte[] contents;
+        private final String etag;
+
+        Variant(Path source, long modified, int width, byte[] contents) {
+            this.source = source;
+            this.modified = modified;
+            this.contents = contents;
+            etag = "\"" + width + "-" + Long.toHexString(modified) + "-" + Integer.toHexString(contents.length) + "\"";
+        }
+    }
+
+    private final Path root; //the directory variants are written to
+    private final long budget; //the most bytes of variants to hold in memory
+    private final Map<Path, Variant> variants = new LinkedHashMap<>(16, 0.75f, true); //by file, in access order, guarded by this
+    private final Map<Path, CompletableFuture<Variant>> pending = new ConcurrentHashMap<>(); //variants being loaded
+    private final AtomicLong hits = new AtomicLong(), loaded = new AtomicLong(), generated = new AtomicLong(),
+            waits = new AtomicLong();
+    private long resident; //bytes of variants held, guarded by this
+
+    /**
+     * Returns a resizer writing variants to a directory, creating the directory if it does not exist.
+     *
+     * @param root The directory to write variants to.
+     * @param budget The most bytes of variants to hold in memory.
+     * @throws IOException If the directory cannot be created.
+     */
+    public ImageResizer(Path root, long budget) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.budget = budget;
+        Files.createDirectories(this.root);
+    }
+
+    /**
+     * Returns the path a variant of an image is requested with.
+     *
+     * @param width One of WIDTHS.
+     * @param path The request path of the image, beginning with /.
+     * @return The request path of the variant.
+     */
+    public static String url(int width, String path) {
+        return PREFIX + width + path;
+    }
+
+    /**
+     * Returns the srcset offering an image at each of WIDTHS narrower than it, followed by the image itself.
+     *
+     * @param path The request path of the image, beginning with /.
+     * @param width The width of the image.
+     * @return The value of a srcset attribute, or null if the image is no wider than the narrowest variant.
+     */
+    public static String srcset(String path, int width) {
+        StringBuilder srcset = new StringBuilder();
+        for(int variant : WIDTHS) {
+            if(variant >= width) {
+                break;
+            }
+            srcset.append(url(variant, path)).append(' ').append(variant).append("w, ");
+        }
+        return srcset.length() == 0 ? null : srcset.append(path).append(' ').append(width).append('w').toString();
+    }
+
+    /**
+     * Returns the image loaded by browsers without srcset: the widest variant no wider than DISPLAY_WIDTH, or the
+     * image itself if it is no wider than the narrowest variant.
+     *
+     * @param path The request path of the image, beginning with /.
+     * @param width The width of the image.
+     * @return The request path of the variant or image.
+     */
+    public static String src(String path, int width) {
+        String src = path;
+        for(int variant : WIDTHS) {
+            if(variant >= width || variant > DISPLAY_WIDTH) {
+                break;
+            }
+            src = url(variant, path);
+        }
+        return src;
+    }
+
+    /**
+     * Checks whether images with the given extension can be resized.
+     *
+     * @param extension The extension of an image, e.g. .png.
+     * @return True if variants of the image can be generated.
+     */
+    public static boolean isResizable(String extension) {
+        return FORMATS.contains(extension.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Reads the dimensions of an image from it's header, without decoding it.
+     *
+     * @param file The image file.
+     * @return The width and height of the image, or null if it cannot be read.
+     */
+    public static int[] dimensions(Path file) {
+        try(ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if(readers == null || !readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return new int[] {reader.getWidth(0), reader.getHeight(0)};
+            }
+            finally {
+                reader.dispose();
+            }
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the response to a request for a variant, generating the variant if needed. Clients over their
+     * conversion rate limit are sent a 429 response rather than generating a variant.
+     *
+     * @param path The requested path, beginning with PREFIX.
+     * @return The response serving the variant, or null if there is no image at the requested path.
+     */
+    public HTTPResponse lookup(String path) {
+        String rest = path.substring(PREFIX.length());
+        int slash = rest.indexOf('/');
+        int width;
+        try {
+            width = slash > 0 ? bucket(Integer.parseInt(rest.substring(0, slash))) : 0;
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+
+        Path source = width > 0 ? Site.current().pathCache.resolve(rest.substring(slash)) : null;
+        PathCache.Entry image = source == null ? null : Site.current().pathCache.stat(source);
+        if(image == null || !image.isFile() || source.startsWith(root)) {
+            return null;
+        }
+        String name = source.getFileName().toString();
+        String extension = name.substring(Math.max(0, name.lastIndexOf('.'))).toLowerCase(Locale.ROOT);
+        if(!isResizable(extension)) {
+            return null;
+        }
+
+        Path file = root.resolve(Integer.toString(width)).resolve(Server.contentRoot().relativize(source).toString());
+        Variant variant;
+        synchronized (this) {
+            variant = variants.get(file);
+        }
+        try {
+            if(variant != null && variant.modified == image.getModified()) {
+                hits.incrementAndGet();
+            }
+            else {
+                if(!isStored(file, image.getModified())
+                        && !Server.rateLimiter.tryAcquire(RequestContext.current().getClient(), RateLimiter.Budget.EXPENSIVE)) {
+                    System.out.println("Responded 429");
+                    return HTTPResponse.tooManyRequests(Server.rateLimiter.retryAfter(RateLimiter.Budget.EXPENSIVE),
+                            HTTPResponse.PROTOCOL.HTTP);
+                }
+                variant = load(file, source, image.getModified(), width, extension);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            System.err.println("--LOG--\nError resizing " + source + "\n" + e + "\n--END LOG--");
+            return null;
+        }
+
+        String match = RequestContext.current().header("If-None-Match");
+        if(match != null && match.contains(variant.etag)) {
+            return new HTTPResponse(HTTPResponse.contentType(extension), "Not Modified", 304,
+                    HTTPResponse.PROTOCOL.HTTP)
+                    .header("ETag", variant.etag)
+                    .header("Cache-Control", CACHE_CONTROL);
+        }
+        return HTTPResponse.newResponse(extension, variant.contents, HTTPResponse.PROTOCOL.HTTP)
+                .header("ETag", variant.etag)
+                .header("Cache-Control", CACHE_CONTROL);
+    }
+
+    /**
+     * Rounds a width up to the nearest of WIDTHS.
+     *
+     * @return The rounded width, the largest of WIDTHS for larger widths, or 0 if the width is not positive.
+     */
+    private static int bucket(int width) {
+        if(width <= 0) {
+            return 0;
+        }
+        for(int bucket : WIDTHS) {
+            if(width <= bucket) {
+                return bucket;
+            }
+        }
+        return WIDTHS[WIDTHS.length - 1];
+    }
+
+    /**
+     * Checks whether a variant written to disk was generated from the current version of it's image.
+     */
+    private static boolean isStored(Path file, long modified) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis() == modified;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads a variant from disk, or generates it, holding it in memory. Only one thread loads each variant, other
+     * threads requesting it wait for the first.
+     */
+    private Variant load(Path file, Path source, long modified, int width, String extension) throws IOException {
+        CompletableFuture<Variant> created = new CompletableFuture<>();
+        CompletableFuture<Variant> running = pending.putIfAbsent(file, created);
+        if(running != null) {
+            waits.incrementAndGet();
+            try {
+                return running.get();
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            catch (ExecutionException e) {
+                throw new IOException("Error resizing " + source, e.getCause());
+            }
+        }
+
+        try {
+            Variant variant;
+            if(isStored(file, modified)) {
+                variant = new Variant(source, modified, width, Files.readAllBytes(file));
+                loaded.incrementAndGet();
+            }
+            else {
+                long resizing = RequestContext.clock();
+                variant = new Variant(source, modified, width, resize(source, width, extension));
+                store(file, variant.contents, modified);
+                generated.incrementAndGet();
+                RequestContext.span(RequestContext.Stage.CONVERT, resizing);
+            }
+            hold(file, variant);
+            created.complete(variant);
+            return variant;
+        }
+        catch (IOException | RuntimeException e) {
+            created.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            pending.remove(file, created);
+        }
+    }
+
+    /**
+     * Scales an image down to a width, halving it's size in steps so detail is averaged rather than skipped.
+     *
+     * @return The encoded variant, or the original image if it is no wider than the width.
+     */
+    private static byte[] resize(Path source, int width, String extension) throws IOException {
+        BufferedImage image = ImageIO.read(source.toFile());
+        if(image == null) {
+            throw new IOException("Unsupported image format");
+        }
+        if(image.getWidth() <= width) {
+            return Files.readAllBytes(source);
+        }
+
+        int height = Math.max(1, (int)Math.round((double)image.getHeight() * width / image.getWidth()));
+        boolean jpeg = extension.equals(".jpg") || extension.equals(".jpeg");
+        int type = image.getColorModel().hasAlpha() && !jpeg ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+
+        BufferedImage scaled = image;
+        int w = image.getWidth(), h = image.getHeight();
+        do {
+            w = Math.max(width, w / 2);
+            h = w == width ? height : Math.max(height, h / 2);
+            BufferedImage step = new BufferedImage(w, h, type);
+            Graphics2D graphics = step.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(scaled, 0, 0, w, h, null);
+            graphics.dispose();
+            scaled = step;
+        } while(w != width);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if(!ImageIO.write(scaled, jpeg ? "jpg" : extension.substring(1), out)) {
+            throw new IOException("No writer for " + extension);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a variant to disk, with the modification time of the image it was generated from.
+     */
+    private static void store(Path file, byte[] contents, long modified) {
+        try {
+            Files.createDirectories(file.getParent());
+            Path temp = Files.createTempFile(file.getParent(), "." + file.getFileName(), ".tmp");
+            try {
+                Files.write(temp, contents);
+                Files.setLastModifiedTime(temp, FileTime.fromMillis(modified));
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        catch (IOException e) { //served from memory, and generated again after a restart
+            System.err.println("--LOG--\nError writing variant " + file + "\n" + e + "\n--END LOG--");
+        }
+    }
+
+    /**
+     * Holds a variant in memory, evicting the least recently requested variants to stay within the budget.
+     */
+    private synchronized void hold(Path file, Variant variant) {
+        if(variant.contents.length > budget) {
+            return;
+        }
+        Variant replaced = variants.put(file, variant);
+        resident += variant.contents.length - (replaced == null ? 0 : replaced.contents.length);
+
+        Iterator<Variant> eldest = variants.values().iterator();
+        while(resident > budget && eldest.hasNext()) {
+            resident -= eldest.next().contents.length;
+            eldest.remove();
+        }
+    }
+
+    @Override
+    public void changed(WatchEvent.Kind<?> kind, Path file) {
+        if(file == null) {
+            synchronized (this) {
+                variants.clear();
+                resident = 0;
+            }
+            return;
+        }
+        if(file.startsWith(root)) {
+            return; //a variant being written
+        }
+
+        synchronized (this) { //generated again from the changed image when next requested
+            Iterator<Variant> held = variants.values().iterator();
+            while(held.hasNext()) {
+                Variant variant = held.next();
+                if(variant.source.startsWith(file)) {
+                    resident -= variant.contents.length;
+                    held.remove();
+                }
+            }
+        }
+
+        if(kind == StandardWatchEventKinds.ENTRY_DELETE && file.startsWith(Server.contentRoot())) {
+            String relative = Server.contentRoot().relativize(file).toString();
+            for(int width : WIDTHS) {
+                try {
+                    Files.deleteIfExists(root.resolve(Integer.toString(width)).resolve(relative));
+                }
+                catch (IOException e) { //a directory, it's variants are left until they are requested
+                    System.err.println("--LOG--\nError removing variants of " + file + "\n" + e + "\n--END LOG--");
+                }
+            }
+        }
+    }
+
+    /**
+     * Summarises the variants served.
+     *
+     * @return The number of variants held in memory and their size, and the number served from memory, read from
+     *         disk, generated, and waited for whilst generated by another request.
+     */
+    public String statistics() {
+        synchronized (this) {
+            return "Images: " + variants.size() + " variant(s), " + resident + " of " + budget + " bytes in memory, "
+                    + hits.get() + " hit(s), " + loaded.get() + " read from disk, " + generated.get()
+                    + " generated, " + waits.get() + " wait(s)";
+        }
+    }
+}
@@ -1,31 +1,137 @@
 package com.cvrskidz.servedown;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Stack;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * The com.cvrskidz.servedown.MarkdownConverter class is responsible for converting a markdown file to html.
+ * <p>
+ * A converter can be reused, each call to convert() resets it. The buffers a page is built in, the lines of the
+ * markdown and the matchers of the regular expressions used to parse it are kept between conversions, so
+ * converting a page allocates little more than the strings of each converted line. Converters are not thread safe,
+ * each thread should use it's own converter, as returned by forThread().
+ * <p>
+ * A page that grows the buffers beyond MAX_RETAINED is still read from the converter that converted it, but that
+ * converter is no longer the threads converter, so it's buffers are freed once the page has been read rather than
+ * held by the thread until it's next conversion.
  */
 public class MarkdownConverter {
     //header information for the output file
     private static final String META_FORMAT = "<meta http-equiv='Content-Type' content='text/html; charset=utf-8'/>\n";
-    private static final String STYLE_FORMAT = "<link rel='stylesheet' type='text/css' href='%s'>\n";
-    private static final String SCRIPT_FORMAT = "<script src='%s'></script>\n";
+
+    private static final int CHUNK_SIZE = 1024; //characters of converted body written to a sink at once
+    private static final int MAX_RETAINED = 1 << 20; //larger buffers are never held by a threads converter
+
+    //expressions used to parse each line, compiled once
+    private static final Pattern SEPARATOR = Pattern.compile("---\\s*");
+    private static final Pattern CODE_FENCE = Pattern.compile("\\s*```.*");
+    private static final Pattern MATH = Pattern.compile("\\$[^\\$]*\\$");
+    private static final Pattern LINK = Pattern.compile("\\[[^\\[]*\\]\\([^\\(]*\\)");
+    private static final Pattern IMAGE = Pattern.compile("!" + LINK);
+    private static final Pattern DATA_IMAGE = Pattern.compile("data:image/.*;base64,.*");
+    private static final Pattern PARENT = Pattern.compile("\\.\\./"), PARENT_WINDOWS = Pattern.compile("\\.\\.\\\\");
+    private static final Pattern TAG = Pattern.compile("<[^<]*>");
+    private static final String MATH_PLACEHOLDER = "[math]"; //replaces math in table rows, which may contain |
+
+    //formats headings outside of a conversion, for headingName()
+    private static final ThreadLocal<MarkdownConverter> headingFormatters =
+            ThreadLocal.withInitial(MarkdownConverter::new);
+
+    private static final ThreadLocal<MarkdownConverter> converters = ThreadLocal.withInitial(() -> {
+        MarkdownConverter converter = new MarkdownConverter();
+        converter.reused = true;
+        return converter;
+    });
+
+    /**
+     * The version of the conversion, which should be changed whenever the html produced changes, so pages
+     * converted by a previous version are converted again.
+     */
+    public static final String VERSION = "3";
 
     private final int headings = 6; //smallest heading level
-    private String[] contents; //contents of the html file
+    private boolean reused; //true whilst this is a threads converter, returned by forThread()
+    private Sink sink; //receives the page as it is converted, or null to build the page in result
+    private String[] contents = new String[64]; //lines of the markdown, reused between conversions
+    private int lines; //number of lines in contents
     private int line; //current line number of the file (-1 to be used as an index)
-    private Stack<Integer> indentationLevel; //how far to indent the line converted to html in the output file
-    private StringBuilder result, body; //result: the output. body: the boy tag of the output file
-    private String head; //the header of the output file
-    private ArrayList<String> documentHeadings; //list of all headings in file
+    private final IntStack indentationLevel = new IntStack(); //how far to indent the line converted to html in the output file
+    private StringBuilder result = new StringBuilder(), body = new StringBuilder(); //result: the output. body: the boy tag of the output file
+    private StringBuilder code = new StringBuilder(); //contents of the open code block, if it is highlighted
+    private String language; //language of the open code block
+    private final ArrayList<String> documentHeadings = new ArrayList<>(); //list of all headings in file
+    private final ArrayList<String> dependencies = new ArrayList<>(); //paths of other files read, such as images
     private boolean paragraphOpen, listOpen, blockOpen; //flags to indicate the status of conversion
 
+    //reused matchers of the expressions above, and buffers to encode the result in
+    private final Matcher separator = SEPARATOR.matcher(""), codeFence = CODE_FENCE.matcher("");
+    private final Matcher link = LINK.matcher(""), image = IMAGE.matcher("");
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private char[] chars = new char[0];
+    private ByteBuffer bytes = ByteBuffer.allocate(0);
+
+    /**
+     * A stack of primitive ints, used to track the indentation of nested lists without boxing.
+     */
+    private static class IntStack {
+        private int[] values = new int[8];
+        private int size;
+
+        void push(int value) {
+            if(size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int pop() {
+            if(size == 0) {
+                throw new IllegalStateException("Empty stack");
+            }
+            return values[--size];
+        }
+
+        int peek() {
+            if(size == 0) {
+                throw new IllegalStateException("Empty stack");
+            }
+            return values[size - 1];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+    /**
+     * Receives the html of a page as it is converted, a block at a time.
+     */
+    public interface Sink {
+        /**
+         * Receives the next part of the page.
+         *
+         * @param html The html following any previously written.
+         * @throws IOException If the html cannot be written, which stops the conversion.
+         */
+        void write(String html) throws IOException;
+    }
+
     /**
      * Creates a new instance of a com.cvrskidz.servedown.MarkdownConverter object, converting the given content.
      *
@@ -36,53 +142,198 @@ public class MarkdownConverter {
      * @param procs inline javascript to include in the html
      */
     public MarkdownConverter(String contents, String title, String[] styles, String[] scripts, String[] procs) {
-        this.contents = contents.split("\n"); //separate file by lines.
-        result = new StringBuilder("<html>\n");
-        body = new StringBuilder("<div id='content'>\n"); //#content is an id used for styling the output content area
-        head = writeHeader(title, styles, scripts, procs); //write the page header
+        this();
+        convert(contents, title, styles, scripts, procs);
+    }
+
+    private MarkdownConverter() {
+    }
+
+    /**
+     * Returns the converter of the current thread, which is reused by every conversion on the thread.
+     *
+     * @return This threads converter.
+     */
+    public static MarkdownConverter forThread() {
+        return converters.get();
+    }
+
+    /**
+     * Converts markdown to html, replacing the result of any previous conversion. The page is read with
+     * toString() or getBytes().
+     *
+     * @param contents Markdown to convert to html
+     * @param title HTML page title
+     * @param styles the paths to all stylesheets desired to be included in the page in order of precedence
+     * @param scripts the paths of all scripts to be included in the html
+     * @param procs inline javascript to include in the html
+     * @return This converter.
+     */
+    public MarkdownConverter convert(String contents, String title, String[] styles, String[] scripts,
+                                     String[] procs) {
+        reset(contents, title, styles, scripts, procs, null);
+        try {
+            convert();
+        }
+        catch (IOException e) { //not thrown without a sink
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            release();
+        }
+        return this;
+    }
+
+    /**
+     * Prepares the converter for a new page.
+     */
+    private void reset(String contents, String title, String[] styles, String[] scripts, String[] procs,
+                       Sink sink) {
+        split(contents); //separate file by lines.
+        this.sink = sink;
+        result.setLength(0);
+        result.append("<html>\n");
+        writeHeader(title, styles, scripts, procs); //write the page header
+        body.setLength(0);
+        body.append("<div id='content'>\n"); //#content is an id used for styling the output content area
+        code.setLength(0);
+        language = null;
         paragraphOpen = false;
         listOpen = false;
-        indentationLevel = new Stack<>();
-        documentHeadings = new ArrayList<>();
+        blockOpen = false;
+        indentationLevel.clear();
+        documentHeadings.clear();
+        dependencies.clear();
+    }
+
+    /**
+     * Stops this converter being reused by the thread if the last page grew any of it's buffers beyond
+     * MAX_RETAINED. The page can still be read, and forThread() returns a new converter for the next page.
+     */
+    private void release() {
+        if(reused && (result.capacity() > MAX_RETAINED || body.capacity() > MAX_RETAINED
+                || code.capacity() > MAX_RETAINED || contents.length > MAX_RETAINED / 16)) {
+            reused = false;
+            converters.remove();
+        }
+    }
+
+    /**
+     * Splits markdown into lines, the same way as contents.split("\n"), into the reused contents array.
+     */
+    private void split(String markdown) {
+        Arrays.fill(contents, 0, lines, null);
+        lines = 0;
+
+        int start = 0, end;
+        while((end = markdown.indexOf('\n', start)) >= 0) {
+            addLine(markdown.substring(start, end));
+            start = end + 1;
+        }
+        if(start == 0) { //no new lines, the markdown is a single line
+            addLine(markdown);
+            return;
+        }
+        addLine(markdown.substring(start));
+        while(lines > 0 && contents[lines - 1].isEmpty()) { //trailing empty lines are removed, as by split()
+            contents[--lines] = null;
+        }
+    }
+
+    private void addLine(String text) {
+        if(lines == contents.length) {
+            contents = Arrays.copyOf(contents, lines * 2);
+        }
+        contents[lines++] = text;
+    }
+
+    /**
+     * Converts markdown to html, writing the page to a sink as it is converted. The header of the page is written
+     * before any markdown is converted, followed by the body each time a block of at least CHUNK_SIZE characters
+     * has been closed, so a client can start loading the pages styles and scripts whilst it is converted.
+     *
+     * @param contents Markdown to convert to html
+     * @param title HTML page title
+     * @param styles the paths to all stylesheets desired to be included in the page in order of precedence
+     * @param scripts the paths of all scripts to be included in the html
+     * @param procs inline javascript to include in the html
+     * @param sink Receives the html as it is converted.
+     * @return The paths of other files read during the conversion, as returned by getDependencies().
+     * @throws IOException If the sink cannot be written to.
+     */
+    public static List<String> convert(String contents, String title, String[] styles, String[] scripts,
+                                       String[] procs, Sink sink) throws IOException {
+        MarkdownConverter converter = forThread();
+        converter.reset(contents, title, styles, scripts, procs, sink);
+        try {
+            converter.convert();
+        }
+        finally {
+            converter.sink = null; //not held once the response is sent
+            converter.release();
+        }
+        return converter.getDependencies();
+    }
+
+    private void convert() throws IOException {
+        result.append("<body>");
+        if(sink != null) {
+            sink.write(result.toString());
+        }
 
         line = 0;
-        while(line < this.contents.length) { //convert one line at a time
+        while(line < lines) { //convert one line at a time
             convertLine(this.contents[line]);
             line++;
+            flush();
         }
 
         body.append("</div>\n");
-        body.append(generateTOC()); //table of contents appended to file (after headings have been found)
+        generateTOC(); //table of contents appended to file (after headings have been found)
+
+        if(sink != null) {
+            sink.write(body.append("</body></html>").toString());
+            return;
+        }
 
         //concatenate output file
-        result.append(head);
-        result.append("<body>" + body.toString() + "</body>");
+        result.append(body).append("</body>");
         result.append("</html>");
     }
 
-    private String writeHeader(String title, String[] styles, String[] scripts, String[] procs) {
-        StringBuilder head = new StringBuilder("<head>\n");
-        head.append("<title>" + title + "</title>\n");
+    /**
+     * Writes the converted body to the sink, if there is one, once enough has been converted and no block is open.
+     */
+    private void flush() throws IOException {
+        if(sink != null && body.length() >= CHUNK_SIZE && !paragraphOpen && !listOpen && !blockOpen) {
+            sink.write(body.toString());
+            body.setLength(0);
+        }
+    }
+
+    private void writeHeader(String title, String[] styles, String[] scripts, String[] procs) {
+        StringBuilder head = result;
+        head.append("<head>\n");
+        head.append("<title>").append(title).append("</title>\n");
         head.append(META_FORMAT); //set charset
 
         //append all styles
         for(String ref : styles) {
-            head.append(String.format(STYLE_FORMAT, ref));
+            head.append("<link rel='stylesheet' type='text/css' href='").append(ref).append("'>\n");
         }
 
         //append all scripts
         for(String ref : scripts) {
-            head.append(String.format(SCRIPT_FORMAT, ref));
+            head.append("<script src='").append(ref).append("'></script>\n");
         }
         head.append("<script id=\"MathJax-script\" async src=\"https://cdn.jsdelivr.net/npm/mathjax@3/es5/tex-mml-chtml.js\"></script>");
 
         //append all inline scripts
         for(String func : procs) {
-            head.append("<script>"+func+"</script>\n");
+            head.append("<script>").append(func).append("</script>\n");
         }
 
         head.append("</head>\n");
-        return head.toString();
     }
 
     /**
@@ -101,11 +352,14 @@ public class MarkdownConverter {
                 convertLineItem(line);
             }
             else if(!convertSeperator(trimmedLine) && !convertTable(trimmedLine)){ //convert tables and separators first, if they fail proceed to text
-                if (blockOpen) { //if line is apart of open paragraph
+                if (blockOpen && Server.highlight) { //highlighted once the whole block has been read
+                    code.append(line).append('\n');
+                }
+                else if (blockOpen) { //if line is apart of open paragraph
                     line = line.replace("<", "&lt;");
                     line = line.replace(">", "&gt;");
 
-                    body.append(line + "\n");
+                    body.append(line).append('\n');
                 }
             }
         }
@@ -136,12 +390,21 @@ public class MarkdownConverter {
     }
 
     private int checkHeading(String heading) {
+        return headingLevel(heading);
+    }
+
+    /**
+     * Determines the level of a markdown heading, the same way lines are parsed during conversion.
+     *
+     * @param heading A line of markdown.
+     * @return The heading level (1 to 6 for # to ######), or 0 if the line is not a heading.
+     */
+    public static int headingLevel(String heading) {
         heading = heading.trim();
-        char[] contents = heading.split(" ")[0].toCharArray();
         int level = 0;
 
-        for(int i =0; i < contents.length; ++i) {
-            if(contents[i] != '#') {
+        for(int i = 0; i < heading.length() && heading.charAt(i) != ' '; ++i) { //the first word of the heading
+            if(heading.charAt(i) != '#') {
                 return 0;
             }
             else {
@@ -152,26 +415,57 @@ public class MarkdownConverter {
         return level;
     }
 
+    /**
+     * Returns the name of a markdown heading, as it is shown in the table of contents of the converted page: the
+     * formatted heading without any html tags.
+     *
+     * @param heading A line of markdown, with a heading level between 1 and 6 (see headingLevel()).
+     * @return The name of the heading.
+     */
+    public static String headingName(String heading) {
+        MarkdownConverter formatter = headingFormatters.get();
+        String name = formatter.headingContent(heading.trim(), headingLevel(heading));
+        formatter.dependencies.clear(); //images read whilst formatting are not dependencies of any page
+        return TAG.matcher(name).replaceAll("");
+    }
+
+    /**
+     * Returns the id of the element holding a heading in the converted page, which the table of contents links to.
+     *
+     * @param name The name of the heading, as returned by headingName().
+     * @return The id of the heading.
+     */
+    public static String headingId(String name) {
+        return name.replace(' ', '-');
+    }
+
     private void convertHeading(String line, int level) {
         closeOpen();
-        line = formatLine(line.trim());
-        String headingContent = line.substring(level, line.length()).trim();
-        String headingName = headingContent.replaceAll("<[^<]*>", ""); //remove all html tags from headingName
-        String id = headingName.replace(' ', '-');
-        body.append(String.format("<div id=%s><h%d>%s</h%d></div>\n", id, level, headingContent, level));
+        String headingContent = headingContent(line.trim(), level);
+        String headingName = TAG.matcher(headingContent).replaceAll(""); //remove all html tags from headingName
+        body.append("<div id=").append(headingId(headingName)).append("><h").append(level).append('>')
+                .append(headingContent).append("</h").append(level).append("></div>\n");
         documentHeadings.add(headingName);
     }
 
+    /**
+     * Formats the text of a heading, after the #s of it's level.
+     */
+    private String headingContent(String line, int level) {
+        line = formatLine(line);
+        return line.substring(level).trim();
+    }
+
     private int checkList(String line) {
-        char[] lineContents = line.toCharArray();
         int whitespace = 0;
 
-        for (int i =0; i < lineContents.length; ++i) {
-            if(Character.isWhitespace(lineContents[i])) {
+        for (int i =0; i < line.length(); ++i) {
+            char c = line.charAt(i);
+            if(Character.isWhitespace(c)) {
                 ++whitespace;
             }
-            else if (lineContents[i] == '-' || lineContents[i] == '*') {
-                if(lineContents[i+1] == ' ') {
+            else if (c == '-' || c == '*') {
+                if(i + 1 < line.length() && line.charAt(i + 1) == ' ') {
                     return whitespace;
                 }
                 else {
@@ -197,56 +491,68 @@ public class MarkdownConverter {
             return;
         }
 
-        if(indentationLevel.size() == 0 || indentationLevel.lastElement() < level) {
+        if(indentationLevel.size() == 0 || indentationLevel.peek() < level) {
             body.append("<ul>");
-            indentationLevel.add(level);
+            indentationLevel.push(level);
             listOpen = true;
         }
-        else if(indentationLevel.lastElement() > level) {
+        else if(indentationLevel.peek() > level) {
             body.append("</ul>");
             indentationLevel.pop();
         }
 
         if(listOpen) {
-            body.append("<li>" + formatLine(text));
+            body.append("<li>").append(formatLine(text));
         }
         else {
-            body.append("<ul>\n<li>" + formatLine(text));
+            body.append("<ul>\n<li>").append(formatLine(text));
             listOpen = true;
         }
     }
 
     private boolean checkQuote(String line) {
         line = line.trim();
-        String[] tokens = line.split("\\s");
 
-        if(tokens[0].equals(">")) {
-            return true;
+        //the first word is >, words are separated by any of the characters matched by \s
+        if(line.startsWith(">")) {
+            return line.length() == 1 || isSpace(line.charAt(1));
         }
 
         return false;
     }
 
     private void convertQuote(String line) {
-        StringBuilder quote = new StringBuilder("<blockquote>");
         line = line.trim();
-        quote.append(line.substring(1, line.length()));
-        quote.append("</blockquote>\n");
-        body.append(quote.toString());
+        body.append("<blockquote>").append(line, 1, line.length()).append("</blockquote>\n");
     }
 
     private boolean convertSeperator(String line) {
-        if(line.matches("---\\s*")) {
+        if(separator.reset(line).matches()) {
             body.append("<hr>\n");
             return true;
         }
-        else if(line.matches("\\s*```.*")) {
+        else if(codeFence.reset(line).matches()) {
             blockOpen = !blockOpen;
             if(blockOpen) {
-                body.append(String.format("<pre class='language-%s'>\n<code>", line.contains("Python") ? "py" : "cpp"));
+                language = codeLanguage(line);
+                if(Server.highlight) {
+                    code.setLength(0);
+                    body.append("<pre class='language-").append(language)
+                            .append("'>\n<code class='hljs language-").append(language).append("'>");
+                }
+                else {
+                    body.append("<pre class='language-").append(language).append("'>\n<code>");
+                }
+            }
+            else if(Server.highlight) {
+                if(code.length() > 0) { //remove the trailing new line
+                    code.setLength(code.length() - 1);
+                }
+                body.append(SyntaxHighlighter.highlight(language, code.toString()));
+                body.append("</code>\n</pre>\n");
             }
             else {
-                body = body.replace(body.length()-1, body.length(), "");
+                body.setLength(body.length() - 1);
                 body.append("</code>\n</pre>\n");
             }
 
@@ -255,43 +561,62 @@ public class MarkdownConverter {
         return false;
     }
 
+    /**
+     * Returns the language of a code block from the tag following the opening ```, e.g. ```python.
+     * Blocks without a tag are highlighted as C++.
+     */
+    private static String codeLanguage(String line) {
+        String tag = line.trim().substring(3).trim();
+        int end = 0;
+        while(end < tag.length() && (Character.isLetterOrDigit(tag.charAt(end)) || "+#-_".indexOf(tag.charAt(end)) >= 0)) {
+            ++end;
+        }
+        tag = tag.substring(0, end).toLowerCase();
+        return tag.isEmpty() ? "cpp" : tag;
+    }
+
     private boolean convertTable(String line) {
         //check if 1st line is header followed by separator
-        if(checkTableRow(line) && checkTableDelim(this.contents[this.line + 1])) {
+        if(checkTableRow(line) && checkTableDelim(line(this.line + 1))) {
             this.line += 2; //move current parsing line
-            StringBuilder table = new StringBuilder("<table>");
+            body.append("<table>");
 
             //create column headings
-            table.append(convertTableRow(line, true));
+            convertTableRow(line, true);
 
             //convert all applicable table rows below delimiter
-            String lineBuffer = this.contents[this.line].trim();
+            String lineBuffer = line(this.line).trim();
             while(checkTableRow(lineBuffer)) {
-                table.append(convertTableRow(lineBuffer, false));
-                lineBuffer = this.contents[++this.line].trim();
+                convertTableRow(lineBuffer, false);
+                lineBuffer = line(++this.line).trim();
             }
 
-            body.append(table + "</table>\n");
+            body.append("</table>\n");
             return true;
         }
 
         return false;
     }
 
-    private boolean checkTableRow(String line) {
-        // detects text within two (|)'s and any following text ended with a (|)
-        String format = "(\\|\\s*.*\\s*\\|)(\\s*.*\\s*\\|)*";
+    /**
+     * Returns a line of the markdown, or an empty line past the end of the file.
+     */
+    private String line(int index) {
+        return index < lines ? contents[index] : "";
+    }
 
-        return line.matches(format);
+    private boolean checkTableRow(String line) {
+        // detects text within two (|)'s, checked by hand as the equivalent expression backtracks for every | in a line
+        return line.length() > 1 && line.charAt(0) == '|' && line.charAt(line.length() - 1) == '|';
     }
 
-    private String convertTableRow(String line, boolean headers) {
+    private void convertTableRow(String line, boolean headers) {
         String cellTag = headers ? "th" : "td";
-        StringBuilder out = new StringBuilder("<tr>");
+        body.append("<tr>");
 
         //replace math blocks to prevent column conflicts (|)
-        String compatibleLine = line.replaceAll("\\$[^\\$]*\\$", "[math]");
-        String[] mathBlocks = this.regexDelimiterContents("\\$[^\\$]*\\$", line);
+        String compatibleLine = MATH.matcher(line).replaceAll(MATH_PLACEHOLDER);
+        String[] mathBlocks = regexDelimiterContents(MATH, line);
 
         String[] rawCells = compatibleLine.split("\\|");
         //remove first blank row from raw cell strings
@@ -302,29 +627,67 @@ public class MarkdownConverter {
         for (String i : cells) {
             i = formatLine(i);
             //reinsert math blocks
-            int numOfBlocks = this.occurrences("\\[math\\]", i);
+            int numOfBlocks = 0;
+            int found = i.indexOf(MATH_PLACEHOLDER);
+            while(found >= 0) {
+                ++numOfBlocks;
+                found = i.indexOf(MATH_PLACEHOLDER, found + MATH_PLACEHOLDER.length());
+            }
             for(int j = 0; j < numOfBlocks; ++j) {
-                mathBlocks[head] = mathBlocks[head].replace("\\","\\\\");
-                i = i.replaceFirst("\\[math\\]", mathBlocks[head].replace("$", "\\$"));
+                int block = i.indexOf(MATH_PLACEHOLDER);
+                i = i.substring(0, block) + mathBlocks[head] + i.substring(block + MATH_PLACEHOLDER.length());
                 head++;
             }
-            out.append(String.format("<%s>%s</%s>", cellTag, i, cellTag));
+            body.append('<').append(cellTag).append('>').append(i).append("</").append(cellTag).append('>');
         }
 
-        out.append("</tr>");
-        return out.toString();
+        body.append("</tr>");
     }
 
     private boolean checkTableDelim(String line) {
-        // detects (-)'s within two (|)'s and any following (-)'s ended with a (|)
-        String format = "(\\|\\s*-+\\s*\\|)(\\s*-+\\s*\\|)*\\s*";
+        // detects (-)'s within two (|)'s and any following (-)'s ended with a (|), scanned by hand as an expression
+        // recurses once for each column
+        int end = line.length();
+        while(end > 0 && isSpace(line.charAt(end - 1))) {
+            --end;
+        }
+        if(end == 0 || line.charAt(0) != '|') {
+            return false;
+        }
 
-        return line.matches(format);
+        int i = 1;
+        do { //each column: whitespace, dashes, whitespace and a closing |
+            while(i < end && isSpace(line.charAt(i))) {
+                ++i;
+            }
+            int dashes = i;
+            while(i < end && line.charAt(i) == '-') {
+                ++i;
+            }
+            if(i == dashes) {
+                return false;
+            }
+            while(i < end && isSpace(line.charAt(i))) {
+                ++i;
+            }
+            if(i == end || line.charAt(i) != '|') {
+                return false;
+            }
+        } while(++i < end);
+
+        return true;
+    }
+
+    /**
+     * Checks whether a character is whitespace, as matched by \s.
+     */
+    private static boolean isSpace(char c) {
+        return " \t\n\u000B\f\r".indexOf(c) >= 0;
     }
 
     private void convertParagraph(String line) {
         if(paragraphOpen) {
-            body.append(formatLine(line)+ "\n");
+            body.append(formatLine(line)).append('\n');
         }
         else if (listOpen) {
             boolean buffer = paragraphOpen;
@@ -333,7 +696,7 @@ public class MarkdownConverter {
             paragraphOpen = buffer;
         }
         else {
-            body.append(String.format("<p>\n%s\n", formatLine(line)));
+            body.append("<p>\n").append(formatLine(line)).append('\n');
             paragraphOpen = true;
         }
     }
@@ -348,13 +711,10 @@ public class MarkdownConverter {
     }
 
     private String completeLinks(String line) {
-        String linkFormat = "\\[[^\\[]*\\]\\([^\\(]*\\)";
-        String imageFormat = "!\\[[^\\[]*\\]\\([^\\(]*\\)";
-
-        if(line.matches("\\s*.*" + linkFormat + ".*\\s*")) {
+        if(link.reset(line).find()) {
             StringBuilder out = new StringBuilder();
-            String[] tokens = line.split(linkFormat);
-            boolean isImage = line.matches("\\s*.*" + imageFormat + ".*\\s*") ? true : false;
+            String[] tokens = LINK.split(line);
+            boolean isImage = image.reset(line).find();
             int linepos = 0;
 
             //complete links in line
@@ -404,56 +764,103 @@ public class MarkdownConverter {
     private String imageURLTag(String markdownLink) {
         String text = markdownLink.substring(markdownLink.indexOf('[') + 1, markdownLink.indexOf(']'));
         String ref = markdownLink.substring(markdownLink.indexOf('(') + 1, markdownLink.indexOf(')'));
+        if(!Server.inlineImages) {
+            return responsiveImageTag(ref, text);
+        }
+
         String image = "";
-        if(ref.matches("data:image/.*;base64,.*")) {
+        if(DATA_IMAGE.matcher(ref).matches()) {
             image = ref;
         }
         else {
             String imageType  = ref.substring(ref.lastIndexOf('.') + 1);
-            image = String.format("data:image/%s;base64,", imageType);
-            ref = ref.replaceFirst("\\.\\./", "/");
-            ref = ref.replaceFirst("\\.\\.\\\\", "/");
+            image = "data:image/" + imageType + ";base64,";
+            ref = PARENT.matcher(ref).replaceFirst("/");
+            ref = PARENT_WINDOWS.matcher(ref).replaceFirst("/");
 
+            long inlining = RequestContext.clock();
             try {
+                dependencies.add(ref);
                 image += CacheHandler.readFileBytes(ref);
             }
             catch (IOException e) {
                 System.err.println("--LOG--\nError reading image from " + ref + "\nInserting blank link\n--END LOG--");
             }
+            RequestContext.span(RequestContext.Stage.INLINE_IMAGES, inlining);
         }
 
         return "<image src = '" + image + "' alt = " + text + ">";
     }
 
+    /**
+     * Links an image rather than inlining it, loaded lazily by the browser. Local images that can be resized are
+     * offered at each of ImageResizer.WIDTHS narrower than the image, so the browser requests the smallest that fits.
+     */
+    private String responsiveImageTag(String ref, String text) {
+        text = text.replace("'", "&#39;");
+        if(DATA_IMAGE.matcher(ref).matches() || ref.contains("://") || ref.startsWith("//")) {
+            return "<img loading = 'lazy' src = '" + ref + "' alt = '" + text + "'>";
+        }
+        ref = PARENT.matcher(ref).replaceFirst("/");
+        ref = PARENT_WINDOWS.matcher(ref).replaceFirst("/");
+        String path = ref.startsWith("/") ? ref : "/" + ref;
+        dependencies.add(ref); //the dimensions of the image are written into the page
+
+        long reading = RequestContext.clock();
+        Path file = Site.current().pathCache.resolve(path);
+        int[] size = file == null || !ImageResizer.isResizable(path.substring(Math.max(0, path.lastIndexOf('.'))))
+                ? null : ImageResizer.dimensions(file);
+        RequestContext.span(RequestContext.Stage.INLINE_IMAGES, reading);
+        if(size == null) {
+            return "<img loading = 'lazy' src = '" + path + "' alt = '" + text + "'>";
+        }
+
+        String srcset = ImageResizer.srcset(path, size[0]);
+        StringBuilder tag = new StringBuilder("<img loading = 'lazy' decoding = 'async' src = '")
+                .append(ImageResizer.src(path, size[0])).append('\'');
+        if(srcset != null) {
+            tag.append(" srcset = '").append(srcset).append("' sizes = '").append(ImageResizer.SIZES).append('\'');
+        }
+        return tag.append(" width = '").append(size[0]).append("' height = '").append(size[1]).append("' alt = '")
+                .append(text).append("'>").toString();
+    }
+
     private String emphasiseLine(String line, MarkdownCharacterFormat emphasis) {
-        line = line.replaceAll("\\\\\\*", "&#42;"); //replace all escaped formatters
+        line = line.replace("\\*", "&#42;"); //replace all escaped formatters
+        String token = emphasis.getToken();
+        int tokenLength = token.length();
+        int startIndex = line.indexOf(token);
+        int endIndex = startIndex < 0 ? -1 : line.indexOf(token, startIndex + tokenLength);
+        if(endIndex < 0) { //no pair of tokens
+            return line;
+        }
+
         StringBuilder emphasised = new StringBuilder();
-        int tokenLength = emphasis.getToken().length();
-        while(line.matches(genRegexBoundary(emphasis.getToken()))) {
-            int startIndex = line.indexOf(emphasis.getToken());
-            int endIndex = line.indexOf(emphasis.getToken(), startIndex + tokenLength);
+        int position = 0; //start of the part of the line not yet appended
+        do {
             // Store before first asterisk
-            emphasised.append(line.substring(0, startIndex));
+            emphasised.append(line, position, startIndex);
             // Store bold portion
             emphasised.append(emphasis.enclose(line.substring(startIndex + tokenLength, endIndex)));
             // Remove appended values
-            line = line.substring(endIndex + tokenLength, line.length());
-        }
+            position = endIndex + tokenLength;
+            startIndex = line.indexOf(token, position);
+            endIndex = startIndex < 0 ? -1 : line.indexOf(token, startIndex + tokenLength);
+        } while(endIndex >= 0); //found by searching forwards only, so each line is scanned once for each format
 
         // Append remaining
-        emphasised.append(line);
+        emphasised.append(line, position, line.length());
         return emphasised.toString();
     }
 
-    private String generateTOC() {
-        StringBuilder out = new StringBuilder("<div id='toc'>");
+    private void generateTOC() {
+        body.append("<div id='toc'>");
 
         for (String id : documentHeadings) {
-            out.append(String.format("<a href=\"#%s\">%s</a>", id.replace(' ', '-'), id));
+            body.append("<a href=\"#").append(headingId(id)).append("\">").append(id).append("</a>");
         }
 
-        out.append("</div>");
-        return out.toString();
+        body.append("</div>");
     }
 
     private void closeOpen() {
@@ -461,46 +868,15 @@ public class MarkdownConverter {
             body.append("</p>\n");
             paragraphOpen = false;
         }
-        else if(listOpen) {
-            body.append("</ul>\n");
-            indentationLevel.pop();
-            if (indentationLevel.size() > 0) {
-                closeOpen();
-            }
-            else {
-                listOpen = false;
+        else if(listOpen) { //close every nested list, without recursing once for each level
+            while(indentationLevel.size() > 0) {
+                body.append("</ul>\n");
+                indentationLevel.pop();
             }
+            listOpen = false;
         }
     }
 
-    /**
-     * Generates a regular expression to find characters within boundary characters
-     * @return a regular expression to be used with matches()
-     */
-    public static String genRegexBoundary(String token) {
-        StringBuilder expression = new StringBuilder(".*");
-        char[] characters = token.toCharArray();
-
-        for(int pass = 0; pass < 2; pass++) {
-            for (char i : characters) {
-                switch(i) {
-                    case '*':
-                    case '[':
-                    case ']':
-                    case '(':
-                    case ')':
-                        expression.append("\\");
-                        break;
-                }
-                expression.append(i);
-            }
-
-            expression.append(".*");
-        }
-
-        return expression.toString();
-    }
-
     /**
      * Returns the removed contents of a String after calling split() with a regex delimiter
      *
@@ -509,7 +885,11 @@ public class MarkdownConverter {
      * @return The removed tokens
      */
     public static String[] regexDelimiterContents(String delimiter, String line) {
-        String[] splitLine = line.split(delimiter); //split the line
+        return regexDelimiterContents(Pattern.compile(delimiter), line);
+    }
+
+    private static String[] regexDelimiterContents(Pattern delimiter, String line) {
+        String[] splitLine = delimiter.split(line); //split the line
         int start = 0; //start position of the current delimiter
         ArrayList<String> contents = new ArrayList<>();
 
@@ -538,7 +918,60 @@ public class MarkdownConverter {
         return count;
     }
 
+    /**
+     * A getter method to access the files read whilst converting, which the page should be converted again after
+     * any of them change.
+     *
+     * @return The request paths of the files, relative to the servers content root.
+     */
+    public List<String> getDependencies() {
+        return List.copyOf(dependencies);
+    }
+
     public String toString() {
         return result.toString();
     }
+
+    /**
+     * Encodes the converted page as UTF-8, through this converters reused buffers, so the only copy of the page
+     * made is the returned array. Buffers larger than MAX_RETAINED are only used for this page.
+     *
+     * @return The page, encoded as UTF-8.
+     */
+    public byte[] getBytes() {
+        int length = result.length();
+        if(chars.length < length) {
+            chars = new char[length];
+        }
+        result.getChars(0, length, chars, 0);
+
+        CharBuffer in = CharBuffer.wrap(chars, 0, length);
+        if(bytes.capacity() < length) {
+            bytes = ByteBuffer.allocate(length + length / 8);
+        }
+        bytes.clear();
+        encoder.reset();
+        while(encoder.encode(in, bytes, true).isOverflow()) {
+            grow();
+        }
+        while(encoder.flush(bytes).isOverflow()) {
+            grow();
+        }
+        byte[] page = Arrays.copyOf(bytes.array(), bytes.position());
+
+        if(chars.length > MAX_RETAINED) {
+            chars = new char[0];
+        }
+        if(bytes.capacity() > MAX_RETAINED) {
+            bytes = ByteBuffer.allocate(0);
+        }
+        return page;
+    }
+
+    /**
+     * Doubles the size of the byte buffer, keeping the bytes encoded so far.
+     */
+    private void grow() {
+        bytes = ByteBuffer.allocate(bytes.capacity() * 2 + 16).put(bytes.flip());
+    }
 }
@@ -0,0 +1,150 @@
+package com.cvrskidz.servedown;
+
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The com.cvrskidz.servedown.MissingPathCache class remembers a bounded number of recently requested paths that did not
+ * exist, so repeated requests for them (such as those made by scanners probing for /wp-admin or /.env) are answered
+ * with a 404 without accessing the file system.
+ * <p>
+ * The paths are held in a least recently used map, in front of which is a Bloom filter that can be checked without
+ * locking. Requests for paths that exist, which are never in the cache, are almost always rejected by the filter.
+ * Both are cleared whenever a file is created below the content root, as a created file or directory may satisfy
+ * any number of cached paths. Files the server writes itself, such as converted pages, are ignored (see
+ * Site.isServerFile()), so converting a page does not clear the cache.
+ */
+public class MissingPathCache implements ContentWatcher.Listener {
+    private static final int HASHES = 3; //number of bits set in the filter for each path
+
+    private final int capacity; //maximum number of paths held
+    private final int bits; //size of the filter, a power of two
+    private final Map<String, Boolean> paths;
+    private volatile AtomicLongArray filter;
+    private final AtomicInteger insertions = new AtomicInteger(); //paths added to the filter since it was last cleared
+    private volatile long generation; //incremented each time the cache is cleared
+
+    /**
+     * Returns a new, empty cache.
+     *
+     * @param capacity The maximum number of missing paths to remember.
+     */
+    public MissingPathCache(int capacity) {
+        this.capacity = capacity;
+        this.bits = Integer.highestOneBit(Math.max(capacity, 64) * 16 - 1) << 1; //about 16 bits per path
+        this.filter = new AtomicLongArray(bits / 64);
+        this.paths = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > MissingPathCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Checks whether a path was recently found to be missing.
+     *
+     * @param path The request path.
+     * @return True if the path is known not to exist, False if it may exist.
+     */
+    public boolean contains(String path) {
+        AtomicLongArray filter = this.filter;
+        int hash = hash(path);
+        for(int i = 0; i < HASHES; ++i) {
+            int bit = (hash + i * (hash >>> 16 | 1)) & (bits - 1);
+            if((filter.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+
+        synchronized (paths) {
+            return paths.get(path) != null;
+        }
+    }
+
+    /**
+     * Returns the generation of the cache, which must be read before checking whether a path exists, and passed
+     * to add() if it does not. This prevents a path being cached as missing if a file was created in between.
+     *
+     * @return The number of times the cache has been cleared.
+     */
+    public long generation() {
+        return generation;
+    }
+
+    /**
+     * Records a path that was not found. Once the filter has had far more paths added than the cache can hold
+     * it is rebuilt from the paths still held, so evicted paths do not slowly fill it.
+     *
+     * @param path The request path.
+     * @param generation The generation of the cache before the path was found to be missing.
+     */
+    public void add(String path, long generation) {
+        synchronized (paths) {
+            if(generation != this.generation) { //a file has been created since the path was checked
+                return;
+            }
+            paths.put(path, Boolean.TRUE);
+            if(insertions.incrementAndGet() > capacity * 2) {
+                AtomicLongArray rebuilt = new AtomicLongArray(bits / 64);
+                for(String held : paths.keySet()) {
+                    set(rebuilt, held);
+                }
+                filter = rebuilt;
+                insertions.set(paths.size());
+                return;
+            }
+        }
+        set(filter, path);
+    }
+
+    /**
+     * Forgets every missing path.
+     */
+    public void clear() {
+        synchronized (paths) {
+            generation++;
+            paths.clear();
+            filter = new AtomicLongArray(bits / 64);
+            insertions.set(0);
+        }
+    }
+
+    @Override
+    public void changed(WatchEvent.Kind<?> kind, Path file) {
+        if(file == null || (kind == StandardWatchEventKinds.ENTRY_CREATE && !Site.current().isServerFile(file))) {
+            clear();
+        }
+    }
+
+    /**
+     * A getter method to access the number of missing paths held.
+     *
+     * @return The number of paths in the cache.
+     */
+    public int size() {
+        synchronized (paths) {
+            return paths.size();
+        }
+    }
+
+    private void set(AtomicLongArray filter, String path) {
+        int hash = hash(path);
+        for(int i = 0; i < HASHES; ++i) {
+            int bit = (hash + i * (hash >>> 16 | 1)) & (bits - 1);
+            long mask = 1L << bit;
+            long word;
+            while(((word = filter.get(bit >>> 6)) & mask) == 0 && !filter.compareAndSet(bit >>> 6, word, word | mask));
+        }
+    }
+
+    private static int hash(String path) {
+        int h = path.hashCode() * 0x9E3779B9; //spread the bits of the string hash
+        return h ^ (h >>> 15);
+    }
+}
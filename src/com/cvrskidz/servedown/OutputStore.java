@@ -0,0 +1,588 @@
+package com.cvrskidz.servedown;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The com.cvrskidz.servedown.OutputStore class keeps the HTML converted from markdown files in a directory of it's
+ * own, rather than beside each markdown file, with a manifest recording how each page was converted.
+ * <p>
+ * The manifest records the hash of each pages markdown, the version of the converter (and the options and assets
+ * it was run with), and the hash of every file the page depends on, such as inlined images. A page is only served
+ * from the store whilst all of these are unchanged. The size and modification time of each file are recorded too,
+ * so unchanged files are recognised without being read.
+ * <p>
+ * The manifest is loaded when the server starts, and stale pages are converted again on a background thread, so
+ * pages are served without conversion as soon as the server restarts. Whilst running, a page found to be stale
+ * by a request can be converted again in the background with revalidate(), so the previous conversion is served
+ * until the new page replaces it.
+ * <p>
+ * The manifest is a text file, beginning with the line MANIFEST_HEADER. Each page is a line of tab separated fields:
+ * the markdown file, it's size, modification time and hash, and the converter version. Each dependency follows on a
+ * line beginning with a tab: the file, it's size, modification time and hash. Paths are relative to the content
+ * root, separated by /. The manifest is saved shortly after it changes, so a burst of conversions (such as a
+ * refresh) rewrites it once, and when the server stops (see flush()).
+ */
+public class OutputStore implements ContentWatcher.Listener {
+    private static final String MANIFEST = "manifest";
+    private static final String MANIFEST_HEADER = "servedown-manifest 1";
+    private static final int HASH_LENGTH = 32; //hex digits of each hash recorded
+    private static final int REVALIDATORS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static final long SAVE_DELAY = 1; //seconds to wait after a change before saving the manifest
+
+    //converts stale pages in the background, shared by every site
+    private static final ExecutorService revalidator = Executors.newFixedThreadPool(REVALIDATORS, r -> {
+        Thread t = new Thread(r, "revalidator");
+        t.setDaemon(true);
+        return t;
+    });
+
+    //saves the manifests of every site
+    private static final ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "output-manifest-saver");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * The recorded state of a file a page was converted from.
+     */
+    private static class Source {
+        private final String path; //relative to the content root
+        private volatile long size, modified;
+        private final String hash;
+
+        Source(String path, long size, long modified, String hash) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * The manifest entry of a converted page.
+     */
+    private static class Record {
+        private final Source source;
+        private final String version;
+        private final List<Source> dependencies;
+        private volatile String preloads; //links preloading the first images, built when first requested
+
+        Record(Source source, String version, List<Source> dependencies) {
+            this.source = source;
+            this.version = version;
+            this.dependencies = dependencies;
+        }
+    }
+
+    /**
+     * The current converter version, and the options and bundles it was derived from.
+     */
+    private static class Version {
+        private final long bundles; //the asset pipelines generation
+        private final boolean highlight, inlineImages;
+        private final String hash;
+
+        Version(long bundles, boolean highlight, boolean inlineImages, String hash) {
+            this.bundles = bundles;
+            this.highlight = highlight;
+            this.inlineImages = inlineImages;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * A page being converted again in the background, whilst it's previous conversion is served.
+     */
+    public static class Revalidation {
+        private final long staleSince; //milliseconds since the epoch, see staleSince()
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Revalidation(long staleSince) {
+            this.staleSince = staleSince;
+        }
+
+        /**
+         * Checks whether the page has been stale for longer than Server.maxStale, after which requests should wait
+         * for the conversion rather than be served the previous page.
+         *
+         * @return True if the page became stale more than Server.maxStale seconds ago.
+         */
+        public boolean isOverdue() {
+            return System.currentTimeMillis() - staleSince > TimeUnit.SECONDS.toMillis(Server.maxStale);
+        }
+
+        /**
+         * Waits for the conversion to finish, whether or not it succeeded.
+         */
+        public void await() {
+            try {
+                done.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException e) { //never completed exceptionally, errors are logged by the conversion
+            }
+        }
+    }
+
+    private final Path root; //the directory of converted pages
+    private final Path content; //the content root the markdown files are in
+    private final Map<String, Record> records = new ConcurrentHashMap<>(); //keyed by markdown path
+    private final Map<String, Revalidation> revalidating = new ConcurrentHashMap<>(); //pages being converted again
+    private volatile Version version = new Version(-1, false, false, ""); //derived again once an option changes
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+    private final long loaded = System.currentTimeMillis(); //changes made whilst the server was stopped are found now
+
+    /**
+     * Returns a store of the pages converted into a directory, loading it's manifest if one exists.
+     *
+     * @param root The directory to hold converted pages, created if it does not exist.
+     * @param content The content root of the server.
+     * @throws IOException If the directory cannot be created.
+     */
+    public OutputStore(Path root, Path content) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.content = content.toAbsolutePath().normalize();
+        Files.createDirectories(this.root);
+        load();
+    }
+
+    /**
+     * Returns the file a markdown file is converted to.
+     *
+     * @param source The absolute path of a markdown file, below the content root.
+     * @return The absolute path of the converted page within the store.
+     */
+    public Path output(Path source) {
+        String name = source.getFileName().toString();
+        String page = name.substring(0, name.lastIndexOf('.')) + ".html";
+        return directory(source.getParent()).resolve(page);
+    }
+
+    /**
+     * Returns the directory the markdown files of a content directory are converted into.
+     *
+     * @param directory The absolute path of a directory, below the content root.
+     * @return The absolute path of the directory within the store.
+     */
+    public Path directory(Path directory) {
+        return root.resolve(content.relativize(directory).toString());
+    }
+
+    /**
+     * Checks whether the page converted from a markdown file is up to date: converted by the current version of the
+     * converter, and from the current contents of the markdown file and every file it depends on.
+     *
+     * @param source The absolute path of a markdown file, below the content root.
+     * @return True if the converted page can be served, False if it must be converted again.
+     */
+    public boolean isFresh(Path source) {
+        Record record = records.get(relative(source));
+        if(record == null || !record.version.equals(version())) {
+            return false;
+        }
+        if(!unchanged(record.source)) {
+            return false;
+        }
+        for(Source dependency : record.dependencies) {
+            if(!unchanged(dependency)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records a page as converted from the supplied markdown, and schedules the manifest to be saved.
+     *
+     * @param source The absolute path of the markdown file.
+     * @param modified The modification time of the markdown file, read before it's contents.
+     * @param markdown The contents of the markdown file the page was converted from.
+     * @param dependencies The request paths of other files read during the conversion, such as images.
+     * @param version The converter version when the conversion started, as returned by version().
+     */
+    public void record(Path source, long modified, byte[] markdown, List<String> dependencies, String version) {
+        List<Source> read = new ArrayList<>();
+        for(String dependency : dependencies) {
+            Path file = Site.current().pathCache.resolve(dependency);
+            if(file == null || !Files.isRegularFile(file)) {
+                continue;
+            }
+            try {
+                read.add(new Source(relative(file), Files.size(file), Files.getLastModifiedTime(file).toMillis(),
+                        hash(file)));
+            }
+            catch (IOException e) { //recorded without it, the page is converted again if it is created
+                System.err.println("--LOG--\nError reading dependency " + file + "\n" + e + "\n--END LOG--");
+            }
+        }
+
+        records.put(relative(source), new Record(new Source(relative(source), markdown.length, modified,
+                hash(markdown)), version, read));
+        scheduleSave();
+    }
+
+    /**
+     * Returns the version of the converter, combined with the options and assets pages are converted with. Pages
+     * converted with a different version are stale.
+     *
+     * The version is only derived again once the sites asset pipeline builds a bundle, or the highlight or
+     * inline images option changes.
+     *
+     * @return A hash of MarkdownConverter.VERSION, the highlight and inline images options and the assets included
+     * in pages.
+     */
+    public String version() {
+        long bundles = Site.current().assets.generation();
+        boolean highlight = Server.highlight, inlineImages = Server.inlineImages;
+        Version cached = version;
+        if(cached.bundles != bundles || cached.highlight != highlight || cached.inlineImages != inlineImages) {
+            String current = MarkdownConverter.VERSION + "\n" + highlight + "\n" + inlineImages + "\n"
+                    + String.join("\n", HTMLHandler.styles()) + "\n" + String.join("\n", HTMLHandler.scripts());
+            cached = new Version(bundles, highlight, inlineImages, hash(current.getBytes(StandardCharsets.UTF_8)));
+            version = cached;
+        }
+        return cached.hash;
+    }
+
+    /**
+     * Returns the links preloading the first images of a page, built from the dependencies recorded when it was
+     * last converted (see com.cvrskidz.servedown.EarlyHints).
+     *
+     * @param source The absolute path of a markdown file, below the content root.
+     * @return The value of a Link field, or an empty string if the page has not been recorded or shows no images.
+     */
+    public String preloads(Path source) {
+        Record record = records.get(relative(source));
+        if(record == null) {
+            return "";
+        }
+
+        String links = record.preloads;
+        if(links == null) {
+            List<String> paths = new ArrayList<>();
+            for(Source dependency : record.dependencies) {
+                paths.add(dependency.path);
+            }
+            links = EarlyHints.images(paths);
+            record.preloads = links;
+        }
+        return links;
+    }
+
+    /**
+     * Converts every stale page recorded in the manifest on a new daemon thread, and removes the pages of markdown
+     * files that no longer exist.
+     */
+    public void refresh() {
+        Site site = Site.current();
+        Thread thread = new Thread(() -> {
+            Site.enter(site); //pages are converted with the sites assets, and cached by the site
+            int converted = 0, removed = 0;
+            for(Record record : records.values()) {
+                Path source = content.resolve(record.source.path);
+                if(!Files.isRegularFile(source)) {
+                    remove(source);
+                    ++removed;
+                }
+                else if(!isFresh(source)) {
+                    try {
+                        HTMLHandler.convert(source);
+                        ++converted;
+                    }
+                    catch (IOException | RuntimeException e) {
+                        System.err.println("--LOG--\nError converting " + source + "\n" + e + "\n--END LOG--");
+                    }
+                }
+            }
+            System.out.println("Output store refreshed: " + converted + " page(s) converted, " + removed + " removed");
+        }, "output-store");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the background conversion of a page, if one is running.
+     *
+     * @param source The absolute path of a markdown file, below the content root.
+     * @return The conversion started by revalidate(), or null if the page is not being converted.
+     */
+    public Revalidation revalidation(Path source) {
+        return revalidating.get(relative(source));
+    }
+
+    /**
+     * Converts a page again on a background thread, whilst requests are served it's previous conversion. Only one
+     * conversion of each page runs at once, the new page replaces the previous one on disk and in the sites page
+     * cache once it is complete.
+     *
+     * @param source The absolute path of a markdown file, below the content root.
+     * @return The conversion of the page, started by this call or already running.
+     */
+    public Revalidation revalidate(Path source) {
+        String path = relative(source);
+        Revalidation running = revalidating.get(path);
+        if(running != null) {
+            return running;
+        }
+        Revalidation started = new Revalidation(staleSince(path));
+        running = revalidating.putIfAbsent(path, started);
+        if(running != null) {
+            return running;
+        }
+
+        Site site = Site.current();
+        revalidator.execute(() -> {
+            Site previous = Site.enter(site); //converted with the sites assets, and cached by the site
+            try {
+                HTMLHandler.convert(source);
+            }
+            catch (IOException | RuntimeException e) { //the previous conversion is served until the next attempt
+                System.err.println("--LOG--\nError converting " + source + "\n" + e + "\n--END LOG--");
+            }
+            finally {
+                revalidating.remove(path, started);
+                started.done.complete(null);
+                Site.enter(previous);
+            }
+        });
+        return started;
+    }
+
+    /**
+     * Returns when a recorded page became stale: when the earliest of it's changed files was modified, or when the
+     * store was loaded if the file was modified whilst the server was stopped. Pages stale for any other reason,
+     * such as a new converter version or a removed image, are stale from now.
+     *
+     * @return The time in milliseconds since the epoch, no later than now.
+     */
+    private long staleSince(String path) {
+        long now = System.currentTimeMillis();
+        Record record = records.get(path);
+        if(record == null) {
+            return now;
+        }
+
+        long since = changedSince(record.source, now);
+        for(Source dependency : record.dependencies) {
+            since = Math.min(since, changedSince(dependency, now));
+        }
+        return since;
+    }
+
+    private long changedSince(Source recorded, long now) {
+        PathCache.Entry entry = Site.current().pathCache.stat(content.resolve(recorded.path));
+        if(!entry.isFile() || entry.getModified() <= recorded.modified) {
+            return now;
+        }
+        return Math.min(now, Math.max(entry.getModified(), loaded));
+    }
+
+    /**
+     * Removes a page from the store, and the manifest.
+     *
+     * @param source The absolute path of the markdown file the page was converted from.
+     */
+    public void remove(Path source) {
+        if(records.remove(relative(source)) != null) {
+            scheduleSave();
+        }
+        try {
+            Files.deleteIfExists(output(source));
+        }
+        catch (IOException e) {
+            System.err.println("--LOG--\nError removing " + output(source) + "\n" + e + "\n--END LOG--");
+        }
+    }
+
+    @Override
+    public void changed(WatchEvent.Kind<?> kind, Path file) {
+        if(kind != StandardWatchEventKinds.ENTRY_DELETE || file == null || !file.startsWith(content)) {
+            return;
+        }
+
+        String deleted = relative(file);
+        for(String path : records.keySet()) {
+            if(path.equals(deleted) || path.startsWith(deleted + "/")) { //the file, or every file in a directory
+                remove(content.resolve(path));
+            }
+        }
+    }
+
+    /**
+     * Checks whether a file has the recorded contents. The file is only read if it's size or modification time
+     * differ from the record, and the record is updated if the contents are unchanged.
+     */
+    private boolean unchanged(Source recorded) {
+        Path file = content.resolve(recorded.path);
+        PathCache.Entry entry = Site.current().pathCache.stat(file);
+        if(!entry.isFile()) {
+            return false;
+        }
+        if(entry.getSize() == recorded.size && entry.getModified() == recorded.modified) {
+            return true;
+        }
+
+        try {
+            if(entry.getSize() != recorded.size || !hash(file).equals(recorded.hash)) {
+                return false;
+            }
+        }
+        catch (IOException e) {
+            return false;
+        }
+        recorded.modified = entry.getModified(); //touched, but unchanged
+        scheduleSave();
+        return true;
+    }
+
+    /**
+     * Reads the manifest, ignoring it if it was written by a different version of the store.
+     */
+    private void load() {
+        Path manifest = root.resolve(MANIFEST);
+        if(!Files.isRegularFile(manifest)) {
+            return;
+        }
+
+        try(BufferedReader in = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            if(!MANIFEST_HEADER.equals(in.readLine())) {
+                System.out.println("Ignoring output manifest of an unsupported version");
+                return;
+            }
+
+            Record record = null;
+            String line;
+            while((line = in.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if(line.startsWith("\t") && fields.length == 5 && record != null) {
+                    record.dependencies.add(new Source(fields[1], Long.parseLong(fields[2]),
+                            Long.parseLong(fields[3]), fields[4]));
+                }
+                else if(fields.length == 5) {
+                    record = new Record(new Source(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                            fields[3]), fields[4], new ArrayList<>());
+                    records.put(fields[0], record);
+                }
+            }
+            System.out.println("Loaded output manifest of " + records.size() + " page(s)");
+        }
+        catch (IOException | RuntimeException e) { //pages are converted again as they are requested
+            System.err.println("--LOG--\nError reading output manifest\n" + e + "\n--END LOG--");
+            records.clear();
+        }
+    }
+
+    /**
+     * Saves the manifest after a delay, so a burst of changes is only saved once.
+     */
+    private void scheduleSave() {
+        if(saveScheduled.compareAndSet(false, true)) {
+            saver.schedule(this::flush, SAVE_DELAY, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Saves the manifest now if it has changed since it was last saved, such as when the server stops.
+     */
+    public void flush() {
+        if(saveScheduled.getAndSet(false)) {
+            save();
+        }
+    }
+
+    /**
+     * Writes the manifest to a temporary file, replacing the previous manifest once it is complete.
+     */
+    private synchronized void save() {
+        Map<String, Record> sorted = new LinkedHashMap<>();
+        records.keySet().stream().sorted().forEach(path -> sorted.put(path, records.get(path)));
+
+        try {
+            Path temp = Files.createTempFile(root, "." + MANIFEST, ".tmp");
+            try(BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                out.write(MANIFEST_HEADER + "\n");
+                for(Record record : sorted.values()) {
+                    if(record == null) {
+                        continue; //removed whilst saving
+                    }
+                    Source source = record.source;
+                    out.write(source.path + "\t" + source.size + "\t" + source.modified + "\t" + source.hash
+                            + "\t" + record.version + "\n");
+                    for(Source dependency : record.dependencies) {
+                        out.write("\t" + dependency.path + "\t" + dependency.size + "\t" + dependency.modified
+                                + "\t" + dependency.hash + "\n");
+                    }
+                }
+            }
+            Files.move(temp, root.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            System.err.println("--LOG--\nError saving output manifest\n" + e + "\n--END LOG--");
+        }
+    }
+
+    private String relative(Path file) {
+        return content.relativize(file).toString().replace('\\', '/');
+    }
+
+    /**
+     * Returns the first HASH_LENGTH hex digits of the SHA-256 hash of a file.
+     */
+    static String hash(Path file) throws IOException {
+        try(InputStream in = Files.newInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[8192];
+            int read;
+            while((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+            return hex(digest.digest());
+        }
+        catch (NoSuchAlgorithmException e) { //required of every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the first HASH_LENGTH hex digits of the SHA-256 hash of an array.
+     */
+    static String hash(byte[] contents) {
+        try {
+            return hex(MessageDigest.getInstance("SHA-256").digest(contents));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] hash) {
+        StringBuilder hex = new StringBuilder(HASH_LENGTH);
+        for(int i = 0; hex.length() < HASH_LENGTH; ++i) {
+            hex.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
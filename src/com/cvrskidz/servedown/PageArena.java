@@ -0,0 +1,270 @@
+package com.cvrskidz.servedown;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The com.cvrskidz.servedown.PageArena class stores the bodies of converted pages outside of the Java heap, so a
+ * large number of cached pages does not lengthen garbage collections.
+ * <p>
+ * Pages are allocated from slabs: large direct (or memory mapped) buffers that pages are appended to. A page larger
+ * than a slab is given a slab of it's own. Each page is reference counted, it is held once by it's owner and once by
+ * each response sending it, and it's space is only freed once every reference is released. A slab is dropped once
+ * all of it's pages have been freed.
+ * <p>
+ * Freed pages leave gaps in their slab, so owners should compact the arena by relocating the pages of sparse slabs
+ * (see isSparse() and relocate()), letting the emptied slabs be dropped.
+ */
+public class PageArena {
+    private static final int SLAB_SIZE = 4 << 20; //bytes in each shared slab
+    private static final double SPARSE = 0.5; //fraction of a slab that must be live for it's pages to stay in place
+
+    /**
+     * Where slabs are allocated.
+     */
+    public enum Kind {
+        HEAP, DIRECT, MAPPED;
+    }
+
+    /**
+     * A page stored in the arena.
+     */
+    public class Page {
+        private final Slab slab;
+        private final int offset, length;
+        private final AtomicInteger references = new AtomicInteger(1); //held by the owner until released
+
+        private Page(Slab slab, int offset, int length) {
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Takes a reference to the page, which must be released once the contents are no longer read.
+         *
+         * @return A read only view of the page, or null if the page has already been freed.
+         */
+        public ByteBuffer retain() {
+            int count;
+            do {
+                count = references.get();
+                if(count == 0) {
+                    return null;
+                }
+            } while(!references.compareAndSet(count, count + 1));
+
+            return view();
+        }
+
+        /**
+         * Releases a reference to the page, freeing it once no references remain.
+         */
+        public void release() {
+            if(references.decrementAndGet() == 0) {
+                free(this);
+            }
+        }
+
+        /**
+         * Checks whether every reference to the page has been released, and it's space freed.
+         *
+         * @return True if the page has been freed.
+         */
+        public boolean isFreed() {
+            return references.get() == 0;
+        }
+
+        /**
+         * A getter method to access the size of the page.
+         *
+         * @return The number of bytes stored.
+         */
+        public int getLength() {
+            return length;
+        }
+
+        private ByteBuffer view() {
+            ByteBuffer view = slab.buffer.duplicate();
+            view.limit(offset + length).position(offset);
+            return view.slice().asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * A buffer pages are allocated from.
+     */
+    private static class Slab {
+        private final ByteBuffer buffer;
+        private int used; //bytes allocated, pages are appended at this offset
+        private int live; //bytes of pages not yet freed
+        private int pages; //pages not yet freed
+
+        Slab(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private final Kind kind;
+    private final long capacity; //the most bytes of slabs to allocate
+    private final List<Slab> slabs = new ArrayList<>(); //guarded by this
+    private Slab current; //the shared slab pages are appended to
+    private long allocated, live; //bytes of slabs and of live pages
+
+    /**
+     * Returns a new, empty arena.
+     *
+     * @param kind Where slabs are allocated.
+     * @param capacity The most bytes of slabs to allocate.
+     */
+    public PageArena(Kind kind, long capacity) {
+        this.kind = kind;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Copies a page into the arena.
+     *
+     * @param contents The contents of the page, from it's position to it's limit.
+     * @return The stored page, held by the caller until released, or null if the arena is full.
+     */
+    public synchronized Page allocate(ByteBuffer contents) {
+        int length = contents.remaining();
+        Slab slab = current;
+
+        if(length > SLAB_SIZE) { //too large to share a slab
+            slab = newSlab(length);
+            if(slab == null) {
+                return null;
+            }
+        }
+        else if(slab == null || slab.buffer.capacity() - slab.used < length) {
+            slab = newSlab(SLAB_SIZE);
+            if(slab == null) {
+                return null;
+            }
+            current = slab; //the previous slab is dropped once it's pages are freed
+        }
+
+        Page page = new Page(slab, slab.used, length);
+        ByteBuffer target = slab.buffer.duplicate();
+        target.position(slab.used);
+        target.put(contents.duplicate());
+        slab.used += length;
+        slab.live += length;
+        ++slab.pages;
+        live += length;
+        return page;
+    }
+
+    /**
+     * Checks whether a page is stored in a slab that is mostly free, and should be relocated.
+     *
+     * @param page A page in this arena.
+     * @return True if the page should be relocated to compact the arena.
+     */
+    public synchronized boolean isSparse(Page page) {
+        Slab slab = page.slab;
+        return slab != current && slab.live < slab.buffer.capacity() * SPARSE;
+    }
+
+    /**
+     * Copies a page into the current slab. The original page is not released, so responses still reading it are
+     * unaffected, and should be released by it's owner once the copy replaces it.
+     *
+     * @param page A page in this arena, held by the caller.
+     * @return The copied page, or null if the arena is full.
+     */
+    public Page relocate(Page page) {
+        return allocate(page.view());
+    }
+
+    /**
+     * Checks whether the arena holds enough free space in it's slabs that it should be compacted.
+     *
+     * @return True if less than half of the allocated slabs hold live pages.
+     */
+    public synchronized boolean isFragmented() {
+        return allocated > SLAB_SIZE && live < allocated * SPARSE;
+    }
+
+    private synchronized void free(Page page) {
+        Slab slab = page.slab;
+        slab.live -= page.length;
+        --slab.pages;
+        live -= page.length;
+
+        if(slab.pages == 0) {
+            if(slab == current) {
+                slab.used = 0; //reuse the current slab from the start
+            }
+            else {
+                drop(slab);
+            }
+        }
+    }
+
+    /**
+     * Allocates a new slab, if it fits in the arenas capacity.
+     */
+    private Slab newSlab(int size) {
+        if(allocated + size > capacity) {
+            return null;
+        }
+
+        ByteBuffer buffer;
+        try {
+            switch (kind) {
+                case HEAP:
+                    buffer = ByteBuffer.allocate(size);
+                    break;
+                case MAPPED: //backed by a deleted file, so the operating system can page it out
+                    Path file = Files.createTempFile("servedown-pages", ".slab");
+                    try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+                        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                    }
+                    break;
+                default:
+                    buffer = ByteBuffer.allocateDirect(size);
+            }
+        }
+        catch (IOException | OutOfMemoryError e) {
+            System.err.println("--LOG--\nError allocating a page slab\n" + e + "\n--END LOG--");
+            return null;
+        }
+
+        Slab slab = new Slab(buffer);
+        slabs.add(slab);
+        allocated += size;
+        return slab;
+    }
+
+    /**
+     * Drops an empty slab, leaving it's buffer to be collected.
+     */
+    private void drop(Slab slab) {
+        slabs.remove(slab);
+        allocated -= slab.buffer.capacity();
+        if(slab == current) {
+            current = null;
+        }
+    }
+
+    /**
+     * Summarises the space used by the arena.
+     *
+     * @return The number of slabs, the bytes allocated and the bytes held by live pages.
+     */
+    public synchronized String statistics() {
+        return slabs.size() + " " + kind.toString().toLowerCase() + " slab(s), " + live + " of " + allocated
+                + " bytes live, capacity " + capacity;
+    }
+}
@@ -0,0 +1,236 @@
+package com.cvrskidz.servedown;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The com.cvrskidz.servedown.PageCache class holds the HTML output of converted pages in memory, so cached pages are
+ * served without reading them from disk. Pages are stored in a com.cvrskidz.servedown.PageArena, off the Java heap
+ * by default, and the least recently requested pages are evicted once the arena is full.
+ * <p>
+ * Each cached page is checked against the size and modification time of it's HTML file before it is served, and
+ * pages are removed as their files change.
+ */
+public class PageCache implements ContentWatcher.Listener {
+    /**
+     * A cached page, and the metadata of the file it was read from.
+     */
+    private static class Entry {
+        private final PageArena.Page page;
+        private final long size, modified;
+
+        Entry(PageArena.Page page, long size, long modified) {
+            this.page = page;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    private final PageArena arena;
+    private final Map<Path, Entry> pages = new LinkedHashMap<>(16, 0.75f, true); //in access order, guarded by this
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    /**
+     * Returns a new, empty cache.
+     *
+     * @param arena The arena to store pages in.
+     */
+    public PageCache(PageArena arena) {
+        this.arena = arena;
+    }
+
+    /**
+     * Returns a response sending a cached page. The response holds a reference to the page until it is released.
+     *
+     * @param file The metadata of the pages HTML file.
+     * @return A response sending the cached page, or null if the page is not cached or it's file has changed.
+     */
+    public HTTPResponse get(PathCache.Entry file) {
+        Entry entry;
+        synchronized (this) {
+            entry = pages.get(file.getFile());
+        }
+
+        ByteBuffer content = null;
+        if(entry != null && entry.size == file.getSize() && entry.modified == file.getModified()) {
+            content = entry.page.retain(); //null if the page was evicted since it was found
+        }
+        if(content == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return HTTPResponse.newResponse(".html", content, entry.page::release, HTTPResponse.PROTOCOL.HTTP);
+    }
+
+    /**
+     * Caches a page, evicting the least recently requested pages if the arena is full. Evicted pages that responses
+     * are still sending are only freed once the responses finish, so once the bytes waiting to be freed would hold
+     * the page, it is not cached rather than evicting the rest of the cache.
+     *
+     * @param file The metadata of the pages HTML file, read after the contents were written.
+     * @param contents The contents of the HTML file.
+     */
+    public void put(PathCache.Entry file, byte[] contents) {
+        if(!file.isFile() || file.getSize() != contents.length) {
+            return; //changed since it was read
+        }
+
+        synchronized (this) {
+            if(arena.isFragmented()) {
+                compact();
+            }
+
+            PageArena.Page page;
+            long held = 0; //bytes evicted whilst responses are sending them
+            while((page = arena.allocate(ByteBuffer.wrap(contents))) == null && !pages.isEmpty()
+                    && held < contents.length) {
+                Iterator<Entry> eldest = pages.values().iterator();
+                PageArena.Page evicted = eldest.next().page;
+                eldest.remove();
+                evicted.release();
+                if(!evicted.isFreed()) {
+                    held += evicted.getLength();
+                }
+                if(arena.isFragmented()) {
+                    compact();
+                }
+            }
+            if(page == null) {
+                return; //larger than the arena, or the space is freed once responses finish
+            }
+
+            Entry replaced = pages.put(file.getFile(), new Entry(page, file.getSize(), file.getModified()));
+            if(replaced != null) {
+                replaced.page.release();
+            }
+        }
+    }
+
+    /**
+     * Relocates the pages held in sparse slabs, so the slabs are dropped once responses reading them finish.
+     * The lock of this cache must be held.
+     */
+    private void compact() {
+        List<Path> sparse = new ArrayList<>();
+        for(Map.Entry<Path, Entry> cached : pages.entrySet()) {
+            if(arena.isSparse(cached.getValue().page)) {
+                sparse.add(cached.getKey());
+            }
+        }
+
+        for(Path file : sparse) {
+            Entry entry = pages.get(file);
+            PageArena.Page moved = arena.relocate(entry.page);
+            if(moved == null) {
+                return; //no room to move any more pages
+            }
+            pages.put(file, new Entry(moved, entry.size, entry.modified));
+            entry.page.release();
+        }
+    }
+
+    /**
+     * Removes a page, and any pages below it if it is a directory.
+     *
+     * @param file The absolute path of a HTML file or directory.
+     */
+    public synchronized void invalidate(Path file) {
+        Iterator<Map.Entry<Path, Entry>> cached = pages.entrySet().iterator();
+        while(cached.hasNext()) {
+            Map.Entry<Path, Entry> entry = cached.next();
+            if(entry.getKey().startsWith(file)) {
+                entry.getValue().page.release();
+                cached.remove();
+            }
+        }
+    }
+
+    @Override
+    public void changed(WatchEvent.Kind<?> kind, Path file) {
+        if(file == null) {
+            invalidate(Path.of("").toAbsolutePath().getRoot());
+            return;
+        }
+        if(kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            invalidate(file);
+            return;
+        }
+
+        Entry entry;
+        synchronized (this) {
+            entry = pages.get(file);
+        }
+        if(entry == null) {
+            return;
+        }
+        try { //pages cached as they were written are unchanged
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            if(attributes.size() == entry.size && attributes.lastModifiedTime().toMillis() == entry.modified) {
+                return;
+            }
+        }
+        catch (IOException e) {
+            //removed below
+        }
+        invalidate(file);
+    }
+
+    /**
+     * A getter method to access the number of pages cached.
+     *
+     * @return The number of pages held in the arena.
+     */
+    public synchronized int size() {
+        return pages.size();
+    }
+
+    /**
+     * Returns the fraction of requests for a page that were answered from the cache.
+     *
+     * @return The hit rate, between 0 and 1, or 0 if no pages have been requested.
+     */
+    public double hitRate() {
+        long hit = hits.get(), total = hit + misses.get();
+        return total == 0 ? 0 : (double)hit / total;
+    }
+
+    /**
+     * Summarises the pages cached, the space they use in the arena, and the memory used by the server on and off
+     * the heap.
+     *
+     * @return The number of pages cached and hit rate, the arenas usage, and the memory used by the server.
+     */
+    public String statistics() {
+        int cached;
+        synchronized (this) {
+            cached = pages.size();
+        }
+        StringBuilder summary = new StringBuilder("Pages: ").append(cached).append(" cached, ")
+                .append(hits.get()).append(" hit(s), ").append(misses.get()).append(" miss(es), ")
+                .append(arena.statistics());
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        summary.append("\nMemory: ").append(heap.getUsed()).append(" of ").append(heap.getCommitted())
+                .append(" bytes heap");
+        for(BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            summary.append(", ").append(pool.getMemoryUsed()).append(" bytes ").append(pool.getName());
+        }
+        return summary.toString();
+    }
+}
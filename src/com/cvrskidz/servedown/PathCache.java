@@ -0,0 +1,230 @@
+package com.cvrskidz.servedown;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * The com.cvrskidz.servedown.PathCache class resolves request paths to files below the content root, and caches the
+ * metadata of those files, so repeated requests for the same file are resolved without accessing the file system.
+ * <p>
+ * Metadata is invalidated by a com.cvrskidz.servedown.ContentWatcher as files change, and also expires after a short
+ * time to live in case a change is not reported.
+ * <p>
+ * Each cache holds at most MAX_ENTRIES paths. Once it is full the paths not requested since the cache was last
+ * full are evicted, rather than every path, so a scanner requesting many unknown paths does not evict the files
+ * that are requested often.
+ */
+public class PathCache implements ContentWatcher.Listener {
+    private static final int MAX_ENTRIES = 10000; //the caches evict entries if they grow beyond this size
+    private static final int EVICTION_RATE = 8; //at least one in this many entries are evicted from a full cache
+
+    /**
+     * The type of file found at a path.
+     */
+    public enum Kind {
+        FILE, DIRECTORY, MISSING;
+    }
+
+    /**
+     * The metadata of a file, as it was when it was cached.
+     */
+    public static class Entry {
+        private final Path file;
+        private final Kind kind;
+        private final long size, modified; //size in bytes and last modified time in milliseconds
+        private final String contentType;
+        private final long expires; //System.nanoTime() after which the entry must be read again
+        private volatile boolean used; //requested since the cache was last full
+
+        private Entry(Path file, Kind kind, long size, long modified, String contentType, long expires) {
+            this.file = file;
+            this.kind = kind;
+            this.size = size;
+            this.modified = modified;
+            this.contentType = contentType;
+            this.expires = expires;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public boolean isFile() {
+            return kind == Kind.FILE;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+    }
+
+    private final Path root;
+    private final long ttl; //time to live of each entry in nanoseconds
+    private final ConcurrentHashMap<String, Resolution> resolved = new ConcurrentHashMap<>(); //request path -> file
+    private final ConcurrentHashMap<Path, Entry> entries = new ConcurrentHashMap<>(); //file -> metadata
+
+    /**
+     * A request path resolved to a file.
+     */
+    private static class Resolution {
+        private final Path file;
+        private volatile boolean used; //requested since the cache was last full
+
+        Resolution(Path file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * Returns a new, empty cache of the files below a directory.
+     *
+     * @param root The content root of the server.
+     * @param ttl The number of milliseconds metadata is cached for, if no change is reported.
+     */
+    public PathCache(Path root, long ttl) {
+        this.root = root.toAbsolutePath().normalize();
+        this.ttl = ttl * 1000000;
+    }
+
+    /**
+     * Resolves a sanitized request path to a file below the content root. Paths are split on both / and \,
+     * and paths that would resolve outside the content root (such as \..\..\etc) are rejected.
+     *
+     * @param path A request path, relative to the content root.
+     * @return The absolute, normalized path of the requested file, or null if it is outside the content root.
+     */
+    public Path resolve(String path) {
+        Resolution resolution = resolved.get(path);
+        if(resolution != null) {
+            resolution.used = true;
+            return resolution.file;
+        }
+
+        Path file = root;
+        for(String part : path.split("[\\\\/]")) {
+            if(!part.isEmpty()) {
+                file = file.resolve(part);
+            }
+        }
+        file = file.normalize();
+
+        if(!file.startsWith(root)) {
+            return null;
+        }
+
+        evict(resolved, cached -> cached.used, cached -> cached.used = false);
+        resolved.put(path, new Resolution(file));
+        return file;
+    }
+
+    /**
+     * Returns the metadata of a file, reading it from the file system only if it is not cached or has expired.
+     *
+     * @param file The absolute path of the file, as returned by resolve().
+     * @return The metadata of the file, with a kind of MISSING if it does not exist.
+     */
+    public Entry stat(Path file) {
+        long now = System.nanoTime();
+        Entry entry = entries.get(file);
+        if(entry != null && now - entry.expires < 0) {
+            entry.used = true;
+            return entry;
+        }
+
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            Kind kind = attributes.isDirectory() ? Kind.DIRECTORY : attributes.isRegularFile() ? Kind.FILE : Kind.MISSING;
+            String name = file.getFileName().toString();
+            String contentType = name.contains(".") ? HTTPResponse.contentType(name.substring(name.lastIndexOf('.'))) : null;
+            entry = new Entry(file, kind, attributes.size(), attributes.lastModifiedTime().toMillis(), contentType, now + ttl);
+        }
+        catch (IOException e) {
+            entry = new Entry(file, Kind.MISSING, 0, 0, null, now + ttl);
+        }
+
+        evict(entries, cached -> cached.used, cached -> cached.used = false);
+        entries.put(file, entry);
+        return entry;
+    }
+
+    /**
+     * Evicts the entries of a cache that has grown beyond MAX_ENTRIES that have not been requested since it was
+     * last full, and marks the rest as not requested. If fewer than MAX_ENTRIES / EVICTION_RATE entries are evicted,
+     * as every entry was requested, entries chosen at random are evicted too. Only one thread evicts from a cache
+     * at once.
+     */
+    private static <V> void evict(ConcurrentHashMap<?, V> cache, Predicate<V> used, Consumer<V> unused) {
+        if(cache.size() <= MAX_ENTRIES) {
+            return;
+        }
+        synchronized (cache) {
+            int target = MAX_ENTRIES - MAX_ENTRIES / EVICTION_RATE;
+            cache.values().removeIf(cached -> {
+                boolean keep = used.test(cached);
+                unused.accept(cached);
+                return !keep;
+            });
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while(cache.size() > target) {
+                cache.values().removeIf(cached -> random.nextInt(EVICTION_RATE) == 0);
+            }
+        }
+    }
+
+    /**
+     * Removes the cached metadata of a file, so it is read from the file system on the next request.
+     *
+     * @param file The absolute path of the file.
+     */
+    public void invalidate(Path file) {
+        entries.remove(file);
+    }
+
+    /**
+     * Removes the cached metadata of a file, or every file below a directory.
+     *
+     * @param file The absolute path of the file or directory.
+     */
+    public void flush(Path file) {
+        entries.keySet().removeIf(cached -> cached.startsWith(file));
+    }
+
+    @Override
+    public void changed(WatchEvent.Kind<?> kind, Path file) {
+        if(file == null) {
+            entries.clear();
+        }
+        else if(kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            entries.keySet().removeIf(cached -> cached.startsWith(file)); //the file, or every file in a directory
+        }
+        else {
+            entries.remove(file);
+        }
+    }
+
+    /**
+     * A getter method to access the number of files with cached metadata.
+     *
+     * @return The number of cached entries.
+     */
+    public int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,187 @@
+package com.cvrskidz.servedown;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The com.cvrskidz.servedown.RateLimiter class limits the rate of requests made by each client using token buckets.
+ * Every client has two buckets, one for cheap requests (files read from disk or memory) and one for expensive
+ * requests (the conversion of markdown), each refilled at a constant rate up to a burst size.
+ * <p>
+ * Buckets are held in a table split into stripes, each with it's own lock, so clients rarely contend with each other.
+ * Buckets that have been idle long enough to have refilled are evicted periodically, and each stripe holds a bounded
+ * number of buckets, so memory use is bounded regardless of how many distinct addresses make requests.
+ */
+public class RateLimiter {
+    private static final int STRIPES = 64; //number of independently locked parts of the table, a power of two
+    private static final int MAX_CLIENTS = 65536; //maximum number of buckets held across all stripes
+    private static final long BURST_SECONDS = 2; //a client may make this many seconds worth of requests at once
+    private static final long SWEEP_PERIOD = 30; //seconds between evicting idle buckets
+    private static final long NANOS = 1000000000L;
+
+    /**
+     * The types of request, each with it's own budget.
+     */
+    public enum Budget {
+        CHEAP, EXPENSIVE;
+    }
+
+    /**
+     * The tokens available to a client for each budget.
+     */
+    private static class Bucket {
+        final double[] tokens = new double[Budget.values().length];
+        long refilled; //System.nanoTime() when the tokens were last refilled
+    }
+
+    private final double[] rates = new double[Budget.values().length]; //tokens added per second
+    private final double[] bursts = new double[Budget.values().length]; //maximum tokens held
+    private final long idle; //nanoseconds after which a bucket is full, and can be evicted
+    private final Map<InetAddress, Bucket>[] stripes;
+
+    /**
+     * Returns a new rate limiter, with no clients. A rate of zero disables limiting of that budget.
+     *
+     * @param cheapRate The number of cheap requests each client can make per second.
+     * @param expensiveRate The number of expensive requests each client can make per second.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public RateLimiter(double cheapRate, double expensiveRate) {
+        rates[Budget.CHEAP.ordinal()] = cheapRate;
+        rates[Budget.EXPENSIVE.ordinal()] = expensiveRate;
+        for(int i = 0; i < rates.length; ++i) {
+            bursts[i] = Math.max(1, rates[i] * BURST_SECONDS);
+        }
+        idle = (BURST_SECONDS + 1) * NANOS;
+
+        stripes = new Map[STRIPES];
+        for(int i = 0; i < STRIPES; ++i) {
+            stripes[i] = new HashMap<>();
+        }
+    }
+
+    /**
+     * Starts evicting idle buckets periodically on a daemon thread.
+     */
+    public void start() {
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "rate-limit-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleAtFixedRate(this::sweep, SWEEP_PERIOD, SWEEP_PERIOD, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Takes a token from a clients bucket for the given budget, if one is available.
+     *
+     * @param client The address of the client making the request.
+     * @param budget The type of request being made.
+     * @return True if the request may be processed, False if the client is over it's limit.
+     */
+    public boolean tryAcquire(InetAddress client, Budget budget) {
+        int b = budget.ordinal();
+        if(rates[b] <= 0 || client == null) {
+            return true;
+        }
+
+        Map<InetAddress, Bucket> stripe = stripes[stripe(client)];
+        long now = System.nanoTime();
+
+        synchronized (stripe) {
+            Bucket bucket = stripe.get(client);
+            if(bucket == null) {
+                if(stripe.size() >= MAX_CLIENTS / STRIPES) {
+                    evict(stripe, now);
+                }
+                bucket = new Bucket();
+                bucket.tokens[Budget.CHEAP.ordinal()] = bursts[Budget.CHEAP.ordinal()];
+                bucket.tokens[Budget.EXPENSIVE.ordinal()] = bursts[Budget.EXPENSIVE.ordinal()];
+                bucket.refilled = now;
+                stripe.put(client, bucket);
+            }
+            else {
+                double elapsed = (now - bucket.refilled) / (double)NANOS;
+                for(int i = 0; i < rates.length; ++i) {
+                    bucket.tokens[i] = Math.min(bursts[i], bucket.tokens[i] + elapsed * rates[i]);
+                }
+                bucket.refilled = now;
+            }
+
+            if(bucket.tokens[b] >= 1) {
+                bucket.tokens[b]--;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of whole seconds until a client over it's limit will have a token available.
+     *
+     * @param budget The budget the client is over.
+     * @return The seconds to wait before retrying, at least one.
+     */
+    public long retryAfter(Budget budget) {
+        double rate = rates[budget.ordinal()];
+        return rate <= 0 ? 1 : Math.max(1, (long)Math.ceil(1 / rate));
+    }
+
+    /**
+     * Removes every bucket that has been idle long enough to be full.
+     */
+    public void sweep() {
+        long now = System.nanoTime();
+        for(Map<InetAddress, Bucket> stripe : stripes) {
+            synchronized (stripe) {
+                stripe.values().removeIf(bucket -> now - bucket.refilled > idle);
+            }
+        }
+    }
+
+    /**
+     * Makes room in a full stripe, removing idle buckets or the least recently used bucket if none are idle.
+     * The stripes lock must be held.
+     */
+    private void evict(Map<InetAddress, Bucket> stripe, long now) {
+        stripe.values().removeIf(bucket -> now - bucket.refilled > idle);
+        if(stripe.size() < MAX_CLIENTS / STRIPES) {
+            return;
+        }
+
+        Iterator<Bucket> buckets = stripe.values().iterator();
+        Bucket oldest = null;
+        while(buckets.hasNext()) {
+            Bucket bucket = buckets.next();
+            if(oldest == null || bucket.refilled - oldest.refilled < 0) {
+                oldest = bucket;
+            }
+        }
+        stripe.values().remove(oldest);
+    }
+
+    /**
+     * A getter method to access the number of clients with a bucket.
+     *
+     * @return The number of buckets held.
+     */
+    public int size() {
+        int size = 0;
+        for(Map<InetAddress, Bucket> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    private static int stripe(InetAddress client) {
+        int h = client.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+}
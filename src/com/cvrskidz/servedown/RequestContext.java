@@ -0,0 +1,243 @@
+package com.cvrskidz.servedown;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The com.cvrskidz.servedown.RequestContext class holds the state of the request being processed by the current
+ * thread, so handlers can access details of the request without them being passed through every constructor.
+ * <p>
+ * Each thread has a single instance which is reset at the start of every request it processes.
+ * <p>
+ * When timing is enabled (by --server-timing or --trace) the context also records how long each stage of the
+ * request took, as spans measured with System.nanoTime(). A stage is timed by reading clock() before it starts and
+ * passing the reading to span() once it ends. When timing is disabled clock() returns 0 and span() returns at once,
+ * so timed code costs a single branch.
+ */
+public class RequestContext {
+    private static final ThreadLocal<RequestContext> context = ThreadLocal.withInitial(RequestContext::new);
+
+    private InetAddress client; //address of the client that made the request
+    private boolean chunked; //whether the response can be sent with chunked transfer encoding
+    private Map<String, String> headers = Map.of(); //header fields of the request, names in lower case
+    private Hints hints; //sends a 103 Early Hints response on the requests connection, null once sent or if unsupported
+    private long started; //System.nanoTime() when the request was received, 0 if it is not timed
+    private final long[] spans = new long[Stage.values().length]; //nanoseconds spent in each stage
+
+    /**
+     * The stages of a request that are timed. Stages may overlap, conversion includes inlining images, and a
+     * streamed page is converted as it is written.
+     */
+    public enum Stage {
+        PARSE, RESOLVE, READ, CONVERT, INLINE_IMAGES, WRITE;
+
+        /**
+         * Returns the name of the stage, as sent in the Server-Timing field.
+         *
+         * @return The name in lower case, e.g. inline-images.
+         */
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT).replace('_', '-');
+        }
+    }
+
+    /**
+     * Sends an informational 103 Early Hints response on the connection a request was received on, ahead of the
+     * final response.
+     */
+    public interface Hints {
+        /**
+         * Sends the hints.
+         *
+         * @param links The value of the Link field to send.
+         * @throws IOException If the response cannot be written.
+         */
+        void send(String links) throws IOException;
+    }
+
+    private RequestContext() {
+    }
+
+    /**
+     * Returns the context of the request being processed by the current thread.
+     *
+     * @return The context of this thread.
+     */
+    public static RequestContext current() {
+        return context.get();
+    }
+
+    /**
+     * Resets this threads context for a new request.
+     *
+     * @param client The address of the client making the request.
+     * @param chunked True if the response can be streamed with chunked transfer encoding, as with HTTP/1.1.
+     * @param headers The header fields of the request, with names in lower case.
+     * @param hints Sends a 103 Early Hints response to the client, or null if the client cannot receive one.
+     * @return The context of this thread.
+     */
+    public static RequestContext begin(InetAddress client, boolean chunked, Map<String, String> headers,
+                                       Hints hints) {
+        RequestContext current = context.get();
+        current.client = client;
+        current.chunked = chunked;
+        current.headers = headers;
+        current.hints = hints;
+        return current;
+    }
+
+    /**
+     * A getter method to access the address of the client that made the request.
+     *
+     * @return The value of this.client, or null if no request is being processed.
+     */
+    public InetAddress getClient() {
+        return client;
+    }
+
+    /**
+     * Returns the value of a header field of the request.
+     *
+     * @param name The name of the field, in any case.
+     * @return The value of the field, or null if it was not sent.
+     */
+    public String header(String name) {
+        return headers.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Checks whether the response to the request can be streamed with chunked transfer encoding.
+     *
+     * @return The value of this.chunked
+     */
+    public boolean acceptsChunked() {
+        return chunked;
+    }
+
+    /**
+     * Sends a 103 Early Hints response to the client, so it can load the linked resources whilst the final response
+     * is prepared. Hints are sent at most once for each request, and only if enabled by Server.earlyHints.
+     *
+     * @param links The value of the Link field to send, nothing is sent if it is empty.
+     */
+    public void earlyHints(String links) {
+        Hints sender = hints;
+        if(sender == null || links.isEmpty() || !Server.earlyHints) {
+            return;
+        }
+
+        hints = null;
+        try {
+            sender.send(links);
+        }
+        catch (IOException e) { //the final response fails too, and is reported then
+            System.out.println("An error occurred sending early hints: " + e);
+        }
+    }
+
+    /**
+     * Reads the clock used to time requests.
+     *
+     * @return The value of System.nanoTime(), or 0 if timing is disabled.
+     */
+    public static long clock() {
+        return Server.serverTiming || Server.trace != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Clears the spans recorded for the previous request processed by this thread, and starts timing a new request.
+     *
+     * @param started The time the request was received, as returned by clock().
+     */
+    public static void start(long started) {
+        RequestContext current = context.get();
+        if(started != 0 || current.started != 0) {
+            current.started = started;
+            Arrays.fill(current.spans, 0);
+        }
+    }
+
+    /**
+     * Records the time spent in a stage of the request, since a reading of clock().
+     *
+     * @param stage The stage that ended.
+     * @param start The value of clock() when the stage began, ignored if 0.
+     */
+    public static void span(Stage stage, long start) {
+        if(start != 0) {
+            span(stage, start, System.nanoTime());
+        }
+    }
+
+    /**
+     * Records the time spent in a stage of the request, measured on another thread.
+     *
+     * @param stage The stage that ended.
+     * @param start The value of clock() when the stage began, ignored if 0.
+     * @param end The value of clock() when the stage ended.
+     */
+    public static void span(Stage stage, long start, long end) {
+        RequestContext current = context.get();
+        if(start != 0 && current.started != 0) {
+            current.spans[stage.ordinal()] += end - start;
+        }
+    }
+
+    /**
+     * Returns the value of the Server-Timing field for the response, holding the stages completed so far and the
+     * total time since the request was received. The write stage is not included, as the field is sent before it
+     * ends, but it is recorded in the trace log.
+     *
+     * @return The field value, or null if Server-Timing is disabled or the request is not timed.
+     */
+    public String serverTiming() {
+        if(!Server.serverTiming || started == 0) {
+            return null;
+        }
+
+        StringBuilder value = new StringBuilder();
+        for(Stage stage : Stage.values()) {
+            if(spans[stage.ordinal()] > 0) {
+                appendDuration(value.append(stage).append(";dur="), spans[stage.ordinal()]).append(", ");
+            }
+        }
+        return appendDuration(value.append("total;dur="), System.nanoTime() - started).toString();
+    }
+
+    /**
+     * Ends the timing of the request, writing it to the trace log if it was slow, and recording the time taken to
+     * serve the page in Server.slowPages.
+     *
+     * @param request A description of the request, e.g. it's request line.
+     * @param status The status code of the response.
+     */
+    public static void finish(String request, int status) {
+        RequestContext current = context.get();
+        TraceLog trace = Server.trace;
+        if(current.started != 0) {
+            long total = System.nanoTime() - current.started;
+            if(trace != null) {
+                trace.record(request, status, total, current.spans);
+            }
+            int start = request.indexOf(' ') + 1, end = request.indexOf(' ', start);
+            if(status == 200 && start > 0 && end > start) {
+                String path = request.substring(start, end);
+                Server.slowPages.record(path.indexOf('?') < 0 ? path : path.substring(0, path.indexOf('?')), total);
+            }
+        }
+        current.started = 0;
+    }
+
+    /**
+     * Appends a duration in milliseconds, to three decimal places.
+     */
+    static StringBuilder appendDuration(StringBuilder out, long nanos) {
+        long micros = nanos / 1000;
+        String fraction = Long.toString(1000 + micros % 1000).substring(1);
+        return out.append(micros / 1000).append('.').append(fraction);
+    }
+}
@@ -1,58 +1,299 @@
 package com.cvrskidz.servedown;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLSocket;
 
+/**
+ * The com.cvrskidz.servedown.RequestHandler class serves the requests made on a single connection. HTTP/1.1
+ * connections are kept open for further requests until the client closes them or is idle for longer than the
+ * keep-alive timeout.
+ * <p>
+ * Each stage of a request has a deadline tracked by com.cvrskidz.servedown.Server.timeouts: receiving the header,
+ * receiving the body, and writing the response. A connection missing a deadline is closed, which unblocks this
+ * thread, so slow clients cannot hold handler threads indefinitely.
+ */
 public class RequestHandler extends Thread{
+    private static final byte[] SWITCHING_PROTOCOLS =
+            "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_KEEP_ALIVE_REQUESTS = 1000; //requests served before a connection is closed
+    private static final long MAX_BODY = 1 << 20; //larger request bodies are not read, and the connection is closed
+    private static final AtomicInteger inFlight = new AtomicInteger(); //requests being answered, on any protocol
+
     private Socket client;
     private boolean block;
+    private volatile TimerWheel.Deadline expired; //the deadline the connection missed, if any
+    private TimerWheel.Timeout pending; //the deadline of the current stage, cancelled once it completes
 
     public RequestHandler(Socket client) {
         this.client = client;
     }
 
     public void run(){
-        String path = ""; //requested file
-
         try {
-            BufferedReader req = new BufferedReader(new InputStreamReader(client.getInputStream())); //the client request
-            String reqBuffer = req.readLine(); //a buffer to store tokens from the request stream
-
-            System.out.println("\nREQUEST: " + reqBuffer);
-            System.out.println("Client: " + client.getRemoteSocketAddress());
-            if(Server.isValidRequest(reqBuffer)) {
-                path = Server.extractPath(reqBuffer);
+            //the handshake and first request header share a single deadline, starting at accept
+            schedule(TimerWheel.Deadline.READ_HEADER, Server.headerTimeout);
+            if(client instanceof SSLSocket) { //handshake on this thread, not the thread accepting connections
+                TLSListener.handshake((SSLSocket)client);
             }
-            else {
-                block = true;
+
+            InputStream in = new BufferedInputStream(client.getInputStream());
+            WritableByteChannel res = openChannel(); //open a channel to write a web response to
+            boolean keepAlive = true;
+
+            for(int served = 0; keepAlive; ++served) {
+                if(served > 0) { //wait for the first byte of the next request
+                    schedule(TimerWheel.Deadline.KEEP_ALIVE, Server.keepAliveTimeout);
+                    in.mark(1);
+                    int first = in.read();
+                    cancel();
+                    if(first == -1) {
+                        break;
+                    }
+                    in.reset();
+                    schedule(TimerWheel.Deadline.READ_HEADER, Server.headerTimeout);
+                }
+
+                String path = ""; //requested file
+                HTTPRequest req = null;
+                HTTPResponse rejected = null; //the response to a request that cannot be read
+                block = false;
+                long received = RequestContext.clock(); //the first request includes waiting for it to arrive
+                RequestContext.start(received);
+                try {
+                    req = HTTPRequest.read(in); //the client request
+                    RequestContext.span(RequestContext.Stage.PARSE, received);
+                }
+                catch (HTTPRequest.TooLargeException e) {
+                    System.out.println("Rejected a request: " + e.getMessage());
+                    rejected = HTTPResponse.HEADER_TOO_LARGE;
+                }
+                catch (IOException e) {
+                    if(expired != null) {
+                        throw e;
+                    }
+                    System.out.println("An error occurred reading the request: " + e);
+                    rejected = HTTPResponse.BAD_REQUEST;
+                }
+                cancel();
+                if(req == null && rejected == null) { //closed before sending a request
+                    break;
+                }
+                String reqBuffer = req == null ? "" : req.getLine(); //the request line
+
+                if(req != null && Server.h2c && !(client instanceof SSLSocket)) {
+                    if(req.isHTTP2Preface()) { //prior knowledge, the rest of the preface follows
+                        new Http2Connection(client, in, null).run();
+                        return;
+                    }
+                    if(req.isUpgradeH2C() && Server.isValidRequest(reqBuffer)) {
+                        OutputStream out = client.getOutputStream();
+                        out.write(SWITCHING_PROTOCOLS);
+                        out.flush();
+                        new Http2Connection(client, in, req).run();
+                        return;
+                    }
+                }
+
+                System.out.println("\nREQUEST: " + reqBuffer);
+                System.out.println("Client: " + client.getRemoteSocketAddress());
+                if(rejected == null && !req.isWellFormed()) {
+                    rejected = HTTPResponse.BAD_REQUEST;
+                }
+                if(rejected == null && Server.isValidRequest(reqBuffer)) {
+                    path = Server.extractPath(reqBuffer);
+                }
+                else {
+                    block = true;
+                }
+
+                keepAlive = !block && req.isKeepAlive() && Server.keepAliveTimeout > 0
+                        && served + 1 < MAX_KEEP_ALIVE_REQUESTS && Server.listening; //closed once the server drains
+                if(!block) {
+                    try {
+                        keepAlive &= readBody(in, req);
+                    }
+                    catch (IOException e) {
+                        if(expired != null) {
+                            throw e;
+                        }
+                        System.out.println("An error occurred reading the request body: " + e);
+                        rejected = e instanceof HTTPRequest.TooLargeException
+                                ? HTTPResponse.HEADER_TOO_LARGE : HTTPResponse.BAD_REQUEST;
+                        block = true;
+                        keepAlive = false;
+                    }
+                }
+
+                inFlight.incrementAndGet();
+                try {
+                    if(!block) {
+                        boolean chunked = reqBuffer.endsWith("HTTP/1.1"); //HTTP/1.0 clients cannot be streamed to
+                        RequestContext.Hints hints = chunked ? links -> HTTPResponse.writeEarlyHints(res, links) : null;
+                        HTTPResponse response = respond(path, client.getInetAddress(), chunked, req.getHeaders(), hints); //read and/or compile requested file
+                        try {
+                            long writing = RequestContext.clock();
+                            schedule(TimerWheel.Deadline.WRITE, Server.writeTimeout);
+                            response.write(res, keepAlive);
+                            cancel();
+                            RequestContext.span(RequestContext.Stage.WRITE, writing);
+                        }
+                        finally {
+                            response.release();
+                        }
+                        RequestContext.finish(reqBuffer, response.getStatus());
+                    }
+                    else {
+                        HTTPResponse error = rejected != null ? rejected : HTTPResponse.NOT_FOUND;
+                        schedule(TimerWheel.Deadline.WRITE, Server.writeTimeout);
+                        error.write(res);
+                        cancel();
+                        System.out.println("Responded " + error.getStatus());
+                        RequestContext.finish(reqBuffer, error.getStatus());
+                    }
+                }
+                finally {
+                    inFlight.decrementAndGet();
+                }
             }
         }
         catch (IOException e) {
-            System.out.println("An error occurred reading the request: " + e);
+            if(expired == null) {
+                System.out.println("An error occurred sending a response: " + e);
+            }
+        }
+        finally {
+            cancel(); //the deadline of a stage that failed
+            close();
         }
 
-        try {
-            PrintWriter res = new PrintWriter(client.getOutputStream()); //open a stream to write a web response to
+        if(expired != null) {
+            System.out.println("Closed " + client.getRemoteSocketAddress() + ", "
+                    + expired.toString().toLowerCase().replace('_', ' ') + " deadline expired");
+        }
+    }
 
-            if(!block) {
-                FileHandler requestedContent = FileHandler.newHandler(path); //read and/or compile requested file
-                res.println(requestedContent.getResponse()); //write response
-            }
-            else {
-                res.println(new HTTPResponse("text/html", "NOT FOUND", 404, HTTPResponse.PROTOCOL.HTTP));
-                System.out.println("Responded 404");
-            }
+    /**
+     * Discards the body of a request, which is unused as only GET requests are served. Chunked bodies are decoded
+     * so the connection can be kept open.
+     *
+     * @return True if the body was read, False if it could not be read entirely and the connection should be closed.
+     * @throws IOException If the body is malformed.
+     */
+    private boolean readBody(InputStream in, HTTPRequest req) throws IOException {
+        if(!req.hasBody()) {
+            return true;
+        }
 
-            //cleanup
-            res.flush();
-            res.close();
+        schedule(TimerWheel.Deadline.READ_BODY, Server.bodyTimeout);
+        boolean read = req.skipBody(in, MAX_BODY);
+        cancel();
+        return read;
+    }
+
+    /**
+     * Schedules the deadline of the current stage of this connection, closing it if the deadline expires. Only one
+     * stage is pending at a time, replacing any deadline not yet cancelled.
+     */
+    private void schedule(TimerWheel.Deadline deadline, long delay) {
+        cancel();
+        pending = Server.timeouts.schedule(deadline, delay, () -> {
+            expired = deadline;
+            close();
+        });
+    }
+
+    /**
+     * Cancels the deadline of the current stage, once it completes or fails.
+     */
+    private void cancel() {
+        if(pending != null) {
+            pending.cancel();
+            pending = null;
+        }
+    }
+
+    private void close() {
+        try {
             client.close();
         }
         catch (IOException e) {
-            System.out.println("An error occurred sending a response: " + e);
+            System.out.println("An error occurred closing a connection: " + e);
+        }
+    }
+
+    /**
+     * Returns the response to a request for a path, or a 429 response if the client is over it's rate limit.
+     * Shared by HTTP/1.1 connections and HTTP/2 streams. The request is answered by the site named by it's Host
+     * field.
+     *
+     * @param path The requested path, including any query string.
+     * @param client The address of the client making the request.
+     * @param chunked True if the response can be streamed with chunked transfer encoding.
+     * @param headers The header fields of the request, with names in lower case.
+     * @param hints Sends a 103 Early Hints response to the client, or null if the client cannot receive one.
+     * @return The response to send.
+     */
+    public static HTTPResponse respond(String path, InetAddress client, boolean chunked, Map<String, String> headers,
+                                       RequestContext.Hints hints) {
+        RequestContext.begin(client, chunked, headers, hints);
+        Site.enter(Site.forHost(headers.get("host"))); //answered from the content of the site it is addressed to
+
+        if(!Server.rateLimiter.tryAcquire(client, RateLimiter.Budget.CHEAP)) {
+            System.out.println("Responded 429");
+            return HTTPResponse.tooManyRequests(Server.rateLimiter.retryAfter(RateLimiter.Budget.CHEAP),
+                    HTTPResponse.PROTOCOL.HTTP);
+        }
+
+        return FileHandler.newHandler(path).getResponse();
+    }
+
+    /**
+     * Marks a request as started, so the server waits for it to be answered before stopping. Each call must be
+     * followed by a call to finished().
+     */
+    static void started() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Marks a request counted by started() as answered.
+     */
+    static void finished() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * A getter method to access the number of requests being answered.
+     *
+     * @return The number of HTTP/1.1 requests and HTTP/2 streams that have been received but not yet answered.
+     */
+    public static int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Returns a channel to write the response to. Clients accepted from a channel are written to directly,
+     * allowing gathering writes and file transfers, otherwise the sockets output stream is wrapped.
+     *
+     * @return A channel connected to the client.
+     * @throws IOException If the output stream of the socket cannot be opened.
+     */
+    private WritableByteChannel openChannel() throws IOException {
+        if(client.getChannel() != null) {
+            return client.getChannel();
         }
+
+        return Channels.newChannel(client.getOutputStream());
     }
 }
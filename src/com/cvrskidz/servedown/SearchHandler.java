@@ -0,0 +1,81 @@
+package com.cvrskidz.servedown;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * The com.cvrskidz.servedown.SearchHandler class responds to requests to the search endpoint (/.search?q=), with a
+ * HTML page listing the files in the com.cvrskidz.servedown.SearchIndex matching the query, each with a snippet of
+ * the source containing a term of the query.
+ */
+public class SearchHandler extends FileHandler {
+    public static final String ENDPOINT = "/.search"; //the path of search requests
+    private static final int MAX_RESULTS = 20; //number of results included in a response
+
+    /**
+     * Searches the servers index and formats the results as a HTML page.
+     *
+     * @param query The query string of the request, without the leading '?'
+     */
+    public SearchHandler(String query) {
+        String text = parameter(query, "q");
+        extension = ".html";
+
+        StringBuilder page = new StringBuilder("<html>\n<head>\n<title>Search</title>\n");
+        page.append("<meta http-equiv='Content-Type' content='text/html; charset=utf-8'/>\n");
+        for(String ref : HTMLHandler.styles()) {
+            page.append(String.format("<link rel='stylesheet' type='text/css' href='%s'>\n", ref.replace('\\', '/').replaceFirst("^\\.\\.", "")));
+        }
+        page.append("</head>\n<body><div id='content'>\n");
+        page.append(String.format("<form action='%s'><input name='q' value='%s'></form>\n", ENDPOINT, escape(text)));
+
+        SearchIndex index = Site.current().searchIndex;
+        List<SearchIndex.Result> results = index.search(text, MAX_RESULTS);
+        if(!text.isBlank()) {
+            page.append(String.format("<h1>%d results for %s</h1>\n", results.size(), escape(text)));
+        }
+
+        for(SearchIndex.Result result : results) {
+            String link = "/" + result.getPath().substring(0, result.getPath().lastIndexOf('.'));
+            page.append(String.format("<div class='result'><h3><a href='%s'>%s</a></h3>\n<p>%s</p></div>\n",
+                    escape(link), escape(result.getTitle()), escape(index.snippet(result, text))));
+        }
+
+        page.append("</div></body></html>");
+        contents = page.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Finds the decoded value of a parameter in a query string.
+     *
+     * @param query The query string of a request e.g. q=foo+bar&amp;page=2
+     * @param name The name of the parameter to find.
+     * @return The value of the parameter, or an empty string if it is not present.
+     */
+    public static String parameter(String query, String name) {
+        for(String pair : query.split("&")) {
+            int split = pair.indexOf('=');
+            if(split > 0 && pair.substring(0, split).equals(name)) {
+                try {
+                    return URLDecoder.decode(pair.substring(split + 1), StandardCharsets.UTF_8);
+                }
+                catch (IllegalArgumentException e) { //malformed escape
+                    return "";
+                }
+            }
+        }
+
+        return "";
+    }
+
+    /**
+     * Replaces characters with special meaning in HTML with entity codes.
+     *
+     * @param s The string to escape.
+     * @return The escaped string.
+     */
+    public static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("'", "&#39;");
+    }
+}
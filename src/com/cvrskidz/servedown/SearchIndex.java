@@ -0,0 +1,629 @@
+package com.cvrskidz.servedown;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The com.cvrskidz.servedown.SearchIndex class is an in memory inverted index of the markdown files below the servers
+ * content root. Each term maps to a posting list of document ids and scores held in primitive arrays, where
+ * terms found in headings score higher than terms in the body of a file, by the level of the heading.
+ * <p>
+ * The index is built in parallel when the server starts, saved to a file in the content root, and is reloaded
+ * from this file on the next start, so only files modified since are indexed again. Whilst running, the index is
+ * updated one file at a time as it is notified of changes by a com.cvrskidz.servedown.ContentWatcher.
+ */
+public class SearchIndex implements ContentWatcher.Listener {
+    public static final String INDEX_FILE = ".search.idx"; //name of the saved index in the content root
+    private static final int MAGIC = 0x53444958, VERSION = 1; //identifies a saved index file
+    private static final int[] HEADING_BOOST = {1, 8, 6, 4, 3, 2, 2}; //score of a term by heading level, 0 for body text
+    private static final int TITLE_BOOST = 10; //score of a term in the name of a file
+    private static final int MAX_TERM_LENGTH = 40; //longer tokens (such as inlined data) are not indexed
+    private static final int SNIPPET_LENGTH = 160; //characters of source shown with each result
+    private static final long SAVE_DELAY = 10; //seconds to wait after a change before saving the index
+
+    private final Path root, indexFile;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Postings> postings = new HashMap<>(); //term -> documents containing the term
+    private final List<Document> documents = new ArrayList<>(); //document id -> document, null if removed
+    private final Map<String, Integer> ids = new HashMap<>(); //relative path -> document id
+    private final Deque<Integer> freeIds = new ArrayDeque<>(); //ids of removed documents to reuse
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "search-index-saver");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * A single search result.
+     */
+    public static class Result {
+        private final String path, title;
+        private final int score;
+
+        private Result(String path, String title, int score) {
+            this.path = path;
+            this.title = title;
+            this.score = score;
+        }
+
+        /**
+         * @return The path of the markdown file relative to the content root, using / as a separator.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return The first level one heading of the file, or the name of the file if it has none.
+         */
+        public String getTitle() {
+            return title;
+        }
+
+        public int getScore() {
+            return score;
+        }
+    }
+
+    /**
+     * An indexed file, with the terms it was indexed under so it can be removed from their posting lists.
+     */
+    private static class Document {
+        final String path, title;
+        final long modified;
+        String[] terms;
+
+        Document(String path, String title, long modified, String[] terms) {
+            this.path = path;
+            this.title = title;
+            this.modified = modified;
+            this.terms = terms;
+        }
+    }
+
+    /**
+     * The terms and scores of a file after it has been parsed, before it is added to the index.
+     */
+    private static class ParsedDocument {
+        final String path, title;
+        final long modified;
+        final Map<String, Integer> scores;
+
+        ParsedDocument(String path, String title, long modified, Map<String, Integer> scores) {
+            this.path = path;
+            this.title = title;
+            this.modified = modified;
+            this.scores = scores;
+        }
+    }
+
+    /**
+     * A posting list of document ids in ascending order, with the score of the term in each document.
+     */
+    private static class Postings {
+        int[] documents = new int[4], scores = new int[4];
+        int size;
+
+        void put(int document, int score) {
+            int i = Arrays.binarySearch(documents, 0, size, document);
+            if(i >= 0) {
+                scores[i] = score;
+                return;
+            }
+
+            i = -i - 1;
+            if(size == documents.length) {
+                documents = Arrays.copyOf(documents, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            System.arraycopy(documents, i, documents, i + 1, size - i);
+            System.arraycopy(scores, i, scores, i + 1, size - i);
+            documents[i] = document;
+            scores[i] = score;
+            size++;
+        }
+
+        void remove(int document) {
+            int i = Arrays.binarySearch(documents, 0, size, document);
+            if(i >= 0) {
+                System.arraycopy(documents, i + 1, documents, i, size - i - 1);
+                System.arraycopy(scores, i + 1, scores, i, size - i - 1);
+                size--;
+            }
+        }
+    }
+
+    /**
+     * Returns an index of the markdown files below a directory, loading the saved index in the directory if
+     * there is one and indexing any files that have changed since it was saved.
+     *
+     * @param root The content root to index.
+     * @return The index, ready to be searched.
+     */
+    public static SearchIndex open(Path root) {
+        SearchIndex index = new SearchIndex(root);
+        long start = System.nanoTime();
+
+        try {
+            index.load();
+        }
+        catch (IOException e) {
+            System.err.println("--LOG--\nSaved search index could not be read, rebuilding\n" + e + "\n--END LOG--");
+            index.postings.clear();
+            index.documents.clear();
+            index.ids.clear();
+            index.freeIds.clear();
+        }
+
+        index.rebuild();
+        System.out.println("Indexed " + index.ids.size() + " files in " + (System.nanoTime() - start) / 1000000 + "ms");
+        return index;
+    }
+
+    private SearchIndex(Path root) {
+        this.root = root;
+        this.indexFile = root.resolve(INDEX_FILE);
+    }
+
+    /**
+     * Finds the files containing every term of a query, ordered by the sum of the score of each term.
+     *
+     * @param query The text to search for.
+     * @param limit The maximum number of results to return.
+     * @return The files matching the query, highest scoring first.
+     */
+    public List<Result> search(String query, int limit) {
+        String[] terms = tokenize(query).stream().distinct().toArray(String[]::new);
+        if(terms.length == 0) {
+            return List.of();
+        }
+
+        lock.readLock().lock();
+        try {
+            int[] totals = new int[documents.size()];
+            int[] matches = new int[documents.size()];
+
+            for(String term : terms) {
+                Postings list = postings.get(term);
+                if(list == null) {
+                    return List.of(); //every term must be present
+                }
+                for(int i = 0; i < list.size; ++i) {
+                    totals[list.documents[i]] += list.scores[i];
+                    matches[list.documents[i]]++;
+                }
+            }
+
+            List<Result> results = new ArrayList<>();
+            for(int id = 0; id < totals.length; ++id) {
+                if(matches[id] == terms.length) {
+                    Document document = documents.get(id);
+                    results.add(new Result(document.path, document.title, totals[id]));
+                }
+            }
+
+            results.sort((a, b) -> Integer.compare(b.score, a.score));
+            return results.size() > limit ? results.subList(0, limit) : results;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns a line of the source of a result containing one of the terms of a query. The source is read from
+     * disk, as only the terms of each file are kept in memory.
+     *
+     * @param result A result returned by search().
+     * @param query The query the result was found with.
+     * @return Up to SNIPPET_LENGTH characters of the source, or an empty string if no line could be found.
+     */
+    public String snippet(Result result, String query) {
+        List<String> terms = tokenize(query);
+        String lines[];
+
+        try {
+            lines = Files.readString(root.resolve(result.path), StandardCharsets.UTF_8).split("\n");
+        }
+        catch (IOException e) {
+            return "";
+        }
+
+        for(String line : lines) {
+            String lower = line.toLowerCase(Locale.ROOT);
+            for(String term : terms) {
+                int found = lower.indexOf(term);
+                if(found >= 0 && MarkdownConverter.headingLevel(line) == 0) {
+                    int start = Math.max(0, found - SNIPPET_LENGTH / 2);
+                    int end = Math.min(line.length(), start + SNIPPET_LENGTH);
+                    return line.substring(start, end).trim();
+                }
+            }
+        }
+
+        return "";
+    }
+
+    @Override
+    public void changed(WatchEvent.Kind<?> kind, Path file) {
+        if(file == null) {
+            rebuild();
+        }
+        else if(kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            String path = relativePath(file);
+            lock.writeLock().lock();
+            try {
+                for(String indexed : new ArrayList<>(ids.keySet())) {
+                    if(indexed.equals(path) || indexed.startsWith(path + "/")) { //the file, or every file in a directory
+                        remove(indexed);
+                    }
+                }
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+        else if(isIndexed(file) && Files.isRegularFile(file)) {
+            ParsedDocument parsed = parse(file);
+            if(parsed != null) {
+                lock.writeLock().lock();
+                try {
+                    add(parsed);
+                }
+                finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }
+        else {
+            return;
+        }
+
+        scheduleSave();
+    }
+
+    /**
+     * Indexes every file that is not indexed or has been modified since it was indexed, in parallel, and
+     * removes files that no longer exist.
+     */
+    private void rebuild() {
+        List<Path> files;
+        try(Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(this::isIndexed).filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        catch (IOException | UncheckedIOException e) {
+            System.err.println("--LOG--\nError listing files to index\n" + e + "\n--END LOG--");
+            return;
+        }
+
+        Set<String> found = new HashSet<>();
+        List<Path> changed = new ArrayList<>();
+
+        lock.readLock().lock();
+        try {
+            for(Path file : files) {
+                String path = relativePath(file);
+                found.add(path);
+                Integer id = ids.get(path);
+                if(id == null || documents.get(id).modified != lastModified(file)) {
+                    changed.add(file);
+                }
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+
+        List<ParsedDocument> parsed = changed.parallelStream().map(this::parse).filter(Objects::nonNull)
+                .collect(Collectors.toList());
+
+        lock.writeLock().lock();
+        try {
+            for(String path : new ArrayList<>(ids.keySet())) {
+                if(!found.contains(path)) {
+                    remove(path);
+                }
+            }
+            for(ParsedDocument document : parsed) {
+                add(document);
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+
+        if(!changed.isEmpty() || !Files.exists(indexFile)) {
+            save();
+        }
+    }
+
+    /**
+     * Reads a markdown file and scores each term it contains. Headings are found and code blocks skipped
+     * using the same rules as com.cvrskidz.servedown.MarkdownConverter.
+     */
+    private ParsedDocument parse(Path file) {
+        String source;
+        long modified = lastModified(file);
+        try {
+            source = Files.readString(file, StandardCharsets.UTF_8);
+        }
+        catch (IOException e) {
+            System.err.println("--LOG--\nError indexing " + file + "\n" + e + "\n--END LOG--");
+            return null;
+        }
+
+        String path = relativePath(file);
+        String name = file.getFileName().toString();
+        name = name.substring(0, name.lastIndexOf('.'));
+        String title = null;
+        Map<String, Integer> scores = new HashMap<>();
+        boolean blockOpen = false;
+
+        for(String term : tokenize(name)) {
+            scores.merge(term, TITLE_BOOST, Integer::sum);
+        }
+
+        for(String line : source.split("\n")) {
+            if(line.matches("\\s*```.*")) {
+                blockOpen = !blockOpen;
+                continue;
+            }
+
+            int level = blockOpen ? 0 : MarkdownConverter.headingLevel(line);
+            if(level > HEADING_BOOST.length - 1) {
+                level = 0;
+            }
+            if(level == 1 && title == null) {
+                title = line.trim().substring(1).trim();
+            }
+            for(String term : tokenize(line)) {
+                scores.merge(term, HEADING_BOOST[level], Integer::sum);
+            }
+        }
+
+        return new ParsedDocument(path, title == null ? name : title, modified, scores);
+    }
+
+    /**
+     * Adds or replaces a document in the index. The write lock must be held.
+     */
+    private void add(ParsedDocument parsed) {
+        remove(parsed.path);
+
+        int id = freeIds.isEmpty() ? documents.size() : freeIds.pop();
+        Document document = new Document(parsed.path, parsed.title, parsed.modified,
+                parsed.scores.keySet().toArray(new String[0]));
+        if(id == documents.size()) {
+            documents.add(document);
+        }
+        else {
+            documents.set(id, document);
+        }
+        ids.put(parsed.path, id);
+
+        for(Map.Entry<String, Integer> score : parsed.scores.entrySet()) {
+            postings.computeIfAbsent(score.getKey(), t -> new Postings()).put(id, score.getValue());
+        }
+    }
+
+    /**
+     * Removes a document from the index and all posting lists. The write lock must be held.
+     */
+    private void remove(String path) {
+        Integer id = ids.remove(path);
+        if(id == null) {
+            return;
+        }
+
+        for(String term : documents.get(id).terms) {
+            Postings list = postings.get(term);
+            list.remove(id);
+            if(list.size == 0) {
+                postings.remove(term);
+            }
+        }
+        documents.set(id, null);
+        freeIds.push(id);
+    }
+
+    /**
+     * Saves the index after a delay, so a burst of changes is only saved once.
+     */
+    private void scheduleSave() {
+        if(saveScheduled.compareAndSet(false, true)) {
+            saver.schedule(() -> {
+                saveScheduled.set(false);
+                save();
+            }, SAVE_DELAY, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Writes the index to the content root. Document ids and scores are written as variable length integers,
+     * with the ids of each posting list written as the difference from the previous id.
+     */
+    private void save() {
+        Path temp = root.resolve(INDEX_FILE + ".tmp");
+
+        lock.readLock().lock();
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            writeVarInt(out, documents.size());
+            for(Document document : documents) {
+                out.writeBoolean(document != null);
+                if(document != null) {
+                    out.writeUTF(document.path);
+                    out.writeUTF(document.title);
+                    out.writeLong(document.modified);
+                }
+            }
+
+            writeVarInt(out, postings.size());
+            for(Map.Entry<String, Postings> entry : postings.entrySet()) {
+                Postings list = entry.getValue();
+                out.writeUTF(entry.getKey());
+                writeVarInt(out, list.size);
+                int previous = 0;
+                for(int i = 0; i < list.size; ++i) {
+                    writeVarInt(out, list.documents[i] - previous);
+                    writeVarInt(out, list.scores[i]);
+                    previous = list.documents[i];
+                }
+            }
+        }
+        catch (IOException e) {
+            System.err.println("--LOG--\nError saving search index\n" + e + "\n--END LOG--");
+            return;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+
+        try {
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            System.err.println("--LOG--\nError saving search index\n" + e + "\n--END LOG--");
+        }
+    }
+
+    /**
+     * Reads an index saved by save(), if one exists.
+     */
+    private void load() throws IOException {
+        if(!Files.exists(indexFile)) {
+            return;
+        }
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+
+            int count = readVarInt(in);
+            List<List<String>> terms = new ArrayList<>(count); //terms of each document, rebuilt from the postings
+            for(int id = 0; id < count; ++id) {
+                terms.add(new ArrayList<>());
+                if(in.readBoolean()) {
+                    Document document = new Document(in.readUTF(), in.readUTF(), in.readLong(), null);
+                    documents.add(document);
+                    ids.put(document.path, id);
+                }
+                else {
+                    documents.add(null);
+                    freeIds.push(id);
+                }
+            }
+
+            int termCount = readVarInt(in);
+            for(int t = 0; t < termCount; ++t) {
+                String term = in.readUTF();
+                Postings list = new Postings();
+                int size = readVarInt(in);
+                list.documents = new int[Math.max(size, 1)];
+                list.scores = new int[Math.max(size, 1)];
+                int id = 0;
+                for(int i = 0; i < size; ++i) {
+                    id += readVarInt(in);
+                    list.documents[i] = id;
+                    list.scores[i] = readVarInt(in);
+                    terms.get(id).add(term);
+                }
+                list.size = size;
+                postings.put(term, list);
+            }
+
+            for(int id = 0; id < count; ++id) {
+                if(documents.get(id) != null) {
+                    documents.get(id).terms = terms.get(id).toArray(new String[0]);
+                }
+            }
+        }
+    }
+
+    private static void writeVarInt(DataOutput out, int value) throws IOException {
+        while((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for(int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Splits text into lower case terms of letters and digits.
+     *
+     * @param text The text to split.
+     * @return The terms found in the text, in order.
+     */
+    public static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        int start = -1;
+
+        for(int i = 0; i <= text.length(); ++i) {
+            boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if(letter && start < 0) {
+                start = i;
+            }
+            else if(!letter && start >= 0) {
+                if(i - start > 1 && i - start <= MAX_TERM_LENGTH) {
+                    terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+
+        return terms;
+    }
+
+    /**
+     * Markdown files are indexed, unless they are inside a hidden directory such as .client
+     */
+    private boolean isIndexed(Path file) {
+        if(!file.toString().endsWith(".md")) {
+            return false;
+        }
+        for(Path part : root.relativize(file)) {
+            if(part.toString().startsWith(".")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String relativePath(Path file) {
+        return root.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        }
+        catch (IOException e) {
+            return 0;
+        }
+    }
+}
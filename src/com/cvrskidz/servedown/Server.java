@@ -2,7 +2,13 @@ package com.cvrskidz.servedown;
 
 import java.net.*;
 import java.io.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
 import java.time.*;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
 
 /**
  * The entry point for the application responsible for listening to traffic on a
@@ -11,18 +17,65 @@ import java.time.*;
  */
 public class Server {
     // CLI argument storage
-    public static boolean compileFlag = false; //set to true upon --compile being sent
+    public static volatile boolean compileFlag = false; //set to true upon --compile being sent, or by ServerControl
+    public static boolean highlight = false; //set to true upon --highlight being sent, highlights code whilst converting
+    public static boolean inlineImages = false; //set to true upon --inline-images being sent, embeds images in pages
+    public static boolean earlyHints = true; //set by --early-hints, sends 103 responses before pages are converted
+    public static long maxStale = 10; //seconds a page is served stale whilst it is converted again, set by --max-stale
     public static String path = ""; //set to the content path supplied to the program if any
 
+    // Sites, each with it's own content services (see com.cvrskidz.servedown.Site)
+    public static Site defaultSite; //serves the content path, and requests for hosts without a site of their own
+    public static Map<String, Site> sites = Map.of(); //by host name in lower case, set by --sites
+    public static String assetDirectory = ".client"; //set by --asset-dir, relative to the content path
+    public static long assetBudget = 64L << 20; //bytes of assets held in memory before mapping files, set by --asset-budget
+    public static String outputDirectory = ".output"; //set by --output, relative to the content path
+    public static long imageCacheSize = 32L << 20; //bytes of variants held in memory, set by --image-cache
+    public static SharedCache sharedCache; //converted pages shared with other servers, set by --shared-cache
+    public static long pageCacheSize = 256L << 20; //bytes of pages to hold, set by --page-cache, 0 disables the cache
+    public static PageArena.Kind pageArena = PageArena.Kind.DIRECT; //where pages are held, set by --page-arena
+    public static long metadataTTL = 2000; //milliseconds file metadata is cached for, set by --stat-ttl
+    public static double requestRate = 200, convertRate = 20; //requests and conversions per second for each client
+    public static RateLimiter rateLimiter = new RateLimiter(0, 0); //limits set by --rate-limit and --convert-limit
+    public static volatile boolean serverTiming = false; //set to true upon --server-timing being sent, or by ServerControl
+    public static TraceLog trace; //slow requests written by --trace, null if disabled
+    public static SlowPages slowPages = new SlowPages(); //time taken to serve each page, whilst requests are timed
+    public static int streamWorkers = 256; //most HTTP/2 streams answered at once, set by --stream-workers
+    public static long drainTimeout = 30000; //milliseconds to wait for requests in flight when stopping, set by --drain-timeout
+
+    // Listener arguments
+    public static String bindAddress = ""; //set by --bind, the local host address if empty
+    public static int httpPort = 80; //set by --port
+    public static int backlog = 1024; //pending connections queued by each listening channel, set by --backlog
+    public static int acceptors = Runtime.getRuntime().availableProcessors(); //set by --acceptors
+    public static boolean tcpNoDelay = true; //set by --tcp-nodelay
+    public static int receiveBuffer = 0, sendBuffer = 0; //socket buffer sizes, set by --rcvbuf and --sndbuf, 0 for the system default
+
+    // Connection deadlines in milliseconds, a connection missing a deadline is closed
+    public static long headerTimeout = 10000; //to receive a request header, set by --header-timeout
+    public static long bodyTimeout = 10000; //to receive a request body, set by --body-timeout
+    public static long writeTimeout = 30000; //to send a response, set by --write-timeout
+    public static long keepAliveTimeout = 5000; //idle time between requests, set by --keep-alive, 0 disables keep-alive
+    public static TimerWheel timeouts = new TimerWheel();
+
+    // HTTPS arguments, HTTPS is only served if a keystore is supplied
+    public static int httpsPort = 443; //set by --https-port
+    public static String keystore = ""; //set by --keystore
+    public static char[] keystorePassword = new char[0]; //set by --keystore-password
+    public static boolean h2c = false; //set to true upon --h2c being sent, serves cleartext HTTP/2
+
     // Program loop variables
-    public static boolean listening;
+    public static volatile boolean listening; //read by every acceptor and handler thread, cleared by stop()
     public static final String defaultFile = "README.md"; //default file to read if none specified
 
     //com.cvrskidz.servedown.Server status
-    private ServerSocket socket; //open socket
+    private ServerSocketChannel[] sockets; //open sockets, one per acceptor or a single shared socket
+    private TLSListener tls; //accepts HTTPS connections, null unless a keystore is supplied
     private String error; //any error messages to display
     private int port; //port to listen on
+    private int acceptorCount; //number of threads accepting connections
     private Thread inputThread; //Thread to handle user input whilst running
+    private ServerControl control; //inspects and tunes the server, from the console or JMX
 
     public static final String REQUEST_METHOD = "GET"; //supported methods
     public static final String[] REQUEST_PROTOCOLS = new String[] {"HTTP", "HTTPS"}; //supported protocols
@@ -31,10 +84,13 @@ public class Server {
      * Returns a new instance of a file server, ready to listen on the supplied port
      *
      * @param port The port number on the local host to open.
+     * @param acceptors The number of threads accepting connections.
      */
-    public Server(int port) {
+    public Server(int port, int acceptors) {
         this.port = port;
-        inputThread = new Thread(new ConsoleInput()); //assign input controller to a new thread
+        this.acceptorCount = Math.max(1, acceptors);
+        control = new ServerControl(this);
+        inputThread = new Thread(new ConsoleInput(control)); //assign input controller to a new thread
     }
 
     /**
@@ -45,16 +101,88 @@ public class Server {
      * @throws java.io.IOException If an error occurs sending a response to a client or the open socket
      */
     public void listen() throws java.net.UnknownHostException, java.io.IOException {
-        System.out.println("Connecting to socket at: " + InetAddress.getLocalHost().getHostAddress() + ":" + port);
-        socket = new ServerSocket(port, 0, InetAddress.getLocalHost()); //create socket to receive requests
+        InetSocketAddress address = new InetSocketAddress(bindAddress(), port);
+        System.out.println("Connecting to socket at: " + address.getAddress().getHostAddress() + ":" + port);
+
+        //each acceptor binds it's own socket if possible, so the kernel spreads connections between them
+        boolean reusePort = acceptorCount > 1 && Acceptor.supportsReusePort();
+        sockets = new ServerSocketChannel[reusePort ? acceptorCount : 1];
+        for(int i = 0; i < sockets.length; ++i) {
+            sockets[i] = Acceptor.open(address, reusePort);
+        }
+        System.out.println("Accepting connections on " + acceptorCount + " thread(s)"
+                + (reusePort ? " with SO_REUSEPORT" : ""));
         listening = true; //whilst true the server will listen to traffic on the instance port
 
+        if(!keystore.isEmpty()) {
+            try {
+                tls = new TLSListener(address.getAddress(), httpsPort, Path.of(keystore), keystorePassword);
+                new Thread(tls, "https-listener").start();
+            }
+            catch (GeneralSecurityException e) {
+                System.err.println("HTTPS is disabled, the keystore could not be used: " + e);
+            }
+        }
+
+        control.register();
         inputThread.start();
 
-        // Accept requests until stopped
-        while(listening) {
-            new RequestHandler(socket.accept()).start();
+        // Accept requests until stopped, the last acceptor runs on this thread
+        for(int i = 0; i < acceptorCount - 1; ++i) {
+            new Thread(new Acceptor(sockets[i % sockets.length]), "acceptor-" + i).start();
+        }
+        new Acceptor(sockets[sockets.length - 1]).run();
+    }
+
+    /**
+     * Stops the server gracefully. The listening sockets are closed so no more connections are accepted,
+     * connections kept alive are closed after their current request, and the program exits once every request in
+     * flight has been answered or the timeout has passed.
+     *
+     * @param timeout The most milliseconds to wait for requests in flight.
+     */
+    public void stop(long timeout) {
+        listening = false;
+        for(ServerSocketChannel socket : sockets) {
+            try {
+                socket.close(); //wakes the acceptors
+            }
+            catch (IOException e) {
+                System.err.println("An error occurred closing a socket: " + e);
+            }
+        }
+        if(tls != null) {
+            tls.close();
+        }
+
+        System.out.println("Draining " + RequestHandler.getInFlight() + " request(s) in flight");
+        long deadline = System.currentTimeMillis() + timeout;
+        while(RequestHandler.getInFlight() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+        }
+        if(RequestHandler.getInFlight() > 0) {
+            System.out.println("Stopping with " + RequestHandler.getInFlight() + " request(s) unanswered");
+        }
+        defaultSite.outputStore.flush(); //conversions recorded since the manifests were last saved
+        for(Site site : hostedSites()) {
+            site.outputStore.flush();
         }
+        System.exit(0); //exit program with no errors
+    }
+
+    /**
+     * Returns the address to listen on, the supplied bind address or the local host if none was supplied.
+     *
+     * @return The local address to bind to.
+     * @throws java.net.UnknownHostException If the address cannot be resolved.
+     */
+    public static InetAddress bindAddress() throws java.net.UnknownHostException {
+        return bindAddress.isEmpty() ? InetAddress.getLocalHost() : InetAddress.getByName(bindAddress);
     }
 
     /**
@@ -95,16 +223,44 @@ public class Server {
     }
 
     /**
-     * Runs a single server on port 80 with the supplied server arguments until stopped.
+     * Returns the directory files are served from by the site the current thread is working for.
+     *
+     * @return The absolute path of the sites content root.
+     */
+    public static Path contentRoot() {
+        return Site.current().root;
+    }
+
+    /**
+     * Returns the sites hosted in addition to the default site, each once regardless of how many host names it has.
+     *
+     * @return The sites set by --sites, in the order they were listed.
+     */
+    public static Collection<Site> hostedSites() {
+        return new LinkedHashSet<>(sites.values());
+    }
+
+    /**
+     * Runs a single server on port 80 (or the port set by --port) with the supplied server arguments until stopped.
      *
      * @param args The program arguments.
      * @throws Exception Dump all unhandled errors.
      */
     public static void main(String args[]) throws Exception {
+        String traceFile = null; //set by --trace
+        long traceThreshold = 100; //milliseconds, set by --trace-slow
+        int traceSample = 1; //set by --trace-sample
+        String sitesFile = null; //set by --sites
         for (int i = 0; i < args.length; ++i) {
             if(args[i].equals("--compile")) {
                 Server.compileFlag = true;
             }
+            if(args[i].equals("--highlight")) {
+                Server.highlight = true;
+            }
+            if(args[i].equals("--inline-images")) {
+                Server.inlineImages = true;
+            }
             if(args[i].equals("--path")) {
                 File pathBuffer = new File(args[++i]);
                 if(pathBuffer.isDirectory()) {
@@ -113,9 +269,127 @@ public class Server {
                 }
                 System.out.println("Path arg was " + pathBuffer.getPath());
             }
+            if(args[i].equals("--stat-ttl")) {
+                Server.metadataTTL = Long.parseLong(args[++i]);
+            }
+            if(args[i].equals("--rate-limit")) {
+                Server.requestRate = Double.parseDouble(args[++i]);
+            }
+            if(args[i].equals("--convert-limit")) {
+                Server.convertRate = Double.parseDouble(args[++i]);
+            }
+            if(args[i].equals("--https-port")) {
+                Server.httpsPort = Integer.parseInt(args[++i]);
+            }
+            if(args[i].equals("--keystore")) {
+                Server.keystore = args[++i];
+            }
+            if(args[i].equals("--keystore-password")) {
+                Server.keystorePassword = args[++i].toCharArray();
+            }
+            if(args[i].equals("--bind")) {
+                Server.bindAddress = args[++i];
+            }
+            if(args[i].equals("--port")) {
+                Server.httpPort = Integer.parseInt(args[++i]);
+            }
+            if(args[i].equals("--backlog")) {
+                Server.backlog = Integer.parseInt(args[++i]);
+            }
+            if(args[i].equals("--acceptors")) {
+                Server.acceptors = Integer.parseInt(args[++i]);
+            }
+            if(args[i].equals("--tcp-nodelay")) {
+                Server.tcpNoDelay = Boolean.parseBoolean(args[++i]);
+            }
+            if(args[i].equals("--rcvbuf")) {
+                Server.receiveBuffer = Integer.parseInt(args[++i]);
+            }
+            if(args[i].equals("--sndbuf")) {
+                Server.sendBuffer = Integer.parseInt(args[++i]);
+            }
+            if(args[i].equals("--header-timeout")) {
+                Server.headerTimeout = Long.parseLong(args[++i]);
+            }
+            if(args[i].equals("--body-timeout")) {
+                Server.bodyTimeout = Long.parseLong(args[++i]);
+            }
+            if(args[i].equals("--write-timeout")) {
+                Server.writeTimeout = Long.parseLong(args[++i]);
+            }
+            if(args[i].equals("--keep-alive")) {
+                Server.keepAliveTimeout = Long.parseLong(args[++i]);
+            }
+            if(args[i].equals("--early-hints")) {
+                Server.earlyHints = Boolean.parseBoolean(args[++i]);
+            }
+            if(args[i].equals("--max-stale")) {
+                Server.maxStale = Long.parseLong(args[++i]);
+            }
+            if(args[i].equals("--h2c")) {
+                Server.h2c = true;
+            }
+            if(args[i].equals("--asset-dir")) {
+                Server.assetDirectory = args[++i];
+            }
+            if(args[i].equals("--asset-budget")) {
+                Server.assetBudget = Long.parseLong(args[++i]) << 20;
+            }
+            if(args[i].equals("--output")) {
+                Server.outputDirectory = args[++i];
+            }
+            if(args[i].equals("--image-cache")) {
+                Server.imageCacheSize = Long.parseLong(args[++i]) << 20;
+            }
+            if(args[i].equals("--sites")) {
+                sitesFile = args[++i];
+            }
+            if(args[i].equals("--shared-cache")) {
+                Server.sharedCache = new SharedCache(Path.of(args[++i]));
+            }
+            if(args[i].equals("--page-cache")) {
+                Server.pageCacheSize = Long.parseLong(args[++i]) << 20;
+            }
+            if(args[i].equals("--page-arena")) {
+                Server.pageArena = PageArena.Kind.valueOf(args[++i].toUpperCase());
+            }
+            if(args[i].equals("--stream-workers")) {
+                Server.streamWorkers = Integer.parseInt(args[++i]);
+            }
+            if(args[i].equals("--drain-timeout")) {
+                Server.drainTimeout = Long.parseLong(args[++i]);
+            }
+            if(args[i].equals("--server-timing")) {
+                Server.serverTiming = true;
+            }
+            if(args[i].equals("--trace")) {
+                traceFile = args[++i];
+            }
+            if(args[i].equals("--trace-slow")) {
+                traceThreshold = Long.parseLong(args[++i]);
+            }
+            if(args[i].equals("--trace-sample")) {
+                traceSample = Integer.parseInt(args[++i]);
+            }
+        }
+        if(traceFile != null) {
+            trace = new TraceLog(Path.of(traceFile), traceThreshold, traceSample);
+        }
+
+        rateLimiter = new RateLimiter(requestRate, convertRate);
+        rateLimiter.start();
+        timeouts.start();
+        Path root = path.isEmpty() ? Path.of("").toAbsolutePath() : Path.of(path);
+        defaultSite = new Site("", root, defaultFile, false, pageCacheSize, assetBudget, imageCacheSize);
+        if(sitesFile != null) {
+            sites = Site.load(Path.of(sitesFile));
+        }
+        defaultSite.start(); //converts pages made stale whilst the server was stopped
+        for(Site site : hostedSites()) {
+            site.start();
         }
 
-        Server server = new Server(80);
+        Server server = new Server(Server.httpPort, Server.acceptors);
 
         try {
             server.listen();
@@ -0,0 +1,212 @@
+package com.cvrskidz.servedown;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The com.cvrskidz.servedown.ServerControl class inspects and tunes a running server. It is registered as a JMX
+ * MBean, and is used by com.cvrskidz.servedown.ConsoleInput, so each command is available from both.
+ */
+public class ServerControl implements ServerControlMBean {
+    public static final String NAME = "com.cvrskidz.servedown:type=Server"; //the name the MBean is registered as
+
+    private final Server server;
+
+    /**
+     * Returns a controller for a server.
+     *
+     * @param server The server stopped by stop().
+     */
+    public ServerControl(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * Registers this controller with the platform MBean server, so it can be reached over JMX.
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(NAME));
+        }
+        catch (JMException e) {
+            System.err.println("--LOG--\nError registering " + NAME + "\n" + e + "\n--END LOG--");
+        }
+    }
+
+    @Override
+    public int getInFlight() {
+        return RequestHandler.getInFlight();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return Acceptor.getAccepted();
+    }
+
+    @Override
+    public int getPagesCached() {
+        return Site.current().pageCache == null ? 0 : Site.current().pageCache.size();
+    }
+
+    @Override
+    public double getPageCacheHitRate() {
+        return Site.current().pageCache == null ? 0 : Site.current().pageCache.hitRate();
+    }
+
+    @Override
+    public int getPathsCached() {
+        return Site.current().pathCache.size();
+    }
+
+    @Override
+    public int getMissingPathsCached() {
+        return Site.current().missingPaths.size();
+    }
+
+    @Override
+    public String getCaches() {
+        StringBuilder summary = new StringBuilder(Server.defaultSite.statistics());
+        for(Site site : Server.hostedSites()) {
+            summary.append('\n').append(site.statistics());
+        }
+        if(Server.sharedCache != null) {
+            summary.append('\n').append(Server.sharedCache.statistics());
+        }
+        return summary.append('\n').append(Http2Connection.statistics()).append("\nIn flight: ")
+                .append(getInFlight()).append(" request(s)").toString();
+    }
+
+    @Override
+    public boolean isCompileOnRequest() {
+        return Server.compileFlag;
+    }
+
+    @Override
+    public void setCompileOnRequest(boolean compile) {
+        Server.compileFlag = compile;
+        System.out.println("Compile on request " + (compile ? "enabled" : "disabled"));
+    }
+
+    @Override
+    public boolean isServerTiming() {
+        return Server.serverTiming;
+    }
+
+    @Override
+    public void setServerTiming(boolean timing) {
+        Server.serverTiming = timing;
+        System.out.println("Server-Timing " + (timing ? "enabled" : "disabled"));
+    }
+
+    @Override
+    public int getStreamWorkers() {
+        return Http2Connection.getWorkers();
+    }
+
+    @Override
+    public void setStreamWorkers(int workers) {
+        Http2Connection.setWorkers(workers);
+        System.out.println("HTTP/2 workers set to " + Http2Connection.getWorkers());
+    }
+
+    @Override
+    public String flush(String path) {
+        Path file = resolve(path);
+        if(file == null) {
+            return "Not found: " + path;
+        }
+
+        Site site = Site.current();
+        site.pathCache.flush(file);
+        site.missingPaths.clear();
+        if(site.pageCache != null) {
+            site.pageCache.invalidate(file); //pages served from the content root
+            if(Files.isDirectory(file)) {
+                site.pageCache.invalidate(site.outputStore.directory(file));
+            }
+            else if(file.toString().endsWith(".md")) {
+                site.pageCache.invalidate(site.outputStore.output(file));
+            }
+        }
+        return "Flushed cached paths and pages below " + path;
+    }
+
+    @Override
+    public String warm(String path) {
+        Path file = resolve(path);
+        if(file == null) {
+            return "Not found: " + path;
+        }
+        List<Path> sources;
+        try(Stream<Path> files = Files.walk(file)) {
+            sources = files.filter(source -> source.toString().endsWith(".md") && Files.isRegularFile(source)
+                    && !isHidden(source)).collect(Collectors.toList());
+        }
+        catch (IOException e) {
+            return "Error listing " + path + ": " + e;
+        }
+
+        Site site = Site.current();
+        int converted = 0, loaded = 0, failed = 0;
+        for(Path source : sources) {
+            try {
+                Path output = site.outputStore.output(source);
+                if(!site.outputStore.isFresh(source) || !Files.isRegularFile(output)) {
+                    HTMLHandler.convert(source); //cached as it is converted
+                    ++converted;
+                }
+                else if(site.pageCache != null) {
+                    site.pathCache.invalidate(output);
+                    byte[] contents = Files.readAllBytes(output);
+                    site.pageCache.put(site.pathCache.stat(output), contents);
+                    ++loaded;
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                System.err.println("--LOG--\nError warming " + source + "\n" + e + "\n--END LOG--");
+                ++failed;
+            }
+        }
+        return "Warmed " + path + ": " + converted + " page(s) converted, " + loaded + " loaded, " + failed + " failed";
+    }
+
+    @Override
+    public String[] slowPages(int count) {
+        return Server.slowPages.top(count).toArray(new String[0]);
+    }
+
+    @Override
+    public void stop() {
+        Thread drain = new Thread(() -> server.stop(Server.drainTimeout), "drain"); //so JMX clients are answered
+        drain.start();
+    }
+
+    /**
+     * Resolves a request path to an existing file or directory below the content root.
+     *
+     * @return The absolute path, or null if it does not exist.
+     */
+    private static Path resolve(String path) {
+        Path file = Site.current().pathCache.resolve(path.trim());
+        return file != null && Files.exists(file) ? file : null;
+    }
+
+    /**
+     * Checks whether a file is inside a hidden directory of the content root, such as .client.
+     */
+    private static boolean isHidden(Path file) {
+        for(Path part : Server.contentRoot().relativize(file)) {
+            if(part.toString().startsWith(".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
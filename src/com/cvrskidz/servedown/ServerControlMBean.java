@@ -0,0 +1,104 @@
+package com.cvrskidz.servedown;
+
+/**
+ * The com.cvrskidz.servedown.ServerControlMBean interface is the management interface of a running server, exposed
+ * over JMX by com.cvrskidz.servedown.ServerControl (as com.cvrskidz.servedown:type=Server) so it can be inspected and
+ * tuned from tools such as JConsole without restarting it.
+ * <p>
+ * Attributes and operations on a single site's caches apply to the default site (see com.cvrskidz.servedown.Site).
+ */
+public interface ServerControlMBean {
+    /**
+     * @return The number of requests received but not yet answered.
+     */
+    int getInFlight();
+
+    /**
+     * @return The number of connections accepted since the server started.
+     */
+    long getAcceptedConnections();
+
+    /**
+     * @return The number of converted pages held in memory.
+     */
+    int getPagesCached();
+
+    /**
+     * @return The fraction of page requests answered from memory.
+     */
+    double getPageCacheHitRate();
+
+    /**
+     * @return The number of files with cached metadata.
+     */
+    int getPathsCached();
+
+    /**
+     * @return The number of requested paths known not to exist.
+     */
+    int getMissingPathsCached();
+
+    /**
+     * @return A summary of every cache of every site, as printed by the "caches" command.
+     */
+    String getCaches();
+
+    /**
+     * @return True if markdown is converted on every request.
+     */
+    boolean isCompileOnRequest();
+
+    /**
+     * @param compile True to convert markdown on every request, False to serve converted pages that are up to date.
+     */
+    void setCompileOnRequest(boolean compile);
+
+    /**
+     * @return True if responses are sent with a Server-Timing field.
+     */
+    boolean isServerTiming();
+
+    /**
+     * @param timing True to time requests and send a Server-Timing field with each response.
+     */
+    void setServerTiming(boolean timing);
+
+    /**
+     * @return The most HTTP/2 streams answered at once.
+     */
+    int getStreamWorkers();
+
+    /**
+     * @param workers The most HTTP/2 streams to answer at once.
+     */
+    void setStreamWorkers(int workers);
+
+    /**
+     * Removes the cached metadata and pages of every file below a path.
+     *
+     * @param path A request path, e.g. /docs.
+     * @return A description of the flushed caches.
+     */
+    String flush(String path);
+
+    /**
+     * Converts the stale pages below a path, and loads every page below it into memory.
+     *
+     * @param path A request path, e.g. /docs.
+     * @return The number of pages converted and loaded.
+     */
+    String warm(String path);
+
+    /**
+     * Lists the pages with the longest mean time to serve, recorded whilst requests are timed.
+     *
+     * @param count The most pages to list.
+     * @return A line for each page, slowest first.
+     */
+    String[] slowPages(int count);
+
+    /**
+     * Stops accepting connections, and stops the server once every request in flight has been answered.
+     */
+    void stop();
+}
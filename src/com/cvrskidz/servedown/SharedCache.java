@@ -0,0 +1,391 @@
+package com.cvrskidz.servedown;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The com.cvrskidz.servedown.SharedCache class shares converted pages between servers through a common directory,
+ * such as a network mount, so each page is converted once by one server rather than once by every server.
+ * <p>
+ * Pages are stored by their content: a key made from the hash of the markdown, the page title, the site and the
+ * converter version. As a page may also depend on other files (images inlined whilst converting), the files each
+ * key depends on are published beside it in a .deps file, and the page itself is stored under a second key which
+ * includes the hash of each of these files. Servers with different images therefore never share a page.
+ * <p>
+ * Files are published by writing a temporary file and renaming it, so a page is never read before it is complete,
+ * and no locks are needed to read the cache. To stop servers converting the same page at once, a server first
+ * creates a .lease file for the key. Other servers wait for the page to be published, or for the lease to expire if
+ * it's owner stopped, but for no longer than MAX_WAIT before converting the page themselves. An expired lease is
+ * taken over by renaming it to a name unique to the server taking it, so only one server can take it.
+ */
+public class SharedCache {
+    private static final long LEASE_TIME = 30000; //milliseconds a lease is held for before other servers take it
+    private static final long POLL_INTERVAL = 50; //milliseconds between checks for a page being converted elsewhere
+    private static final int MAX_ATTEMPTS = 3; //times a key is looked up before converting without the cache
+    private static final long MAX_WAIT = 5000; //milliseconds to wait for other servers before converting without the cache
+
+    /**
+     * Converts a page, when it is not in the cache.
+     */
+    public interface Conversion {
+        /**
+         * Converts the page.
+         *
+         * @return The converted page.
+         * @throws IOException If the page cannot be converted.
+         */
+        Page convert() throws IOException;
+    }
+
+    /**
+     * A converted page, and the files it depends on.
+     */
+    public static class Page {
+        private final byte[] html;
+        private final List<String> dependencies;
+
+        public Page(byte[] html, List<String> dependencies) {
+            this.html = html;
+            this.dependencies = dependencies;
+        }
+
+        /**
+         * A getter method to access the converted page.
+         *
+         * @return The page, encoded as UTF-8.
+         */
+        public byte[] getHTML() {
+            return html;
+        }
+
+        /**
+         * A getter method to access the files read whilst converting.
+         *
+         * @return The request paths of the files, relative to the servers content root.
+         */
+        public List<String> getDependencies() {
+            return dependencies;
+        }
+    }
+
+    private final Path root; //the shared directory
+    private final String node; //identifies this server in the leases it creates
+    private final AtomicLong hits = new AtomicLong(), conversions = new AtomicLong(), waits = new AtomicLong();
+
+    /**
+     * Returns a cache in a shared directory, creating the directory if it does not exist.
+     *
+     * @param root The shared directory.
+     * @throws IOException If the directory cannot be created.
+     */
+    public SharedCache(Path root) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        Files.createDirectories(this.root);
+        node = InetAddress.getLocalHost().getHostName() + "/" + ManagementFactory.getRuntimeMXBean().getName();
+    }
+
+    /**
+     * Returns a page from the cache, or converts and publishes it if no server has converted it.
+     *
+     * Pages are shared between servers hosting the same site (named by it's first host name), as images and
+     * other dependencies are resolved against the sites content root.
+     *
+     * @param markdown The contents of the markdown file.
+     * @param title The title of the page, included in the converted page.
+     * @param version The converter version, as returned by OutputStore.version().
+     * @param conversion Converts the page if it is not cached.
+     * @return The converted page.
+     * @throws IOException If the page is not cached and cannot be converted.
+     */
+    public Page get(byte[] markdown, String title, String version, Conversion conversion) throws IOException {
+        String source = OutputStore.hash((version + "\n" + Site.current().name + "\n" + title + "\n"
+                + OutputStore.hash(markdown)).getBytes(StandardCharsets.UTF_8));
+        long deadline = System.currentTimeMillis() + MAX_WAIT;
+
+        for(int attempt = 0; attempt < MAX_ATTEMPTS; ++attempt) {
+            List<String> dependencies = readDependencies(source);
+            String key = dependencies == null ? source : key(source, dependencies);
+
+            Page cached = dependencies == null ? null : read(key, dependencies);
+            if(cached != null) {
+                hits.incrementAndGet();
+                return cached;
+            }
+
+            Path lease = file(key, ".lease");
+            String owner = node + "/" + Thread.currentThread().getId() + "/" + System.nanoTime();
+            if(acquire(lease, owner)) {
+                try {
+                    cached = dependencies == null ? null : read(key, dependencies); //published before the lease
+                    if(cached != null) {
+                        hits.incrementAndGet();
+                        return cached;
+                    }
+                    return publish(source, conversion.convert());
+                }
+                finally {
+                    release(lease, owner);
+                }
+            }
+
+            waits.incrementAndGet();
+            if(!await(lease, deadline)) {
+                break;
+            }
+        }
+
+        System.out.println("Converting without the shared cache, the page is leased by another server");
+        conversions.incrementAndGet();
+        return conversion.convert();
+    }
+
+    /**
+     * Publishes a converted page, and the files it depends on.
+     */
+    private Page publish(String source, Page page) throws IOException {
+        conversions.incrementAndGet();
+        StringBuilder dependencies = new StringBuilder();
+        for(String dependency : page.getDependencies()) {
+            dependencies.append(dependency).append('\n');
+        }
+
+        write(file(source, ".deps"), dependencies.toString().getBytes(StandardCharsets.UTF_8));
+        write(file(key(source, page.getDependencies()), ".html"), page.getHTML());
+        return page;
+    }
+
+    /**
+     * Returns the key of a page, combining it's source key with the hash of each file it depends on.
+     */
+    private static String key(String source, List<String> dependencies) {
+        if(dependencies.isEmpty()) {
+            return source;
+        }
+
+        StringBuilder key = new StringBuilder(source);
+        for(String dependency : dependencies) {
+            key.append('\n').append(dependency).append(' ');
+            Path file = Site.current().pathCache.resolve(dependency);
+            try {
+                key.append(file != null && Files.isRegularFile(file) ? OutputStore.hash(file) : "missing");
+            }
+            catch (IOException e) {
+                key.append("missing");
+            }
+        }
+        return OutputStore.hash(key.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads the files a page depends on, as published by the first server to convert it.
+     *
+     * @return The request path of each file, or null if the page has not been converted.
+     */
+    private List<String> readDependencies(String source) throws IOException {
+        Path file = file(source, ".deps");
+        if(!Files.isRegularFile(file)) {
+            return null;
+        }
+
+        List<String> dependencies = new ArrayList<>();
+        for(String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if(!line.isEmpty()) {
+                dependencies.add(line);
+            }
+        }
+        return dependencies;
+    }
+
+    /**
+     * Reads a published page.
+     *
+     * @return The page, or null if it has not been published.
+     */
+    private Page read(String key, List<String> dependencies) throws IOException {
+        try {
+            return new Page(Files.readAllBytes(file(key, ".html")), dependencies);
+        }
+        catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes a file to a temporary name, and renames it once complete.
+     */
+    private void write(Path file, byte[] contents) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), "." + file.getFileName(), ".tmp");
+        try {
+            Files.write(temp, contents);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Tries to create a lease, taking over a lease that has expired. The expired lease is renamed to a name unique
+     * to this attempt before it is replaced, so if several servers find it expired only one takes it, and a lease
+     * created by another server after it was read is restored rather than deleted.
+     *
+     * @param owner Identifies this attempt to convert the page, so only it releases the lease.
+     * @return True if this server holds the lease, False if another server does.
+     */
+    private boolean acquire(Path lease, String owner) throws IOException {
+        Files.createDirectories(lease.getParent());
+        if(create(lease, owner)) {
+            return true;
+        }
+
+        byte[] held = readLease(lease);
+        if(held == null) {
+            return create(lease, owner); //released since it was found
+        }
+        if(!expired(lease, held)) {
+            return false;
+        }
+
+        Path taken = lease.resolveSibling("." + lease.getFileName() + "."
+                + OutputStore.hash(owner.getBytes(StandardCharsets.UTF_8)) + ".expired");
+        try {
+            Files.move(lease, taken, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (NoSuchFileException e) {
+            return false; //taken over by another server
+        }
+        try {
+            if(!Arrays.equals(Files.readAllBytes(taken), held)) { //a new lease, created after the expired one was read
+                try {
+                    Files.createLink(lease, taken); //fails rather than replacing a lease created since
+                }
+                catch (IOException | UnsupportedOperationException e) {
+                    //the server holding it converts the page, as may another server
+                }
+                return false;
+            }
+        }
+        finally {
+            Files.deleteIfExists(taken);
+        }
+
+        System.out.println("Taking over expired lease " + lease.getFileName());
+        return create(lease, owner);
+    }
+
+    /**
+     * Creates a lease, if no lease exists.
+     */
+    private static boolean create(Path lease, String owner) throws IOException {
+        byte[] contents = (owner + "\n" + (System.currentTimeMillis() + LEASE_TIME)).getBytes(StandardCharsets.UTF_8);
+        try {
+            Files.write(lease, contents, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            return true;
+        }
+        catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Deletes a lease, unless it expired and was taken over by another server.
+     */
+    private static void release(Path lease, String owner) throws IOException {
+        try {
+            List<String> lines = Files.readAllLines(lease, StandardCharsets.UTF_8);
+            if(!lines.isEmpty() && lines.get(0).equals(owner)) {
+                Files.deleteIfExists(lease);
+            }
+        }
+        catch (NoSuchFileException e) {
+            //taken over and released
+        }
+    }
+
+    /**
+     * Waits until a lease is released or expires, or a deadline passes.
+     *
+     * @param deadline The time to stop waiting, in milliseconds since the epoch.
+     * @return True if the lease was released or expired, False if the deadline passed first.
+     */
+    private boolean await(Path lease, long deadline) throws IOException {
+        byte[] held;
+        while((held = readLease(lease)) != null && !expired(lease, held)) {
+            if(System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the contents of a lease.
+     *
+     * @return The contents, or null if the lease does not exist.
+     */
+    private static byte[] readLease(Path lease) throws IOException {
+        try {
+            return Files.readAllBytes(lease);
+        }
+        catch (NoSuchFileException e) {
+            return null; //released
+        }
+    }
+
+    /**
+     * Checks whether a lease has passed it's expiry time. Leases that cannot be read, such as a lease left
+     * incomplete by a server that stopped, expire LEASE_TIME after they were last modified.
+     *
+     * @param contents The contents of the lease, as read by readLease().
+     */
+    private static boolean expired(Path lease, byte[] contents) {
+        String[] lines = new String(contents, StandardCharsets.UTF_8).split("\n");
+        try {
+            if(lines.length == 2) {
+                return Long.parseLong(lines[1]) < System.currentTimeMillis();
+            }
+        }
+        catch (NumberFormatException e) {
+            //expired by it's modification time
+        }
+
+        try {
+            return Files.getLastModifiedTime(lease).toMillis() + LEASE_TIME < System.currentTimeMillis();
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the path of a file in the cache, in a directory named by the first two characters of it's key.
+     */
+    private Path file(String key, String extension) {
+        return root.resolve(key.substring(0, 2)).resolve(key + extension);
+    }
+
+    /**
+     * Summarises the pages read from the cache and converted by this server.
+     *
+     * @return The number of pages read from the cache, converted, and waited for whilst converted elsewhere.
+     */
+    public String statistics() {
+        return "Shared cache: " + root + ", " + hits.get() + " page(s) read, " + conversions.get() + " converted, "
+                + waits.get() + " wait(s) for other servers";
+    }
+}
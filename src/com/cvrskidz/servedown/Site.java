@@ -0,0 +1,260 @@
+package com.cvrskidz.servedown;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The com.cvrskidz.servedown.Site class is a single site hosted by the server: a content root, and the caches,
+ * stores and indexes serving it. Each request is answered by the site named by it's Host field (see Server.sites),
+ * or by Server.defaultSite, so many sites can share the servers listeners and worker threads whilst keeping their
+ * caches apart.
+ * <p>
+ * A thread works for one site at a time, entered with enter() and reached with current(). Requests enter the site
+ * they are addressed to, and the background threads of a site (it's content watcher, and the conversion of stale
+ * pages) enter it when they start. Threads that have not entered a site, such as the console, work for
+ * Server.defaultSite.
+ * <p>
+ * Sites are listed in a text file passed with --sites, one site on each line: it's host names separated by commas,
+ * it's content root (relative to the file), and any options as name=value pairs. Blank lines and lines beginning
+ * with # are ignored:
+ * <pre>
+ * docs.example.com,docs.internal    /srv/docs    default=index.md compile=false page-cache=64
+ * notes.example.com                 notes        page-cache=8 asset-budget=4 image-cache=4
+ * </pre>
+ * The options are default (the file served for a directory), compile, and the page-cache, asset-budget and
+ * image-cache budgets in megabytes, which default to the servers options.
+ */
+public class Site {
+    private static final ThreadLocal<Site> current = new ThreadLocal<>(); //the site each thread is working for
+
+    public final String name; //the first host name of the site, empty for the default site
+    public final Path root; //the content root
+    public final String defaultFile; //file served for a directory
+    public final boolean compile; //converts markdown on every request, as Server.compileFlag does for every site
+    public final Path output; //the directory of converted pages and images, see Server.outputDirectory
+
+    public final PathCache pathCache; //resolved paths and metadata of requested files
+    public final MissingPathCache missingPaths = new MissingPathCache(4096); //recently requested paths that do not exist
+    public final ContentWatcher watcher; //notifies the services below of changes to files in the content root
+    public final AssetPipeline assets; //bundled styles and scripts included in converted pages
+    public final AssetStore assetStore; //files below Server.assetDirectory, held in memory
+    public final PageCache pageCache; //converted pages held in memory, null if disabled
+    public final OutputStore outputStore; //converted pages, and the manifest recording how each was converted
+    public final ImageResizer images; //resized variants of images, written below Server.outputDirectory
+    public final SearchIndex searchIndex; //full text index of the markdown files in the content root
+    public final SiteIndex siteIndex; //titles and headings of the pages, serving the sitemap and navigation tree
+
+    /**
+     * Returns a site serving a content root, loading the services of the site. Changes to the content root are not
+     * watched, and stale pages are not converted, until the site is started.
+     *
+     * @param name The host name of the site, or an empty string for the default site.
+     * @param root The absolute path of the content root.
+     * @param defaultFile The file served for a directory, e.g. README.md.
+     * @param compile True to convert markdown on every request.
+     * @param pageCacheSize Bytes of converted pages to hold in memory, 0 to disable the page cache.
+     * @param assetBudget Bytes of assets to hold in memory before mapping files.
+     * @param imageCacheSize Bytes of resized images to hold in memory.
+     * @throws IOException If the content root cannot be watched, or a store cannot be created.
+     */
+    public Site(String name, Path root, String defaultFile, boolean compile, long pageCacheSize, long assetBudget,
+                long imageCacheSize) throws IOException {
+        this.name = name;
+        this.root = root;
+        this.defaultFile = defaultFile;
+        this.compile = compile;
+        this.output = root.resolve(Server.outputDirectory).normalize();
+
+        Site previous = enter(this); //the services below are reached through current() as they load
+        try {
+            pathCache = new PathCache(root, Server.metadataTTL);
+            watcher = new ContentWatcher(root);
+            watcher.addListener(pathCache);
+            watcher.addListener(missingPaths);
+            assets = new AssetPipeline(root);
+            HTMLHandler.styles(); //bundle the assets of converted pages before the first request
+            HTMLHandler.scripts();
+            watcher.addListener(assets);
+            assetStore = new AssetStore(root.resolve(Server.assetDirectory), assetBudget);
+            watcher.addListener(assetStore);
+            pageCache = pageCacheSize > 0 ? new PageCache(new PageArena(Server.pageArena, pageCacheSize)) : null;
+            if(pageCache != null) {
+                watcher.addListener(pageCache);
+            }
+            outputStore = new OutputStore(output, root);
+            watcher.addListener(outputStore);
+            images = new ImageResizer(output.resolve(".images"), imageCacheSize);
+            watcher.addListener(images);
+            searchIndex = SearchIndex.open(root);
+            watcher.addListener(searchIndex);
+            siteIndex = SiteIndex.open(root, defaultFile);
+            watcher.addListener(siteIndex);
+        }
+        finally {
+            enter(previous);
+        }
+    }
+
+    /**
+     * Starts watching the content root for changes, and converts the pages made stale whilst the server was
+     * stopped on a background thread.
+     */
+    public void start() {
+        Site previous = enter(this);
+        try {
+            watcher.start(this);
+            outputStore.refresh();
+        }
+        finally {
+            enter(previous);
+        }
+    }
+
+    /**
+     * Checks whether a file was written into the content root by the server, rather than published in it: the
+     * pages, images and manifest of the output directory, and the saved search index.
+     *
+     * @param file The absolute path of a file below the content root.
+     * @return True if the file belongs to the server.
+     */
+    public boolean isServerFile(Path file) {
+        if(file.startsWith(output)) {
+            return true;
+        }
+        return root.equals(file.getParent()) && file.getFileName().toString().startsWith(SearchIndex.INDEX_FILE);
+    }
+
+    /**
+     * Loads the sites listed in a file. Sites that cannot be loaded are logged and skipped, so one missing
+     * directory does not stop the others being served.
+     *
+     * @param file The file listing the sites.
+     * @return The sites by each of their host names, in lower case.
+     * @throws IOException If the file cannot be read.
+     */
+    public static Map<String, Site> load(Path file) throws IOException {
+        Map<String, Site> sites = new LinkedHashMap<>();
+        Path directory = file.toAbsolutePath().getParent();
+        for(String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            line = line.strip();
+            if(line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            try {
+                String[] fields = line.split("\\s+");
+                if(fields.length < 2) {
+                    throw new IllegalArgumentException("Expected host names and a content root");
+                }
+                String[] hosts = fields[0].toLowerCase(Locale.ROOT).split(",");
+                Path root = directory.resolve(fields[1]).normalize();
+                if(!Files.isDirectory(root)) {
+                    throw new IOException("Not a directory: " + root);
+                }
+
+                String defaultFile = Server.defaultFile;
+                boolean compile = false;
+                long pageCacheSize = Server.pageCacheSize, assetBudget = Server.assetBudget;
+                long imageCacheSize = Server.imageCacheSize;
+                for(int i = 2; i < fields.length; ++i) {
+                    int equals = fields[i].indexOf('=');
+                    String option = equals < 0 ? fields[i] : fields[i].substring(0, equals);
+                    String value = fields[i].substring(equals + 1);
+                    switch(option) {
+                        case "default":
+                            defaultFile = value;
+                            break;
+                        case "compile":
+                            compile = Boolean.parseBoolean(value);
+                            break;
+                        case "page-cache":
+                            pageCacheSize = Long.parseLong(value) << 20;
+                            break;
+                        case "asset-budget":
+                            assetBudget = Long.parseLong(value) << 20;
+                            break;
+                        case "image-cache":
+                            imageCacheSize = Long.parseLong(value) << 20;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown option " + option);
+                    }
+                }
+
+                Site site = new Site(hosts[0], root, defaultFile, compile, pageCacheSize, assetBudget,
+                        imageCacheSize);
+                for(String host : hosts) {
+                    sites.put(host, site);
+                }
+                System.out.println("Hosting " + String.join(", ", hosts) + " from " + root);
+            }
+            catch (IOException | RuntimeException e) {
+                System.err.println("--LOG--\nError loading site: " + line + "\n" + e + "\n--END LOG--");
+            }
+        }
+        return Collections.unmodifiableMap(sites);
+    }
+
+    /**
+     * Returns the site the current thread is working for.
+     *
+     * @return The last site entered by this thread, or Server.defaultSite if none has been entered.
+     */
+    public static Site current() {
+        Site site = current.get();
+        return site == null ? Server.defaultSite : site;
+    }
+
+    /**
+     * Sets the site the current thread is working for.
+     *
+     * @param site The site to enter, or null to work for Server.defaultSite.
+     * @return The site the thread was working for, which may be null.
+     */
+    public static Site enter(Site site) {
+        Site previous = current.get();
+        current.set(site);
+        return previous;
+    }
+
+    /**
+     * Returns the site a request is addressed to.
+     *
+     * @param host The value of the requests Host field (or :authority pseudo-header), which may include a port.
+     * @return The site registered for the host in Server.sites, or Server.defaultSite if there is none.
+     */
+    public static Site forHost(String host) {
+        if(host == null || Server.sites.isEmpty()) {
+            return Server.defaultSite;
+        }
+
+        int port = host.lastIndexOf(':');
+        if(port > host.lastIndexOf(']')) { //not part of an IPv6 address
+            host = host.substring(0, port);
+        }
+        Site site = Server.sites.get(host.toLowerCase(Locale.ROOT));
+        return site == null ? Server.defaultSite : site;
+    }
+
+    /**
+     * Summarises the caches of this site.
+     *
+     * @return A line for each cache, headed by the name and content root of the site.
+     */
+    public String statistics() {
+        StringBuilder summary = new StringBuilder(name.isEmpty() ? "Default site" : name).append(": ").append(root)
+                .append("\nPaths: ").append(pathCache.size()).append(" cached, ").append(missingPaths.size())
+                .append(" missing");
+        if(pageCache != null) {
+            summary.append('\n').append(pageCache.statistics());
+        }
+        summary.append('\n').append(assetStore.statistics()).append("\nPages mapped: ").append(siteIndex.size());
+        return summary.append('\n').append(images.statistics()).toString();
+    }
+}
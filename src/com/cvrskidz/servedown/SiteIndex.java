@@ -0,0 +1,465 @@
+package com.cvrskidz.servedown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * The com.cvrskidz.servedown.SiteIndex class is an in memory map of the pages of a site: the title, headings and
+ * last modified time of every markdown file below the content root. It serves two documents built from the map,
+ * a sitemap for crawlers (/sitemap.xml) and a JSON navigation tree of the sites directories, pages and headings
+ * (/.navigation), so pages can link to each other without the site being walked.
+ * <p>
+ * The map is built when the server starts, and is updated one file at a time as it is notified of changes by a
+ * com.cvrskidz.servedown.ContentWatcher. Each document is serialised once after a change, and the encoded bytes are
+ * shared by every request until the next change. A sitemap file in the content root is served instead of the
+ * generated sitemap.
+ */
+public class SiteIndex implements ContentWatcher.Listener {
+    public static final String SITEMAP = "/sitemap.xml"; //the path of the generated sitemap
+    public static final String NAVIGATION = "/.navigation"; //the path of the navigation tree
+    private static final int HEADINGS = 6; //smallest heading level included in the tree
+    private static final int MAX_SITEMAPS = 8; //sitemaps held for different host names, others are built per request
+
+    private final Path root;
+    private final String defaultFile; //pages with this name are linked by their directory
+    private final Map<String, Page> pages = new ConcurrentSkipListMap<>(); //relative path -> page, in path order
+    private final AtomicLong version = new AtomicLong(); //incremented by every change to pages
+    private final Map<String, Document> sitemaps = new ConcurrentHashMap<>(); //base URL -> serialised sitemap
+    private volatile Document navigation; //the serialised navigation tree, null until requested
+    private volatile boolean sitemapFile; //true if the content root has it's own sitemap
+
+    /**
+     * A page of the site.
+     */
+    private static class Page {
+        final String path, title; //path relative to the content root, using / as a separator
+        final long modified;
+        final int[] levels; //level of each heading, in order
+        final String[] headings; //text of each heading, as it is written in the markdown
+
+        Page(String path, String title, long modified, int[] levels, String[] headings) {
+            this.path = path;
+            this.title = title;
+            this.modified = modified;
+            this.levels = levels;
+            this.headings = headings;
+        }
+    }
+
+    /**
+     * A serialised document, and the version of the map it was built from.
+     */
+    private static class Document {
+        final long version;
+        final String etag;
+        final HTTPResponse response, notModified;
+
+        Document(long version, String extension, byte[] contents) {
+            CRC32 crc = new CRC32();
+            crc.update(contents);
+            this.version = version;
+            this.etag = "\"" + Long.toHexString(crc.getValue()) + "\"";
+            this.response = HTTPResponse.newResponse(extension, contents, HTTPResponse.PROTOCOL.HTTP)
+                    .header("ETag", etag)
+                    .header("Cache-Control", "no-cache");
+            this.notModified = new HTTPResponse(HTTPResponse.contentType(extension), "Not Modified", 304,
+                    HTTPResponse.PROTOCOL.HTTP)
+                    .header("ETag", etag)
+                    .header("Cache-Control", "no-cache");
+        }
+
+        /**
+         * Returns the response to the current request, a 304 if the client holds this version.
+         */
+        HTTPResponse respond() {
+            String match = RequestContext.current().header("If-None-Match");
+            return match != null && match.contains(etag) ? notModified : response;
+        }
+    }
+
+    /**
+     * Returns a map of every page below a content root.
+     *
+     * @param root The content root to map.
+     * @param defaultFile The file served for a directory, e.g. README.md.
+     * @return The map, ready to be served.
+     */
+    public static SiteIndex open(Path root, String defaultFile) {
+        SiteIndex index = new SiteIndex(root, defaultFile);
+        long start = System.nanoTime();
+        index.rebuild();
+        System.out.println("Mapped " + index.pages.size() + " pages in " + (System.nanoTime() - start) / 1000000
+                + "ms");
+        return index;
+    }
+
+    private SiteIndex(Path root, String defaultFile) {
+        this.root = root;
+        this.defaultFile = defaultFile;
+    }
+
+    /**
+     * Returns the response serving the sitemap, listing the URL and last modified time of every page.
+     *
+     * @return The response, or null if the content root has a sitemap file, which is served instead.
+     */
+    public HTTPResponse sitemap() {
+        if(sitemapFile) {
+            return null;
+        }
+
+        String base = baseURL();
+        Document sitemap = sitemaps.get(base);
+        if(sitemap != null && sitemap.version == version.get()) {
+            return sitemap.respond();
+        }
+
+        synchronized (this) { //serialised once for each version, however many requests are waiting
+            sitemap = sitemaps.get(base);
+            long current = version.get();
+            if(sitemap != null && sitemap.version == current) {
+                return sitemap.respond();
+            }
+
+            StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                    .append("<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n");
+            for(Page page : pages.values()) {
+                xml.append("<url><loc>").append(escapeXML(base + url(page.path))).append("</loc><lastmod>")
+                        .append(Instant.ofEpochMilli(page.modified).truncatedTo(ChronoUnit.SECONDS))
+                        .append("</lastmod></url>\n");
+            }
+            xml.append("</urlset>\n");
+
+            sitemap = new Document(current, ".xml", xml.toString().getBytes(StandardCharsets.UTF_8));
+            sitemaps.values().removeIf(outdated -> outdated.version != current);
+            if(sitemaps.size() < MAX_SITEMAPS || sitemaps.containsKey(base)) {
+                sitemaps.put(base, sitemap);
+            }
+        }
+        return sitemap.respond();
+    }
+
+    /**
+     * Returns the response serving the navigation tree. Each directory is an object listing it's pages and
+     * directories in path order, and each page lists it's title, URL, last modified time and headings:
+     * <pre>
+     * {"path":"/","pages":[{"title":"Serve-Down","path":"/","modified":"2024-01-01T00:00:00Z",
+     *   "headings":[{"level":1,"text":"Serve-Down","id":"Serve-Down"}]}],
+     *  "directories":[{"name":"docs","path":"/docs/","pages":[...],"directories":[...]}]}
+     * </pre>
+     *
+     * @return The response.
+     */
+    public HTTPResponse navigation() {
+        Document tree = navigation;
+        if(tree == null || tree.version != version.get()) {
+            synchronized (this) { //serialised once for each version, however many requests are waiting
+                tree = navigation;
+                long current = version.get();
+                if(tree == null || tree.version != current) {
+                    StringBuilder json = new StringBuilder();
+                    List<Page> sorted = new ArrayList<>(pages.values());
+                    appendDirectory(json, "", sorted, 0, sorted.size());
+                    tree = new Document(current, ".json", json.toString().getBytes(StandardCharsets.UTF_8));
+                    navigation = tree;
+                }
+            }
+        }
+        return tree.respond();
+    }
+
+    /**
+     * Returns the number of pages in the map.
+     *
+     * @return The size of the map.
+     */
+    public int size() {
+        return pages.size();
+    }
+
+    @Override
+    public void changed(WatchEvent.Kind<?> kind, Path file) {
+        if(file == null) {
+            rebuild();
+            return;
+        }
+
+        if(file.getParent() != null && file.getParent().equals(root)
+                && file.getFileName().toString().equals(SITEMAP.substring(1))) {
+            sitemapFile = Files.isRegularFile(file);
+        }
+
+        String path = relativePath(file);
+        if(kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            boolean removed = pages.remove(path) != null;
+            for(String mapped : pages.keySet()) {
+                if(mapped.startsWith(path + "/")) { //every page in a deleted directory
+                    removed |= pages.remove(mapped) != null;
+                }
+            }
+            if(removed) {
+                version.incrementAndGet();
+            }
+        }
+        else if(kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(file) && !isHidden(file)) {
+            //pages moved into the site with their directory
+            add(list(file));
+        }
+        else if(isMapped(file) && Files.isRegularFile(file)) {
+            add(List.of(file));
+        }
+    }
+
+    /**
+     * Maps every page below the content root, and removes pages that no longer exist.
+     */
+    private void rebuild() {
+        sitemapFile = Files.isRegularFile(root.resolve(SITEMAP.substring(1)));
+        List<Path> files = list(root);
+        List<String> found = files.stream().map(this::relativePath).collect(Collectors.toList());
+        pages.keySet().retainAll(found);
+        add(files);
+    }
+
+    /**
+     * Parses pages, in parallel, and adds them to the map.
+     */
+    private void add(List<Path> files) {
+        List<Page> parsed = files.parallelStream().map(this::parse).filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        for(Page page : parsed) {
+            pages.put(page.path, page);
+        }
+        version.incrementAndGet();
+    }
+
+    /**
+     * Lists the pages below a directory.
+     */
+    private List<Path> list(Path directory) {
+        try(Stream<Path> walk = Files.walk(directory)) {
+            return walk.filter(this::isMapped).filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        catch (IOException | UncheckedIOException e) {
+            System.err.println("--LOG--\nError listing pages below " + directory + "\n" + e + "\n--END LOG--");
+            return List.of();
+        }
+    }
+
+    /**
+     * Reads the title and headings of a markdown file. Headings are found, named and code blocks skipped using the
+     * same rules as com.cvrskidz.servedown.MarkdownConverter, and the title is the first level one heading, or the
+     * name of the file if it has none.
+     */
+    private Page parse(Path file) {
+        String source;
+        long modified;
+        try {
+            modified = Files.getLastModifiedTime(file).toMillis();
+            source = Files.readString(file, StandardCharsets.UTF_8);
+        }
+        catch (IOException e) {
+            System.err.println("--LOG--\nError mapping " + file + "\n" + e + "\n--END LOG--");
+            return null;
+        }
+
+        String name = file.getFileName().toString();
+        String title = null;
+        List<String> headings = new ArrayList<>();
+        int[] levels = new int[8];
+        boolean blockOpen = false;
+
+        for(String line : source.split("\n")) {
+            if(line.stripLeading().startsWith("```")) {
+                blockOpen = !blockOpen;
+                continue;
+            }
+
+            int level = blockOpen ? 0 : MarkdownConverter.headingLevel(line);
+            if(level == 0 || level > HEADINGS) {
+                continue;
+            }
+            String text = decodeEntities(MarkdownConverter.headingName(line)); //as shown in the pages contents
+            if(level == 1 && title == null) {
+                title = text;
+            }
+            if(headings.size() == levels.length) {
+                levels = Arrays.copyOf(levels, levels.length * 2);
+            }
+            levels[headings.size()] = level;
+            headings.add(text);
+        }
+
+        return new Page(relativePath(file), title == null ? name.substring(0, name.lastIndexOf('.')) : title,
+                modified, Arrays.copyOf(levels, headings.size()), headings.toArray(new String[0]));
+    }
+
+    /**
+     * Appends a directory of the navigation tree, from the pages in path order between start and end, which are
+     * all in the directory or below it.
+     */
+    private void appendDirectory(StringBuilder json, String directory, List<Page> sorted, int start, int end) {
+        json.append("{");
+        if(!directory.isEmpty()) {
+            String name = directory.substring(directory.lastIndexOf('/', directory.length() - 2) + 1,
+                    directory.length() - 1);
+            json.append("\"name\":").append(escapeJSON(name)).append(',');
+        }
+        json.append("\"path\":").append(escapeJSON(url(directory))).append(",\"pages\":[");
+
+        boolean first = true;
+        for(int i = start; i < end; ++i) {
+            Page page = sorted.get(i);
+            if(page.path.indexOf('/', directory.length()) >= 0) {
+                continue; //in a directory below this one
+            }
+            json.append(first ? "" : ",").append("{\"title\":").append(escapeJSON(page.title))
+                    .append(",\"path\":").append(escapeJSON(url(page.path)))
+                    .append(",\"modified\":\"").append(Instant.ofEpochMilli(page.modified)
+                            .truncatedTo(ChronoUnit.SECONDS)).append("\",\"headings\":[");
+            for(int h = 0; h < page.headings.length; ++h) {
+                json.append(h == 0 ? "" : ",").append("{\"level\":").append(page.levels[h])
+                        .append(",\"text\":").append(escapeJSON(page.headings[h]))
+                        .append(",\"id\":").append(escapeJSON(MarkdownConverter.headingId(page.headings[h])))
+                        .append('}');
+            }
+            json.append("]}");
+            first = false;
+        }
+
+        json.append("],\"directories\":[");
+        first = true;
+        int i = start;
+        while(i < end) { //the pages of each subdirectory are adjacent, as they share a prefix
+            String path = sorted.get(i).path;
+            int slash = path.indexOf('/', directory.length());
+            if(slash < 0) {
+                ++i;
+                continue;
+            }
+            String subdirectory = path.substring(0, slash + 1);
+            int last = i;
+            while(last < end && sorted.get(last).path.startsWith(subdirectory)) {
+                ++last;
+            }
+            json.append(first ? "" : ",");
+            appendDirectory(json, subdirectory, sorted, i, last);
+            first = false;
+            i = last;
+        }
+        json.append("]}");
+    }
+
+    /**
+     * Returns the URL of a page or directory, relative to the root of the site. Pages named defaultFile are
+     * linked by their directory, as they are served for it, and other pages without their extension.
+     */
+    private String url(String path) {
+        String link;
+        if(path.isEmpty() || path.endsWith("/")) {
+            link = path;
+        }
+        else if(path.equals(defaultFile) || path.endsWith("/" + defaultFile)) {
+            link = path.substring(0, path.length() - defaultFile.length());
+        }
+        else {
+            link = path.substring(0, path.lastIndexOf('.'));
+        }
+
+        StringBuilder url = new StringBuilder();
+        for(String part : link.split("/", -1)) {
+            url.append('/').append(URLEncoder.encode(part, StandardCharsets.UTF_8).replace("+", "%20"));
+        }
+        return link.isEmpty() ? "/" : url.toString();
+    }
+
+    /**
+     * Returns the scheme and host the sitemap links to: the name of a hosted site, or the Host field of the request
+     * for the default site.
+     */
+    private static String baseURL() {
+        String host = Site.current().name;
+        if(host.isEmpty()) {
+            host = RequestContext.current().header("Host");
+            host = host == null ? null : host.toLowerCase(Locale.ROOT);
+        }
+        if(host == null || host.isEmpty() || !host.matches("[A-Za-z0-9.:\\[\\]-]+")) {
+            host = "localhost";
+        }
+        return (Server.keystore.isEmpty() ? "http://" : "https://") + host;
+    }
+
+    private static String escapeXML(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;")
+                .replace("'", "&apos;");
+    }
+
+    /**
+     * Quotes a string as a JSON string literal.
+     */
+    /**
+     * Replaces the html entities written by com.cvrskidz.servedown.MarkdownConverter with the characters they stand
+     * for, so headings and their ids are listed as a browser reads them from the page.
+     */
+    private static String decodeEntities(String html) {
+        if(html.indexOf('&') < 0) {
+            return html;
+        }
+        return html.replace("&lt;", "<").replace("&gt;", ">").replace("&#42;", "*").replace("&#39;", "'");
+    }
+
+    private static String escapeJSON(String s) {
+        StringBuilder escaped = new StringBuilder(s.length() + 2).append('"');
+        for(int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if(c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            }
+            else if(c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                escaped.append(c);
+            }
+        }
+        return escaped.append('"').toString();
+    }
+
+    /**
+     * Markdown files are mapped, unless they are inside a hidden directory such as .client
+     */
+    private boolean isMapped(Path file) {
+        return file.toString().endsWith(".md") && !isHidden(file);
+    }
+
+    private boolean isHidden(Path file) {
+        for(Path part : root.relativize(file)) {
+            if(part.toString().startsWith(".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String relativePath(Path file) {
+        return root.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+}
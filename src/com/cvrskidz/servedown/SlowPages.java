@@ -0,0 +1,89 @@
+package com.cvrskidz.servedown;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The com.cvrskidz.servedown.SlowPages class records how long each page takes to serve, so the slowest pages of a
+ * running server can be listed. Requests are only recorded whilst they are timed (see
+ * com.cvrskidz.servedown.RequestContext), and only successful responses are recorded, so requests for missing
+ * paths cannot fill the table.
+ */
+public class SlowPages {
+    private static final int CAPACITY = 1024; //pages recorded, the fastest page is dropped to record another
+
+    /**
+     * The timings of a single page.
+     */
+    private static class Timing {
+        private long count, total, max; //requests, and nanoseconds spent serving them
+
+        private long mean() {
+            return total / count;
+        }
+    }
+
+    private final Map<String, Timing> pages = new HashMap<>(); //guarded by this
+
+    /**
+     * Records the time taken to serve a page.
+     *
+     * @param path The requested path, without the query string.
+     * @param nanos Nanoseconds from receiving the request to sending the response.
+     */
+    public synchronized void record(String path, long nanos) {
+        Timing timing = pages.get(path);
+        if(timing == null) {
+            if(pages.size() >= CAPACITY) {
+                String fastest = null;
+                for(Map.Entry<String, Timing> page : pages.entrySet()) {
+                    if(fastest == null || page.getValue().mean() < pages.get(fastest).mean()) {
+                        fastest = page.getKey();
+                    }
+                }
+                if(pages.get(fastest).mean() > nanos) {
+                    return; //faster than every recorded page
+                }
+                pages.remove(fastest);
+            }
+            timing = new Timing();
+            pages.put(path, timing);
+        }
+
+        ++timing.count;
+        timing.total += nanos;
+        timing.max = Math.max(timing.max, nanos);
+    }
+
+    /**
+     * Lists the pages with the longest mean time to serve.
+     *
+     * @param count The most pages to list.
+     * @return A line for each page, slowest first, e.g. "/guide 84.211ms mean, 120.004ms max, 12 request(s)".
+     */
+    public synchronized List<String> top(int count) {
+        List<Map.Entry<String, Timing>> sorted = new ArrayList<>(pages.entrySet());
+        sorted.sort(Comparator.comparingLong((Map.Entry<String, Timing> page) -> page.getValue().mean()).reversed());
+
+        List<String> lines = new ArrayList<>();
+        for(Map.Entry<String, Timing> page : sorted.subList(0, Math.min(count, sorted.size()))) {
+            Timing timing = page.getValue();
+            StringBuilder line = new StringBuilder(page.getKey()).append(' ');
+            RequestContext.appendDuration(line, timing.mean()).append("ms mean, ");
+            RequestContext.appendDuration(line, timing.max).append("ms max, ").append(timing.count)
+                    .append(" request(s)");
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    /**
+     * Removes every recorded page.
+     */
+    public synchronized void clear() {
+        pages.clear();
+    }
+}
@@ -0,0 +1,386 @@
+package com.cvrskidz.servedown;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The com.cvrskidz.servedown.SyntaxHighlighter class highlights the code blocks of a page as it is converted, so
+ * clients do not need to download and run HighlightJS. The output uses the same class names as HighlightJS, so the
+ * existing HighlightJS themes under .client style it.
+ * <p>
+ * Each supported language is described by a table of keywords, built in names, literals, comment and string
+ * delimiters, and a single lexer scans code one character at a time using the table of the blocks language.
+ * Highlighted blocks are cached by a hash of their language and contents, as the same snippets are often repeated
+ * across pages and conversions.
+ */
+public class SyntaxHighlighter {
+    private static final int MAX_ENTRIES = 4096; //highlighted blocks cached before the cache is cleared
+
+    //classes of the HighlightJS themes
+    private static final String KEYWORD = "hljs-keyword", BUILT_IN = "hljs-built_in", LITERAL = "hljs-literal",
+            NUMBER = "hljs-number", STRING = "hljs-string", COMMENT = "hljs-comment", META = "hljs-meta",
+            VARIABLE = "hljs-variable";
+
+    private static final Map<String, String> cache = new ConcurrentHashMap<>();
+    private static final Map<String, Language> LANGUAGES = new HashMap<>(); //languages by every name they are tagged with
+
+    /**
+     * The table describing how the code of a language is highlighted.
+     */
+    private static class Language {
+        Set<String> keywords = Set.of(), builtIns = Set.of(), literals = Set.of();
+        String[] lineComments = {};
+        String blockStart, blockEnd; //block comment delimiters, null if the language has none
+        String quotes = ""; //characters that open and close a string
+        boolean tripleQuotes; //python style """ strings
+        boolean preprocessor; //# at the start of a line begins a directive
+        boolean annotations; //@ begins an annotation or decorator
+        boolean variables; //$ begins a shell variable
+
+        Language named(String... names) {
+            for(String name : names) {
+                LANGUAGES.put(name, this);
+            }
+            return this;
+        }
+    }
+
+    static {
+        Language c = new Language().named("c", "h", "cpp", "c++", "cc", "cxx", "hpp");
+        c.keywords = Set.of("auto", "break", "case", "catch", "class", "const", "constexpr", "continue", "default",
+                "delete", "do", "else", "enum", "explicit", "extern", "for", "friend", "goto", "if", "inline",
+                "mutable", "namespace", "new", "noexcept", "operator", "private", "protected", "public", "register",
+                "return", "sizeof", "static", "struct", "switch", "template", "this", "throw", "try", "typedef",
+                "typename", "union", "using", "virtual", "volatile", "while", "int", "long", "short", "char",
+                "float", "double", "void", "bool", "unsigned", "signed");
+        c.builtIns = Set.of("std", "string", "vector", "map", "set", "cout", "cin", "endl", "printf", "scanf",
+                "malloc", "free", "size_t", "uint8_t", "uint32_t", "uint64_t", "int32_t", "int64_t", "unique_ptr",
+                "shared_ptr", "make_unique", "make_shared");
+        c.literals = Set.of("true", "false", "nullptr", "NULL");
+        c.lineComments = new String[] {"//"};
+        c.blockStart = "/*";
+        c.blockEnd = "*/";
+        c.quotes = "\"'";
+        c.preprocessor = true;
+
+        Language java = new Language().named("java");
+        java.keywords = Set.of("abstract", "assert", "break", "case", "catch", "class", "continue", "default", "do",
+                "else", "enum", "extends", "final", "finally", "for", "if", "implements", "import", "instanceof",
+                "interface", "native", "new", "package", "private", "protected", "public", "return", "static",
+                "strictfp", "super", "switch", "synchronized", "this", "throw", "throws", "transient", "try",
+                "volatile", "while", "var", "record", "yield", "boolean", "byte", "char", "short", "int", "long",
+                "float", "double", "void");
+        java.builtIns = Set.of("String", "Object", "System", "Integer", "Long", "Double", "Boolean", "Math",
+                "List", "Map", "Set", "ArrayList", "HashMap", "HashSet", "Exception", "RuntimeException");
+        java.literals = Set.of("true", "false", "null");
+        java.lineComments = new String[] {"//"};
+        java.blockStart = "/*";
+        java.blockEnd = "*/";
+        java.quotes = "\"'";
+        java.annotations = true;
+
+        Language cs = new Language().named("cs", "csharp", "c#");
+        cs.keywords = Set.of("abstract", "as", "async", "await", "base", "break", "case", "catch", "class", "const",
+                "continue", "default", "delegate", "do", "else", "enum", "event", "explicit", "extern", "finally",
+                "fixed", "for", "foreach", "get", "if", "implicit", "in", "interface", "internal", "is", "lock",
+                "namespace", "new", "operator", "out", "override", "params", "private", "protected", "public",
+                "readonly", "ref", "return", "sealed", "set", "static", "struct", "switch", "this", "throw", "try",
+                "typeof", "using", "var", "virtual", "void", "while", "bool", "byte", "char", "decimal", "double",
+                "float", "int", "long", "object", "short", "string", "uint", "ulong");
+        cs.builtIns = Set.of("Console", "String", "List", "Dictionary", "Task", "Math", "Exception");
+        cs.literals = Set.of("true", "false", "null");
+        cs.lineComments = new String[] {"//"};
+        cs.blockStart = "/*";
+        cs.blockEnd = "*/";
+        cs.quotes = "\"'";
+        cs.preprocessor = true;
+
+        Language js = new Language().named("js", "javascript", "jsx", "ts", "typescript", "mjs");
+        js.keywords = Set.of("async", "await", "break", "case", "catch", "class", "const", "continue", "debugger",
+                "default", "delete", "do", "else", "export", "extends", "finally", "for", "from", "function", "if",
+                "import", "in", "instanceof", "let", "new", "of", "return", "static", "super", "switch", "this",
+                "throw", "try", "typeof", "var", "void", "while", "yield", "interface", "type", "enum",
+                "implements", "private", "protected", "public", "readonly", "as");
+        js.builtIns = Set.of("console", "window", "document", "Math", "JSON", "Object", "Array", "String",
+                "Number", "Promise", "Map", "Set", "Error", "require", "module", "setTimeout", "parseInt");
+        js.literals = Set.of("true", "false", "null", "undefined", "NaN", "Infinity");
+        js.lineComments = new String[] {"//"};
+        js.blockStart = "/*";
+        js.blockEnd = "*/";
+        js.quotes = "\"'`";
+        js.annotations = true;
+
+        Language python = new Language().named("py", "python", "python3");
+        python.keywords = Set.of("and", "as", "assert", "async", "await", "break", "class", "continue", "def",
+                "del", "elif", "else", "except", "finally", "for", "from", "global", "if", "import", "in", "is",
+                "lambda", "nonlocal", "not", "or", "pass", "raise", "return", "try", "while", "with", "yield");
+        python.builtIns = Set.of("print", "len", "range", "enumerate", "zip", "map", "filter", "open", "int",
+                "str", "float", "list", "dict", "set", "tuple", "bool", "isinstance", "super", "self", "sorted",
+                "min", "max", "sum", "abs", "input", "type", "object");
+        python.literals = Set.of("True", "False", "None");
+        python.lineComments = new String[] {"#"};
+        python.quotes = "\"'";
+        python.tripleQuotes = true;
+        python.annotations = true;
+
+        Language go = new Language().named("go", "golang");
+        go.keywords = Set.of("break", "case", "chan", "const", "continue", "default", "defer", "else",
+                "fallthrough", "for", "func", "go", "goto", "if", "import", "interface", "map", "package", "range",
+                "return", "select", "struct", "switch", "type", "var", "int", "int64", "int32", "uint", "byte",
+                "rune", "string", "bool", "float64", "error");
+        go.builtIns = Set.of("append", "cap", "close", "copy", "delete", "len", "make", "new", "panic", "print",
+                "println", "recover", "fmt");
+        go.literals = Set.of("true", "false", "nil", "iota");
+        go.lineComments = new String[] {"//"};
+        go.blockStart = "/*";
+        go.blockEnd = "*/";
+        go.quotes = "\"'`";
+
+        Language rust = new Language().named("rs", "rust");
+        rust.keywords = Set.of("as", "async", "await", "break", "const", "continue", "crate", "dyn", "else", "enum",
+                "extern", "fn", "for", "if", "impl", "in", "let", "loop", "match", "mod", "move", "mut", "pub",
+                "ref", "return", "self", "Self", "static", "struct", "super", "trait", "type", "unsafe", "use",
+                "where", "while", "i32", "i64", "u8", "u32", "u64", "usize", "f64", "bool", "str", "char");
+        rust.builtIns = Set.of("String", "Vec", "Option", "Result", "Box", "Some", "None", "Ok", "Err",
+                "println", "format", "vec", "panic");
+        rust.literals = Set.of("true", "false");
+        rust.lineComments = new String[] {"//"};
+        rust.blockStart = "/*";
+        rust.blockEnd = "*/";
+        rust.quotes = "\"";
+
+        Language shell = new Language().named("sh", "bash", "shell", "zsh", "console");
+        shell.keywords = Set.of("if", "then", "else", "elif", "fi", "for", "while", "until", "do", "done", "case",
+                "esac", "in", "function", "return", "local", "export", "select");
+        shell.builtIns = Set.of("echo", "cd", "ls", "cat", "grep", "sed", "awk", "printf", "read", "set",
+                "source", "exit", "test", "sudo", "mkdir", "rm", "cp", "mv", "java", "javac", "git");
+        shell.literals = Set.of("true", "false");
+        shell.lineComments = new String[] {"#"};
+        shell.quotes = "\"'";
+        shell.variables = true;
+
+        Language json = new Language().named("json");
+        json.literals = Set.of("true", "false", "null");
+        json.quotes = "\"";
+    }
+
+    /**
+     * Highlights a block of code, returning it as html with each token wrapped in a span.
+     *
+     * @param language The language tag of the code block e.g. python, may be empty.
+     * @param code The contents of the code block, without html escapes.
+     * @return The escaped code, with spans around keywords, strings, comments and so on. Code in an unsupported
+     *         language is only escaped.
+     */
+    public static String highlight(String language, String code) {
+        Language table = LANGUAGES.get(language.toLowerCase(Locale.ROOT));
+        if(table == null) {
+            return escape(code, 0, code.length(), new StringBuilder()).toString();
+        }
+
+        String key = hash(language, code);
+        String highlighted = cache.get(key);
+        if(highlighted == null) {
+            highlighted = lex(table, code);
+            if(cache.size() >= MAX_ENTRIES) {
+                cache.clear();
+            }
+            cache.put(key, highlighted);
+        }
+        return highlighted;
+    }
+
+    /**
+     * Scans code once, wrapping each token the language table identifies.
+     */
+    private static String lex(Language language, String code) {
+        StringBuilder out = new StringBuilder(code.length() * 3 / 2);
+        int n = code.length();
+        int i = 0;
+        boolean lineStart = true; //only whitespace since the start of the line
+
+        while(i < n) {
+            char c = code.charAt(i);
+            int end = -1; //end of the token starting at i, if any
+            String type = null;
+
+            if(startsWithAny(code, i, language.lineComments)) {
+                end = lineEnd(code, i);
+                type = COMMENT;
+            }
+            else if(language.blockStart != null && code.startsWith(language.blockStart, i)) {
+                int close = code.indexOf(language.blockEnd, i + language.blockStart.length());
+                end = close < 0 ? n : close + language.blockEnd.length();
+                type = COMMENT;
+            }
+            else if(language.tripleQuotes && (code.startsWith("\"\"\"", i) || code.startsWith("'''", i))) {
+                int close = code.indexOf(code.substring(i, i + 3), i + 3);
+                end = close < 0 ? n : close + 3;
+                type = STRING;
+            }
+            else if(language.quotes.indexOf(c) >= 0) {
+                end = stringEnd(code, i, c);
+                type = STRING;
+            }
+            else if(language.preprocessor && c == '#' && lineStart) {
+                end = lineEnd(code, i);
+                type = META;
+            }
+            else if((language.annotations && c == '@') || (language.variables && c == '$')) {
+                end = identifierEnd(code, i + 1);
+                type = c == '$' ? VARIABLE : META;
+            }
+            else if(Character.isDigit(c) && (i == 0 || !isIdentifierPart(code.charAt(i - 1)))) {
+                end = i + 1;
+                while(end < n && (isIdentifierPart(code.charAt(end)) || code.charAt(end) == '.')) {
+                    ++end;
+                }
+                type = NUMBER;
+            }
+            else if(isIdentifierStart(c)) {
+                end = identifierEnd(code, i);
+                String word = code.substring(i, end);
+                if(language.keywords.contains(word)) {
+                    type = KEYWORD;
+                }
+                else if(language.literals.contains(word)) {
+                    type = LITERAL;
+                }
+                else if(language.builtIns.contains(word)) {
+                    type = BUILT_IN;
+                }
+            }
+
+            if(end < 0) { //a single character outside of any token
+                escape(code, i, i + 1, out);
+                lineStart = c == '\n' || (lineStart && Character.isWhitespace(c));
+                ++i;
+                continue;
+            }
+
+            if(type == null) {
+                escape(code, i, end, out);
+            }
+            else {
+                out.append("<span class=\"").append(type).append("\">");
+                escape(code, i, end, out);
+                out.append("</span>");
+            }
+            lineStart = code.charAt(end - 1) == '\n';
+            i = end;
+        }
+
+        return out.toString();
+    }
+
+    private static boolean startsWithAny(String code, int i, String[] prefixes) {
+        for(String prefix : prefixes) {
+            if(code.startsWith(prefix, i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int lineEnd(String code, int i) {
+        int end = code.indexOf('\n', i);
+        return end < 0 ? code.length() : end;
+    }
+
+    /**
+     * Finds the end of a string literal, skipping escaped quotes. Strings other than template literals end at the
+     * end of the line if they are not closed.
+     */
+    private static int stringEnd(String code, int i, char quote) {
+        int end = i + 1;
+        while(end < code.length()) {
+            char c = code.charAt(end);
+            if(c == '\\') {
+                end += 2;
+                continue;
+            }
+            if(c == quote) {
+                return end + 1;
+            }
+            if(c == '\n' && quote != '`') {
+                return end;
+            }
+            ++end;
+        }
+        return code.length();
+    }
+
+    private static int identifierEnd(String code, int i) {
+        while(i < code.length() && isIdentifierPart(code.charAt(i))) {
+            ++i;
+        }
+        return i;
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     * Appends part of a string to a builder, escaping characters with a meaning in html.
+     */
+    private static StringBuilder escape(String s, int start, int end, StringBuilder out) {
+        for(int i = start; i < end; ++i) {
+            char c = s.charAt(i);
+            switch(c) {
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '&':
+                    out.append("&amp;");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Returns a hash of a code block identifying it in the cache.
+     */
+    private static String hash(String language, String code) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(language.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte)0);
+            byte[] hash = digest.digest(code.getBytes(StandardCharsets.UTF_8));
+
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for(byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e) { //every JVM supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A getter method to access the number of highlighted blocks cached.
+     *
+     * @return The number of entries in the cache.
+     */
+    public static int size() {
+        return cache.size();
+    }
+}
@@ -0,0 +1,135 @@
+package com.cvrskidz.servedown;
+
+import javax.net.ssl.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The com.cvrskidz.servedown.TLSListener class accepts HTTPS connections on a second port, using a certificate read
+ * from a keystore. Connections are handed to a com.cvrskidz.servedown.RequestHandler as soon as they are accepted,
+ * so the TLS handshake runs on the handlers thread rather than blocking the accept loop.
+ * <p>
+ * Sessions are kept in the server side session cache, and session tickets are enabled, so returning clients can
+ * resume a session with an abbreviated handshake. The number of full and resumed handshakes, and the time spent
+ * in each, are recorded so the cost of handshakes can be measured under load.
+ */
+public class TLSListener implements Runnable {
+    private static final int SESSION_CACHE_SIZE = 20000; //sessions held by the server side cache
+    private static final int SESSION_TIMEOUT = 86400; //seconds a session can be resumed for
+
+    private final SSLServerSocket socket;
+
+    //handshake statistics
+    private static final AtomicLong fullHandshakes = new AtomicLong(), resumedHandshakes = new AtomicLong();
+    private static final AtomicLong fullNanos = new AtomicLong(), resumedNanos = new AtomicLong();
+
+    /**
+     * Returns a new listener bound to the given address and port, ready to accept connections.
+     *
+     * @param address The local address to bind to.
+     * @param port The port to accept HTTPS connections on.
+     * @param keystore The path of a keystore containing the servers certificate and private key.
+     * @param password The password of the keystore and the key within it.
+     * @throws IOException If the keystore cannot be read, or the port cannot be bound.
+     * @throws GeneralSecurityException If the keystore does not contain a usable key.
+     */
+    public TLSListener(InetAddress address, int port, Path keystore, char[] password)
+            throws IOException, GeneralSecurityException {
+        //stateless resumption, must be set before the first SSLContext is created
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+
+        KeyStore keys = KeyStore.getInstance(KeyStore.getDefaultType());
+        try(InputStream in = Files.newInputStream(keystore)) {
+            keys.load(in, password);
+        }
+
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keys, password);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessions.setSessionTimeout(SESSION_TIMEOUT);
+
+        socket = (SSLServerSocket)context.getServerSocketFactory().createServerSocket(port, Server.backlog, address);
+        System.out.println("Accepting HTTPS connections at: " + address.getHostAddress() + ":" + port);
+    }
+
+    /**
+     * Accepts connections until the server stops listening or the socket is closed, starting a handler for each
+     * without handshaking.
+     */
+    @Override
+    public void run() {
+        while(Server.listening) {
+            try {
+                Socket client = socket.accept();
+                Acceptor.configure(client);
+                new RequestHandler(client).start();
+            }
+            catch (IOException e) {
+                if(socket.isClosed()) {
+                    break;
+                }
+                System.err.println("--LOG--\nError accepting HTTPS connection\n" + e + "\n--END LOG--");
+            }
+        }
+    }
+
+    /**
+     * Closes the listening socket, so no more HTTPS connections are accepted. Wakes the thread accepting
+     * connections.
+     */
+    public void close() {
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            System.err.println("An error occurred closing a socket: " + e);
+        }
+    }
+
+    /**
+     * Completes the handshake of a newly accepted connection, recording whether the session was resumed.
+     * Called by the handler of the connection.
+     *
+     * @param client The accepted connection.
+     * @throws IOException If the handshake fails.
+     */
+    public static void handshake(SSLSocket client) throws IOException {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        client.startHandshake();
+        long elapsed = System.nanoTime() - start;
+
+        if(client.getSession().getCreationTime() < now) { //the session existed before this connection
+            resumedHandshakes.incrementAndGet();
+            resumedNanos.addAndGet(elapsed);
+        }
+        else {
+            fullHandshakes.incrementAndGet();
+            fullNanos.addAndGet(elapsed);
+        }
+    }
+
+    /**
+     * Summarises the handshakes completed since the server started.
+     *
+     * @return The number of full and resumed handshakes, and the mean time of each in microseconds.
+     */
+    public static String statistics() {
+        long full = fullHandshakes.get(), resumed = resumedHandshakes.get();
+        return String.format("TLS handshakes: %d full (mean %dus), %d resumed (mean %dus)",
+                full, full == 0 ? 0 : fullNanos.get() / full / 1000,
+                resumed, resumed == 0 ? 0 : resumedNanos.get() / resumed / 1000);
+    }
+}
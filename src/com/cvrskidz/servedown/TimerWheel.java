@@ -0,0 +1,194 @@
+package com.cvrskidz.servedown;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The com.cvrskidz.servedown.TimerWheel class tracks the deadlines of open connections, closing connections that
+ * are idle or too slow to send a request or receive a response.
+ * <p>
+ * Deadlines are held in a hashed timer wheel: a ring of slots, each a doubly linked list of the timeouts expiring
+ * when the wheel next reaches that slot (or a later revolution of it). Scheduling and cancelling a timeout are
+ * constant time regardless of how many connections are open, and a single thread advances the wheel one slot per
+ * tick. Deadlines are accurate to within one tick.
+ */
+public class TimerWheel {
+    private static final int SLOTS = 512; //a power of two
+    private static final long TICK = 100; //milliseconds per slot
+
+    /**
+     * The deadlines tracked for each connection.
+     */
+    public enum Deadline {
+        READ_HEADER, READ_BODY, WRITE, KEEP_ALIVE;
+    }
+
+    /**
+     * A scheduled deadline, which runs it's action if it has not been cancelled before it expires.
+     */
+    public static class Timeout {
+        private final TimerWheel wheel;
+        private final Deadline deadline;
+        private final Runnable action;
+        private long rounds; //revolutions of the wheel remaining before expiry
+        private int slot = -1; //the slot holding this timeout, -1 once expired or cancelled
+        private Timeout previous, next;
+
+        private Timeout(TimerWheel wheel, Deadline deadline, Runnable action) {
+            this.wheel = wheel;
+            this.deadline = deadline;
+            this.action = action;
+        }
+
+        /**
+         * Removes the timeout from the wheel, if it has not already expired.
+         *
+         * @return True if the timeout was cancelled before it expired.
+         */
+        public boolean cancel() {
+            synchronized (wheel) {
+                if(slot < 0) {
+                    return false;
+                }
+                wheel.unlink(this);
+                return true;
+            }
+        }
+    }
+
+    private final Timeout[] slots = new Timeout[SLOTS]; //the head of each slots list
+    private final AtomicLongArray expired = new AtomicLongArray(Deadline.values().length);
+    private int current; //the slot expiring on the next tick
+    private int pending; //timeouts scheduled and not yet expired or cancelled
+
+    /**
+     * Starts advancing the wheel on a daemon thread.
+     */
+    public void start() {
+        Thread ticker = new Thread(this::tick, "timer-wheel");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * Schedules an action to run once a deadline passes.
+     *
+     * @param deadline The kind of deadline, counted if it expires.
+     * @param delay The number of milliseconds until the deadline. Delays of 0 or less are not scheduled.
+     * @param action The action to run on expiry, such as closing the connection. Runs on the wheels thread, so
+     *               should not block.
+     * @return The scheduled timeout, which should be cancelled once the deadline is met.
+     */
+    public Timeout schedule(Deadline deadline, long delay, Runnable action) {
+        Timeout timeout = new Timeout(this, deadline, action);
+        if(delay <= 0) {
+            return timeout; //never expires
+        }
+
+        long ticks = Math.max(1, (delay + TICK - 1) / TICK);
+        synchronized (this) {
+            timeout.rounds = (ticks - 1) / SLOTS;
+            timeout.slot = (int)((current + ticks - 1) & (SLOTS - 1));
+            timeout.next = slots[timeout.slot];
+            if(timeout.next != null) {
+                timeout.next.previous = timeout;
+            }
+            slots[timeout.slot] = timeout;
+            ++pending;
+        }
+        return timeout;
+    }
+
+    /**
+     * Removes a timeout from it's slot. The wheels lock must be held.
+     */
+    private void unlink(Timeout timeout) {
+        if(timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        }
+        else {
+            slots[timeout.slot] = timeout.next;
+        }
+        if(timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = timeout.next = null;
+        timeout.slot = -1;
+        --pending;
+    }
+
+    /**
+     * Advances the wheel every tick, running the actions of expired timeouts.
+     */
+    private void tick() {
+        long next = System.nanoTime();
+        while(true) {
+            next += TICK * 1000000;
+            long sleep = (next - System.nanoTime()) / 1000000;
+            if(sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            Timeout expiring = null; //expired timeouts, linked through next
+            synchronized (this) {
+                Timeout timeout = slots[current];
+                while(timeout != null) {
+                    Timeout following = timeout.next;
+                    if(timeout.rounds > 0) {
+                        --timeout.rounds;
+                    }
+                    else {
+                        unlink(timeout);
+                        timeout.next = expiring;
+                        expiring = timeout;
+                    }
+                    timeout = following;
+                }
+                current = (current + 1) & (SLOTS - 1);
+            }
+
+            //run actions outside the lock, so closing a connection cannot delay scheduling
+            while(expiring != null) {
+                expired.incrementAndGet(expiring.deadline.ordinal());
+                try {
+                    expiring.action.run();
+                }
+                catch (RuntimeException e) {
+                    System.err.println("--LOG--\nError expiring " + expiring.deadline + " deadline\n" + e + "\n--END LOG--");
+                }
+                expiring = expiring.next;
+            }
+        }
+    }
+
+    /**
+     * A getter method to access the number of connections closed for missing a deadline.
+     *
+     * @param deadline The kind of deadline.
+     * @return The number of expired timeouts of that kind since the server started.
+     */
+    public long getExpired(Deadline deadline) {
+        return expired.get(deadline.ordinal());
+    }
+
+    /**
+     * Summarises the timeouts pending and expired.
+     *
+     * @return The number of scheduled timeouts, and the number of each kind that have expired.
+     */
+    public String statistics() {
+        StringBuilder summary = new StringBuilder("Timeouts: ");
+        synchronized (this) {
+            summary.append(pending).append(" pending");
+        }
+        for(Deadline deadline : Deadline.values()) {
+            summary.append(", ").append(getExpired(deadline)).append(' ')
+                    .append(deadline.toString().toLowerCase().replace('_', ' ')).append(" expired");
+        }
+        return summary.toString();
+    }
+}
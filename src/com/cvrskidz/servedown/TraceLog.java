@@ -0,0 +1,90 @@
+package com.cvrskidz.servedown;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The com.cvrskidz.servedown.TraceLog class appends the timings of slow requests to a file, so the stage a slow
+ * page spent it's time in can be found after it was served.
+ * <p>
+ * Requests taking longer than a threshold are sampled, one in every n slow requests is written, so a server under
+ * load does not spend it's time writing the log. Each line holds the time the request finished, the status of the
+ * response, the total time and the time spent in each stage in milliseconds, followed by the request:
+ * <pre>
+ * 2021-03-01T10:15:30.120Z 200 total=84.211 parse=0.041 resolve=0.120 read=0.302 convert=83.102 write=0.512 GET /guide HTTP/1.1
+ * </pre>
+ */
+public class TraceLog {
+    private final BufferedWriter out; //guarded by this
+    private final Path file;
+    private final long threshold; //nanoseconds a request must take to be slow
+    private final int sample; //one in this many slow requests is written
+    private final AtomicLong slow = new AtomicLong(), written = new AtomicLong();
+
+    /**
+     * Opens a trace log, appending to the file if it exists.
+     *
+     * @param file The file to write to.
+     * @param threshold Milliseconds a request must take before it is traced.
+     * @param sample Write one in this many slow requests, 1 to write every slow request.
+     * @throws IOException If the file cannot be opened.
+     */
+    public TraceLog(Path file, long threshold, int sample) throws IOException {
+        this.file = file;
+        this.threshold = threshold * 1000000;
+        this.sample = Math.max(1, sample);
+        out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Writes a request to the log, if it was slow and is sampled.
+     *
+     * @param request A description of the request, e.g. it's request line.
+     * @param status The status code of the response.
+     * @param total Nanoseconds from receiving the request to sending the response.
+     * @param spans Nanoseconds spent in each stage, indexed by RequestContext.Stage.ordinal().
+     */
+    public void record(String request, int status, long total, long[] spans) {
+        if(total < threshold || slow.getAndIncrement() % sample != 0) {
+            return;
+        }
+
+        StringBuilder line = new StringBuilder().append(Instant.now()).append(' ').append(status).append(" total=");
+        RequestContext.appendDuration(line, total);
+        for(RequestContext.Stage stage : RequestContext.Stage.values()) {
+            if(spans[stage.ordinal()] > 0) {
+                RequestContext.appendDuration(line.append(' ').append(stage).append('='), spans[stage.ordinal()]);
+            }
+        }
+        line.append(' ').append(request);
+
+        synchronized (this) {
+            try {
+                out.write(line.toString());
+                out.newLine();
+                out.flush();
+                written.incrementAndGet();
+            }
+            catch (IOException e) {
+                System.err.println("--LOG--\nError writing to the trace log\n" + e + "\n--END LOG--");
+            }
+        }
+    }
+
+    /**
+     * Summarises the requests traced.
+     *
+     * @return The number of slow requests, and the number written to the log.
+     */
+    public String statistics() {
+        return "Trace: " + slow.get() + " slow request(s) over " + threshold / 1000000 + "ms, " + written.get()
+                + " written to " + file;
+    }
+}